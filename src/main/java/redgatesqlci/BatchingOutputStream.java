@@ -0,0 +1,74 @@
+package redgatesqlci;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Collects output into chunks before passing it on, so that a remote build log gets a few large writes
+ * instead of one per line. A chunk is passed on once it's full, or by {@link #flushIfStale()} once it's old enough.
+ */
+public class BatchingOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private final long maxAgeMillis;
+    private int count;
+    private long oldestWrite;
+
+    public BatchingOutputStream(OutputStream out, int chunkSize, long maxAgeMillis) {
+        this.out = out;
+        this.buffer = new byte[chunkSize];
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (count == buffer.length)
+            flushBuffer();
+        if (count == 0)
+            oldestWrite = System.currentTimeMillis();
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.length)
+                flushBuffer();
+            if (count == 0)
+                oldestWrite = System.currentTimeMillis();
+            int copied = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    /**
+     * Passes on the current chunk if it has waited longer than the maximum age, so quiet output still reaches the log.
+     */
+    public synchronized void flushIfStale() throws IOException {
+        if (count > 0 && System.currentTimeMillis() - oldestWrite >= maxAgeMillis)
+            flush();
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    // The underlying stream belongs to the caller.
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package redgatesqlci;
 
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
-import hudson.model.AbstractBuild;
+import hudson.Util;
 import hudson.model.AbstractProject;
-import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.tasks.SimpleBuildStep;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -17,9 +21,15 @@ import org.kohsuke.stapler.StaplerRequest;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 
-public class BuildBuilder extends Builder {
+public class BuildBuilder extends Builder implements SimpleBuildStep {
+
+    private static final int MAX_REPORTED_DIAGNOSTICS = 100;
 
     private String dbFolder;
     public String getDbFolder() {
@@ -51,6 +61,11 @@ public class BuildBuilder extends Builder {
         return dbName;
     }
 
+    private final String poolName;
+    public String getPoolName() {
+        return poolName;
+    }
+
     private final String serverAuth;
     public String getServerAuth() {
         return serverAuth;
@@ -71,8 +86,51 @@ public class BuildBuilder extends Builder {
         return additionalParams;
     }
 
+    private final boolean useBuildCache;
+    public boolean getUseBuildCache() {
+        return useBuildCache;
+    }
+
+    private final boolean incremental;
+    public boolean getIncremental() {
+        return incremental;
+    }
+
+    private final boolean preValidate;
+    public boolean getPreValidate() {
+        return preValidate;
+    }
+
+    private final boolean storePackage;
+    public boolean getStorePackage() {
+        return storePackage;
+    }
+
+    // Null unless packages are built for a list of scripts folders instead of the single folder and package ID.
+    private final String multipleDatabases;
+    public String getMultipleDatabases() {
+        return multipleDatabases;
+    }
+
+    private final String databaseList;
+    public String getDatabaseList() {
+        return databaseList;
+    }
+
+    private final boolean discoverDatabases;
+    public boolean getDiscoverDatabases() {
+        return discoverDatabases;
+    }
+
+    private final int maxParallelBuilds;
+    public int getMaxParallelBuilds() {
+        return maxParallelBuilds;
+    }
+
     @DataBoundConstructor
-    public BuildBuilder(DbFolder dbFolder, String packageid, Server tempServer, String additionalParams) {
+    public BuildBuilder(DbFolder dbFolder, String packageid, MultipleDatabases multipleDatabases, Server tempServer,
+                        String additionalParams, boolean useBuildCache, boolean incremental, boolean preValidate,
+                        boolean storePackage) {
         this.dbFolder = dbFolder.getvalue();
         this.subfolder = dbFolder.getsubfolder();
         this.packageid = packageid;
@@ -94,22 +152,340 @@ public class BuildBuilder extends Builder {
             this.password = "";
         }
 
+        if(this.tempServer.equals("pool"))
+            this.poolName = tempServer.getPoolName();
+        else
+            this.poolName = "";
+
         this.additionalParams = additionalParams;
+        this.useBuildCache = useBuildCache;
+        this.incremental = incremental;
+        this.preValidate = preValidate;
+        this.storePackage = storePackage;
+
+        this.multipleDatabases = multipleDatabases == null ? null : "true";
+        if(this.multipleDatabases != null)
+        {
+            this.databaseList = multipleDatabases.getDatabaseList();
+            this.discoverDatabases = multipleDatabases.getDiscoverDatabases();
+            this.maxParallelBuilds = Math.max(1, multipleDatabases.getMaxParallelBuilds());
+        }
+        else
+        {
+            this.databaseList = "";
+            this.discoverDatabases = false;
+            this.maxParallelBuilds = 1;
+        }
     }
 
     @Override
-    public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
-        ArrayList<String> params = new ArrayList<String>();
-
-        FilePath checkOutPath = build.getWorkspace();
-        params.add("BUILD");
+    public void perform(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener)
+            throws InterruptedException, IOException {
+        if (getMultipleDatabases() != null)
+            Utils.checkStepResult(buildDatabases(build, workspace, launcher, listener), "BUILD");
+        else
+            Utils.checkStepResult(runStep(build, workspace, launcher, listener), "BUILD");
+    }
 
+    private boolean runStep(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener) {
+        String scriptsFolder;
         if (getDbFolder().equals("subfolder")) {
-            params.add("/scriptsFolder=" + checkOutPath.getRemote()  + getSubfolder());
+            scriptsFolder = workspace.getRemote() + getSubfolder();
         } else{
-            params.add("/scriptsFolder=" + checkOutPath.getRemote());
+            scriptsFolder = workspace.getRemote();
+        }
+        return buildDatabase(build, workspace, launcher, listener, scriptsFolder, getPackageid(), getDbName(), false).isSuccess();
+    }
+
+    // Builds the packages for every listed and discovered scripts folder, several at once.
+    private boolean buildDatabases(final Run<?, ?> build, final FilePath workspace, final Launcher launcher, TaskListener listener)
+            throws IOException, InterruptedException {
+        List<DatabaseFolder> databases = new ArrayList<DatabaseFolder>(DatabaseFolder.parse(getDatabaseList(), "Database list"));
+        if (getDiscoverDatabases()) {
+            for (DatabaseFolder found : DatabaseFolder.discover(workspace)) {
+                boolean listed = false;
+                for (DatabaseFolder database : databases)
+                    listed |= database.getSubfolder().equalsIgnoreCase(found.getSubfolder());
+                if (!listed)
+                    databases.add(found);
+            }
+        }
+        Set<String> packageids = new HashSet<String>();
+        for (DatabaseFolder database : databases) {
+            if (!packageids.add(database.getPackageid().toLowerCase()))
+                throw new AbortException("More than one scripts folder would build package " + database.getPackageid() + ".");
+        }
+        if (databases.isEmpty()) {
+            listener.getLogger().println("No databases were listed or found.");
+            return true;
+        }
+
+        listener.getLogger().println("Building " + databases.size() + " database packages, at most " + getMaxParallelBuilds() + " at a time.");
+        final String settingsHash = Util.getDigestOf(getAdditionalParams());
+        long start = System.currentTimeMillis();
+        DatabaseBuildFanOut fanOut = new DatabaseBuildFanOut(listener, getMaxParallelBuilds());
+        List<DatabaseBuildFanOut.DatabaseResult> results = fanOut.run(databases, new DatabaseBuildFanOut.DatabaseCommand() {
+            public DatabaseBuildFanOut.Status build(DatabaseFolder database, TaskListener databaseListener) {
+                // Each database gets its own temporary database, so that concurrent builds don't collide.
+                String tempDbName = getDbName().isEmpty() ? "" : getDbName() + "_" + database.getPackageid();
+                DatabaseBuildFanOut.Status status = buildDatabase(build, workspace, launcher, databaseListener,
+                        workspace.child(database.getSubfolder()).getRemote(), database.getPackageid(), tempDbName, true);
+                databaseListener.getLogger().println("Finished: " + status);
+                return status;
+            }
+        });
+
+        DatabaseBuildsAction action = new DatabaseBuildsAction(settingsHash, results, System.currentTimeMillis() - start);
+        build.addAction(action);
+        listener.getLogger().println("Built " + action.count("BUILT") + " packages in full and " + action.count("INCREMENTAL")
+                + " incrementally; " + action.count("CACHED") + " came from the build cache, " + action.count("UNCHANGED")
+                + " were unchanged and " + action.count("FAILED") + " failed.");
+        return action.count("FAILED") == 0;
+    }
+
+    // Builds one scripts folder's package into the workspace, reusing an earlier package wherever that's safe, and
+    // keeps it in the package store however it was made.
+    private DatabaseBuildFanOut.Status buildDatabase(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+                                                     String scriptsFolder, String packageid, String tempDbName, boolean skipUnchanged) {
+        FilePath packageFile = workspace.child(Utils.constructPackageFileName(packageid, build.getNumber()));
+        DatabaseBuildFanOut.Status status = makePackage(build, workspace, launcher, listener, scriptsFolder, packageid,
+                tempDbName, skipUnchanged, packageFile);
+
+        if (status.isSuccess() && getStorePackage()) {
+            try {
+                storePackage(build, listener, packageFile, packageid);
+            } catch (IOException e) {
+                listener.getLogger().println("Could not add the package to the package store: " + e.getMessage());
+            } catch (InterruptedException e) {
+                listener.getLogger().println("InterruptedException");
+                Thread.currentThread().interrupt();
+                return DatabaseBuildFanOut.Status.FAILED;
+            }
+        }
+        return status;
+    }
+
+    private DatabaseBuildFanOut.Status makePackage(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+                                                   String scriptsFolder, String packageid, String tempDbName,
+                                                   boolean skipUnchanged, FilePath packageFile) {
+        FilePath checkOutPath = workspace;
+
+        ScriptsFolderManifest manifest;
+        try {
+            manifest = fingerprint(build, checkOutPath, new FilePath(checkOutPath.getChannel(), scriptsFolder), packageid);
+        } catch (IOException e) {
+            listener.getLogger().println("Could not fingerprint the scripts folder: " + e.getMessage());
+            manifest = null;
+        } catch (InterruptedException e) {
+            listener.getLogger().println("InterruptedException");
+            Thread.currentThread().interrupt();
+            return DatabaseBuildFanOut.Status.FAILED;
+        }
+
+        if (skipUnchanged && manifest != null) {
+            try {
+                if (reuseUnchangedPackage(build, workspace, listener, manifest, packageFile, packageid)) {
+                    if (getIncremental())
+                        build.addAction(IncrementalBuildAction.fullBuild(packageid, computeSettingsHash(packageid), "the last successful build's package was reused"));
+                    return DatabaseBuildFanOut.Status.UNCHANGED;
+                }
+            } catch (IOException e) {
+                listener.getLogger().println("Could not reuse the package from the last successful build: " + e.getMessage());
+            } catch (InterruptedException e) {
+                listener.getLogger().println("InterruptedException");
+                Thread.currentThread().interrupt();
+                return DatabaseBuildFanOut.Status.FAILED;
+            }
+        }
+
+        String cacheKey = null;
+        if (getUseBuildCache() && manifest != null) {
+            try {
+                cacheKey = computeCacheKey(manifest, packageid);
+                if (restoreFromCache(build, listener, cacheKey, packageFile, packageid)) {
+                    if (getIncremental())
+                        build.addAction(IncrementalBuildAction.fullBuild(packageid, computeSettingsHash(packageid), "it was reused from the build cache"));
+                    return DatabaseBuildFanOut.Status.CACHED;
+                }
+            } catch (IOException e) {
+                listener.getLogger().println("Could not use the SQL CI build cache: " + e.getMessage());
+                cacheKey = null;
+            } catch (InterruptedException e) {
+                listener.getLogger().println("InterruptedException");
+                Thread.currentThread().interrupt();
+                return DatabaseBuildFanOut.Status.FAILED;
+            }
+        }
+
+        if (getPreValidate() && manifest != null) {
+            try {
+                if (!preValidate(workspace, listener, new FilePath(checkOutPath.getChannel(), scriptsFolder), manifest, packageid))
+                    return DatabaseBuildFanOut.Status.FAILED;
+            } catch (IOException e) {
+                listener.getLogger().println("Could not pre-check the scripts: " + e.getMessage());
+            } catch (InterruptedException e) {
+                listener.getLogger().println("InterruptedException");
+                Thread.currentThread().interrupt();
+                return DatabaseBuildFanOut.Status.FAILED;
+            }
+        }
+
+        DatabaseBuildFanOut.Status status;
+        try {
+            boolean incremental = getIncremental() && manifest != null
+                    && buildIncrementally(build, workspace, launcher, listener, new FilePath(checkOutPath.getChannel(), scriptsFolder),
+                    manifest, packageFile, packageid, tempDbName);
+            status = incremental ? DatabaseBuildFanOut.Status.INCREMENTAL : null;
+        } catch (InterruptedException e) {
+            listener.getLogger().println("InterruptedException");
+            Thread.currentThread().interrupt();
+            return DatabaseBuildFanOut.Status.FAILED;
         }
-        params.add("/packageId=" + getPackageid());
+        if (status == null) {
+            status = runBuild(build, workspace, launcher, listener, scriptsFolder, packageid, tempDbName)
+                    ? DatabaseBuildFanOut.Status.BUILT : DatabaseBuildFanOut.Status.FAILED;
+        }
+
+        if (status.isSuccess() && cacheKey != null) {
+            try {
+                BuildCache.get().store(cacheKey, packageFile, getDescriptor().getBuildCacheSizeMb() * 1024L * 1024L);
+            } catch (IOException e) {
+                listener.getLogger().println("Could not add the package to the SQL CI build cache: " + e.getMessage());
+            } catch (InterruptedException e) {
+                listener.getLogger().println("InterruptedException");
+                Thread.currentThread().interrupt();
+                return DatabaseBuildFanOut.Status.FAILED;
+            }
+        }
+        return status;
+    }
+
+    // Keeps the package on the controller. It is hashed on the agent, and only copied if no earlier build's package
+    // had the same content.
+    private void storePackage(Run<?, ?> build, TaskListener listener, FilePath packageFile, String packageid)
+            throws IOException, InterruptedException {
+        String contentHash = packageFile.act(new PackageContentHash(false));
+        long sizeBytes = packageFile.length();
+        boolean copied = PackageStore.get().add(contentHash, packageFile, build);
+        build.addAction(new PackageStoreAction(packageid, contentHash, sizeBytes, copied));
+        listener.getLogger().println(copied
+                ? "Added " + packageFile.getName() + " to the package store."
+                : "The package store already has the content of " + packageFile.getName() + ". Nothing was copied.");
+    }
+
+    // Checks the scripts for mistakes that would stop BUILD, so that they fail the build in seconds rather than
+    // after SQL CI has set up a temporary database.
+    private boolean preValidate(FilePath workspace, TaskListener listener, FilePath scriptsFolder, ScriptsFolderManifest manifest,
+                                String packageid) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        FilePath cache = workspace.child(".redgatesqlci").child("prevalidation-" + packageid + ".idx");
+        ScriptPreValidator.Result result = scriptsFolder.act(new ScriptPreValidator(manifest.getHashes(), cache.getRemote()));
+        listener.getLogger().println("Pre-checked " + result.getScriptCount() + " scripts, " + result.getCheckedCount()
+                + " of them changed, in " + Util.getTimeSpanString(System.currentTimeMillis() - start) + ".");
+
+        List<ScriptDiagnostic> diagnostics = result.getDiagnostics();
+        if (diagnostics.isEmpty())
+            return true;
+        for (ScriptDiagnostic diagnostic : diagnostics.subList(0, Math.min(diagnostics.size(), MAX_REPORTED_DIAGNOSTICS)))
+            listener.error(diagnostic.toString());
+        if (diagnostics.size() > MAX_REPORTED_DIAGNOSTICS)
+            listener.error("... and " + (diagnostics.size() - MAX_REPORTED_DIAGNOSTICS) + " more.");
+        listener.error("Found " + diagnostics.size() + " problems in the scripts, so SQL CI was not run.");
+        return false;
+    }
+
+    // Makes the package from the last successful build's package and the scripts that have changed since, once
+    // they and the objects that depend on them have been validated on the temporary database. Says why and returns
+    // false if the whole package has to be built instead.
+    private boolean buildIncrementally(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+                                       FilePath scriptsFolder, ScriptsFolderManifest manifest, FilePath packageFile,
+                                       String packageid, String tempDbName)
+            throws InterruptedException {
+        String settingsHash = computeSettingsHash(packageid);
+        Run<?, ?> base = build.getPreviousSuccessfulBuild();
+        ScriptsFolderManifestAction baseManifest = base == null ? null : ScriptsFolderManifestAction.forPackage(base, packageid);
+        if (baseManifest == null)
+            return fullBuild(build, listener, packageid, settingsHash, "there's no earlier successful build of it");
+        IncrementalBuildAction baseBuild = IncrementalBuildAction.forPackage(base, packageid);
+        if (baseBuild == null || !baseBuild.getSettingsHash().equals(settingsHash))
+            return fullBuild(build, listener, packageid, settingsHash, "build #" + base.getNumber() + " may have used different settings");
+
+        FilePath deltaFolder = workspace.child(".redgatesqlci").child("delta-" + packageid);
+        try {
+            SortedMap<String, String> before = baseManifest.getManifest().getHashes();
+            List<String> changed = new ArrayList<String>();
+            for (Map.Entry<String, String> file : manifest.getHashes().entrySet()) {
+                if (!file.getValue().equals(before.get(file.getKey())))
+                    changed.add(file.getKey());
+            }
+            for (String path : before.keySet()) {
+                if (!manifest.getHashes().containsKey(path))
+                    return fullBuild(build, listener, packageid, settingsHash, path + " has been deleted or renamed since build #" + base.getNumber());
+            }
+
+            FilePath basePackage = basePackage(base, workspace, deltaFolder, baseManifest.getManifest(), packageid);
+            if (basePackage == null)
+                return fullBuild(build, listener, packageid, settingsHash, "the package from build #" + base.getNumber() + " is no longer in the workspace or the build cache");
+
+            FilePath reducedFolder = deltaFolder.child("scripts");
+            DeltaBuildPlanner.Plan plan = scriptsFolder.act(new DeltaBuildPlanner(changed, reducedFolder.getRemote()));
+            if (plan.getFullBuildReason() != null)
+                return fullBuild(build, listener, packageid, settingsHash, plan.getFullBuildReason());
+
+            if (!changed.isEmpty()) {
+                listener.getLogger().println("Validating " + plan.getValidatedObjectCount() + " changed and dependent objects from "
+                        + plan.getCopiedScriptCount() + " of the " + plan.getScriptCount() + " scripts.");
+                if (!runBuild(build, deltaFolder, launcher, listener, reducedFolder.getRemote(), packageid, tempDbName))
+                    return fullBuild(build, listener, packageid, settingsHash, "the changed objects didn't validate on their own, so the whole package is built to confirm it");
+            }
+
+            String patchFailure = basePackage.act(new DeltaPackagePatcher(scriptsFolder.getRemote(), before, changed,
+                    packageFile.getRemote(), "0." + build.getNumber()));
+            if (patchFailure != null)
+                return fullBuild(build, listener, packageid, settingsHash, patchFailure);
+
+            listener.getLogger().println("Made package " + packageFile.getName() + " from the package of build #" + base.getNumber()
+                    + " and " + changed.size() + " changed scripts.");
+            build.addAction(IncrementalBuildAction.incremental(packageid, settingsHash, base.getNumber(), changed.size(), plan));
+            return true;
+        } catch (IOException e) {
+            return fullBuild(build, listener, packageid, settingsHash, "building it incrementally failed: " + e.getMessage());
+        } finally {
+            try {
+                deltaFolder.deleteRecursive();
+            } catch (IOException e) {
+                listener.getLogger().println("Could not delete " + deltaFolder.getRemote() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean fullBuild(Run<?, ?> build, TaskListener listener, String packageid, String settingsHash, String reason) {
+        listener.getLogger().println("Building the whole package, because " + reason + ".");
+        build.addAction(IncrementalBuildAction.fullBuild(packageid, settingsHash, reason));
+        return false;
+    }
+
+    // The package an earlier build made: in the workspace unless it has been cleaned since, else perhaps in the build cache.
+    private FilePath basePackage(Run<?, ?> base, FilePath workspace, FilePath deltaFolder, ScriptsFolderManifest baseManifest,
+                                 String packageid)
+            throws IOException, InterruptedException {
+        FilePath inWorkspace = workspace.child(Utils.constructPackageFileName(packageid, base.getNumber()));
+        if (inWorkspace.exists())
+            return inWorkspace;
+        if (!getUseBuildCache())
+            return null;
+        deltaFolder.mkdirs();
+        FilePath restored = deltaFolder.child("base.nupkg");
+        return BuildCache.get().restore(computeCacheKey(baseManifest, packageid), restored) ? restored : null;
+    }
+
+    // Runs SQL CI's BUILD on a scripts folder, leaving the package in the working directory.
+    private boolean runBuild(Run<?, ?> build, FilePath workingDirectory, Launcher launcher, TaskListener listener, String scriptsFolder,
+                             String packageid, String tempDbName) {
+        ArrayList<String> params = new ArrayList<String>();
+        params.add("BUILD");
+        params.add("/scriptsFolder=" + scriptsFolder);
+        params.add("/packageId=" + packageid);
         params.add("/packageVersion=0." + build.getNumber());
 
         if (!additionalParams.isEmpty())
@@ -117,7 +493,7 @@ public class BuildBuilder extends Builder {
 
         if (getTempServer().equals("sqlServer")) {
             params.add("/temporaryDatabaseServer=" + getServerName());
-            params.add("/temporaryDatabaseName=" + getDbName());
+            params.add("/temporaryDatabaseName=" + tempDbName);
 
             if (getServerAuth().equals("sqlServerAuth")) {
                 params.add("/temporaryDatabaseUserName=" + getUsername());
@@ -125,7 +501,88 @@ public class BuildBuilder extends Builder {
             }
         }
 
-        return Utils.runSQLCIWithParams(build, launcher, listener, params);
+        DatabaseLease lease = null;
+        try {
+            if (getTempServer().equals("pool")) {
+                lease = DatabasePoolManager.get().lease(getPoolName(), build, launcher, listener);
+                lease.addTemporaryDatabaseParams(params);
+            }
+            return Utils.runSQLCIWithParams(build, workingDirectory, launcher, listener, params);
+        } catch (IOException e) {
+            listener.error(e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            listener.getLogger().println("InterruptedException");
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (lease != null)
+                releaseQuietly(lease, launcher, listener);
+        }
+    }
+
+    private static void releaseQuietly(DatabaseLease lease, Launcher launcher, TaskListener listener) {
+        try {
+            DatabasePoolManager.get().release(lease, launcher, listener);
+        } catch (InterruptedException e) {
+            // The pool maintenance task will reclaim the database.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Everything that determines the output of BUILD: the scripts, the package ID written into the
+    // manifest, and the SQL Compare options.
+    private String computeCacheKey(ScriptsFolderManifest manifest, String packageid) {
+        return Util.getDigestOf(manifest.getRootHash() + "\n" + packageid + "\n" + getAdditionalParams());
+    }
+
+    // Everything besides the scripts that determines the output of BUILD.
+    private String computeSettingsHash(String packageid) {
+        return Util.getDigestOf(packageid + "\n" + getAdditionalParams());
+    }
+
+    // Fingerprints the scripts folder on the agent and records the result on the build.
+    private ScriptsFolderManifest fingerprint(Run<?, ?> build, FilePath checkOutPath, FilePath scriptsFolder, String packageid)
+            throws IOException, InterruptedException {
+        FilePath index = checkOutPath.child(".redgatesqlci").child("fingerprints-" + packageid + ".idx");
+        ScriptsFolderManifest manifest = scriptsFolder.act(new ScriptsFolderFingerprinter(index.getRemote()));
+
+        manifest.write(ScriptsFolderManifestAction.manifestFile(build, packageid));
+        build.addAction(new ScriptsFolderManifestAction(packageid, manifest));
+        return manifest;
+    }
+
+    // Copies the last successful build's package if it was built from the same scripts with the same settings.
+    private boolean reuseUnchangedPackage(Run<?, ?> build, FilePath workspace, TaskListener listener, ScriptsFolderManifest manifest,
+                                          FilePath packageFile, String packageid) throws IOException, InterruptedException {
+        Run<?, ?> previous = build.getPreviousSuccessfulBuild();
+        if (previous == null)
+            return false;
+        DatabaseBuildsAction.Database previousBuild = DatabaseBuildsAction.forPackage(previous, packageid, Util.getDigestOf(getAdditionalParams()));
+        ScriptsFolderManifestAction previousManifest = ScriptsFolderManifestAction.forPackage(previous, packageid);
+        if (previousBuild == null || !previousBuild.isSuccess() || previousManifest == null
+                || !previousManifest.getRootHash().equals(manifest.getRootHash()))
+            return false;
+
+        FilePath previousPackage = workspace.child(Utils.constructPackageFileName(packageid, previous.getNumber()));
+        if (!previousPackage.exists())
+            return false;
+        packageFile.copyFrom(previousPackage);
+        packageFile.act(new PackageVersionRewriter("0." + build.getNumber()));
+        listener.getLogger().println("Scripts folder is unchanged since build #" + previous.getNumber() + ". Reusing its package without running SQL CI.");
+        return true;
+    }
+
+    private boolean restoreFromCache(Run<?, ?> build, TaskListener listener, String cacheKey, FilePath packageFile, String packageid)
+            throws IOException, InterruptedException {
+        BuildCache cache = BuildCache.get();
+        boolean hit = cache.restore(cacheKey, packageFile);
+        if (hit) {
+            packageFile.act(new PackageVersionRewriter("0." + build.getNumber()));
+            listener.getLogger().println("Scripts folder is unchanged since a cached build. Reusing package " + packageFile.getName() + " without running SQL CI.");
+        }
+        build.addAction(new BuildCacheAction(packageid, cacheKey, hit, cache.getHits(), cache.getMisses()));
+        return hit;
     }
 
 
@@ -151,6 +608,31 @@ public class BuildBuilder extends Builder {
             load();
         }
 
+        private int buildCacheSizeMb = 1024;
+        public int getBuildCacheSizeMb() {
+            return buildCacheSizeMb;
+        }
+
+        public FormValidation doCheckBuildCacheSizeMb(@QueryParameter String value) throws IOException, ServletException {
+            try {
+                if (Integer.parseInt(value) < 1)
+                    return FormValidation.error("Enter a size of at least 1 MB.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Enter a whole number of megabytes.");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckMaxParallelBuilds(@QueryParameter String value) throws IOException, ServletException {
+            try {
+                if (Integer.parseInt(value) < 1)
+                    return FormValidation.error("Enter at least 1 build.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Enter a whole number of builds.");
+            }
+            return FormValidation.ok();
+        }
+
         public FormValidation doCheckPackageid(@QueryParameter String value) throws IOException, ServletException {
             if (value.length() == 0)
                 return FormValidation.error("Enter a package ID.");
@@ -160,6 +642,10 @@ public class BuildBuilder extends Builder {
         // Since the AJAX callbacks don't give the value of radioblocks, I can't validate the value of the server and
         // database name fields.
 
+        public ListBoxModel doFillPoolNameItems() {
+            return SqlCiGlobalConfiguration.get().poolNameItems();
+        }
+
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
             // Indicates that this builder can be used with all kinds of project types 
             return true;
@@ -176,6 +662,7 @@ public class BuildBuilder extends Builder {
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
             // To persist global configuration information,
             // set that to properties and call save().
+            buildCacheSizeMb = formData.optInt("buildCacheSizeMb", 1024);
             save();
             return super.configure(req,formData);
         }
@@ -0,0 +1,163 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import jenkins.model.Jenkins;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide store of built packages, keyed by the hash of everything that goes into a BUILD.
+ * Entries are evicted least-recently-used first once the store grows past its size limit.
+ */
+public class BuildCache {
+    private static final Logger LOGGER = Logger.getLogger(BuildCache.class.getName());
+
+    private static final String ENTRY_SUFFIX = ".nupkg";
+
+    private static BuildCache instance;
+
+    public static synchronized BuildCache get() {
+        if (instance == null)
+            instance = new BuildCache(new File(Jenkins.getInstance().getRootDir(), "redgatesqlci-build-cache"));
+        return instance;
+    }
+
+    private final File directory;
+
+    // Access-ordered, so iteration starts at the least recently used entry. Values are sizes in bytes.
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    BuildCache(File directory) {
+        this.directory = directory;
+        load();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Copies the cached package for {@code key} to {@code target}.
+     * @return false, and counts a miss, if nothing is cached for the key.
+     */
+    public boolean restore(String key, FilePath target) throws IOException, InterruptedException {
+        File entry;
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                misses.incrementAndGet();
+                return false;
+            }
+            entry = entryFile(key);
+            entry.setLastModified(System.currentTimeMillis());
+        }
+
+        try {
+            target.copyFrom(new FilePath(entry));
+        } catch (IOException e) {
+            // The entry was evicted while we were copying it.
+            LOGGER.log(Level.FINE, "Could not restore build cache entry " + key, e);
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Adds the package at {@code source} to the cache, then evicts entries until the cache fits in {@code maxBytes}.
+     * The newest entry is always kept, even if it is larger than the limit on its own.
+     */
+    public void store(String key, FilePath source, long maxBytes) throws IOException, InterruptedException {
+        File temp = File.createTempFile(key, ".tmp", directory);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                source.copyTo(out);
+            } finally {
+                out.close();
+            }
+
+            synchronized (this) {
+                File entry = entryFile(key);
+                Long previousSize = entries.remove(key);
+                if (previousSize != null)
+                    totalBytes -= previousSize;
+                if (entry.exists() && !entry.delete())
+                    throw new IOException("Could not replace build cache entry " + entry);
+                if (!temp.renameTo(entry))
+                    throw new IOException("Could not move " + temp + " to " + entry);
+
+                entries.put(key, entry.length());
+                totalBytes += entry.length();
+                evict(maxBytes);
+            }
+        } finally {
+            if (temp.exists())
+                temp.delete();
+        }
+    }
+
+    private void evict(long maxBytes) {
+        Iterator<Map.Entry<String, Long>> leastRecentlyUsed = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && entries.size() > 1) {
+            Map.Entry<String, Long> victim = leastRecentlyUsed.next();
+            if (!entryFile(victim.getKey()).delete())
+                LOGGER.warning("Could not delete evicted build cache entry " + victim.getKey());
+            totalBytes -= victim.getValue();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(directory, key + ENTRY_SUFFIX);
+    }
+
+    // Rebuild the index from disk, using modification times as the access order.
+    private synchronized void load() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.warning("Could not create build cache directory " + directory);
+            return;
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(ENTRY_SUFFIX)) {
+                entries.put(name.substring(0, name.length() - ENTRY_SUFFIX.length()), file.length());
+                totalBytes += file.length();
+            } else if (name.endsWith(".tmp")) {
+                file.delete();
+            }
+        }
+    }
+}
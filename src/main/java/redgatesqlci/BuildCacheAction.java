@@ -0,0 +1,54 @@
+package redgatesqlci;
+
+import hudson.model.Action;
+
+/**
+ * Records whether a build reused a cached package, and the cache's hit and miss counts at the time.
+ */
+public class BuildCacheAction implements Action {
+    private final String packageid;
+    private final String key;
+    private final boolean hit;
+    private final long totalHits;
+    private final long totalMisses;
+
+    public BuildCacheAction(String packageid, String key, boolean hit, long totalHits, long totalMisses) {
+        this.packageid = packageid;
+        this.key = key;
+        this.hit = hit;
+        this.totalHits = totalHits;
+        this.totalMisses = totalMisses;
+    }
+
+    public String getPackageid() {
+        return packageid;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public boolean isHit() {
+        return hit;
+    }
+
+    public long getTotalHits() {
+        return totalHits;
+    }
+
+    public long getTotalMisses() {
+        return totalMisses;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "SQL CI build cache";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
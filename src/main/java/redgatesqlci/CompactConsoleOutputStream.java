@@ -0,0 +1,128 @@
+package redgatesqlci;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Takes sqlci's output in compact console mode. All of it goes to the full log, while only warnings and errors
+ * go on to the build log. The last lines are kept in a fixed-size ring buffer, to print if the run fails.
+ * <p>
+ * Memory use doesn't grow with the amount of output: lines longer than {@link #MAX_LINE_LENGTH} are cut short
+ * everywhere but in the full log, and only so many warnings and errors are passed on.
+ */
+public class CompactConsoleOutputStream extends OutputStream {
+    static final int MAX_LINE_LENGTH = 1024;
+    private static final int MAX_FORWARDED_LINES = 1000;
+
+    private final OutputStream fullLog;
+    private final OutputStream console;
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength;
+    private boolean lineStarted;
+
+    // The last lines, oldest first from tailNext once the buffer has wrapped.
+    private final byte[][] tail;
+    private final int[] tailLengths;
+    private int tailNext;
+
+    private long lineCount;
+    private int problemCount;
+
+    /**
+     * @param fullLog   where all the output goes; closed along with this stream.
+     * @param console   where warnings and errors go; left open.
+     * @param tailLines how many of the last lines to keep.
+     */
+    public CompactConsoleOutputStream(OutputStream fullLog, OutputStream console, int tailLines) {
+        this.fullLog = fullLog;
+        this.console = console;
+        this.tail = new byte[Math.max(0, tailLines)][];
+        this.tailLengths = new int[tail.length];
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        fullLog.write(b);
+        scan((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        fullLog.write(b, off, len);
+        for (int i = off; i < off + len; i++)
+            scan(b[i]);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        fullLog.flush();
+        console.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (lineStarted)
+            endLine();
+        fullLog.close();
+        console.flush();
+    }
+
+    public synchronized long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * The number of warning and error lines, including any that weren't passed on to the build log.
+     */
+    public synchronized int getProblemCount() {
+        return problemCount;
+    }
+
+    /**
+     * Prints the last lines of output, oldest first.
+     */
+    public synchronized void printTail(PrintStream out) {
+        int kept = (int) Math.min(lineCount, tail.length);
+        out.println("Last " + kept + " of " + lineCount + " lines of SQL CI output:");
+        for (int i = 0; i < kept; i++) {
+            int slot = (tailNext - kept + i + tail.length) % tail.length;
+            out.write(tail[slot], 0, tailLengths[slot]);
+            out.println();
+        }
+    }
+
+    private void scan(byte b) throws IOException {
+        if (b == '\n') {
+            endLine();
+        } else if (b != '\r') {
+            lineStarted = true;
+            if (lineLength < line.length)
+                line[lineLength++] = b;
+        }
+    }
+
+    private void endLine() throws IOException {
+        lineCount++;
+        if (tail.length > 0) {
+            if (tail[tailNext] == null)
+                tail[tailNext] = new byte[MAX_LINE_LENGTH];
+            System.arraycopy(line, 0, tail[tailNext], 0, lineLength);
+            tailLengths[tailNext] = lineLength;
+            tailNext = (tailNext + 1) % tail.length;
+        }
+
+        if (SqlCiOutputParser.isError(line, lineLength) || SqlCiOutputParser.isWarning(line, lineLength)) {
+            problemCount++;
+            if (problemCount <= MAX_FORWARDED_LINES) {
+                console.write(line, 0, lineLength);
+                console.write('\n');
+            } else if (problemCount == MAX_FORWARDED_LINES + 1) {
+                console.write(("Further warnings and errors are only in the full log.\n").getBytes("UTF-8"));
+            }
+        }
+        lineLength = 0;
+        lineStarted = false;
+    }
+}
@@ -0,0 +1,83 @@
+package redgatesqlci;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Builds the packages for several scripts folders at once, at most {@code maxParallel} at a time,
+ * each with its own prefixed log.
+ */
+public class DatabaseBuildFanOut {
+
+    /**
+     * Builds one database's package.
+     */
+    public interface DatabaseCommand {
+        Status build(DatabaseFolder database, TaskListener listener) throws IOException, InterruptedException;
+    }
+
+    /**
+     * BUILT means SQL CI built the whole package; INCREMENTAL that it was made from an earlier package and the changed
+     * scripts; CACHED that it came from the build cache; UNCHANGED that the last successful build's package was reused
+     * because nothing had changed.
+     */
+    public enum Status {
+        BUILT, INCREMENTAL, CACHED, UNCHANGED, FAILED;
+
+        public boolean isSuccess() {
+            return this != FAILED;
+        }
+    }
+
+    public static class DatabaseResult {
+        private final DatabaseFolder database;
+        private final Status status;
+        private final long elapsedMillis;
+
+        DatabaseResult(DatabaseFolder database, Status status, long elapsedMillis) {
+            this.database = database;
+            this.status = status;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public DatabaseFolder getDatabase() {
+            return database;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    private final TaskListener listener;
+    private final int maxParallel;
+
+    public DatabaseBuildFanOut(TaskListener listener, int maxParallel) {
+        this.listener = listener;
+        this.maxParallel = maxParallel;
+    }
+
+    public List<DatabaseResult> run(List<DatabaseFolder> databases, final DatabaseCommand command) throws IOException, InterruptedException {
+        // One database failing to build doesn't stop the others.
+        FanOut<DatabaseFolder, DatabaseResult> fanOut = new FanOut<DatabaseFolder, DatabaseResult>(listener, maxParallel) {
+            @Override
+            protected DatabaseResult failed(int index, DatabaseFolder database, IOException e, TaskListener databaseListener) {
+                databaseListener.error(e.getMessage());
+                return new DatabaseResult(database, Status.FAILED, 0);
+            }
+        };
+        return fanOut.run(databases, new FanOut.Task<DatabaseFolder, DatabaseResult>() {
+            public DatabaseResult run(int index, DatabaseFolder database, TaskListener databaseListener) throws IOException, InterruptedException {
+                long start = System.currentTimeMillis();
+                Status status = command.build(database, databaseListener);
+                return new DatabaseResult(database, status, System.currentTimeMillis() - start);
+            }
+        });
+    }
+}
@@ -0,0 +1,110 @@
+package redgatesqlci;
+
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows how each of the packages built by one multi-database Build step went.
+ */
+public class DatabaseBuildsAction implements Action {
+
+    public static class Database {
+        private final String packageid;
+        private final String subfolder;
+        private final String status;
+        private final long elapsedMillis;
+
+        Database(String packageid, String subfolder, String status, long elapsedMillis) {
+            this.packageid = packageid;
+            this.subfolder = subfolder;
+            this.status = status;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public String getPackageid() {
+            return packageid;
+        }
+
+        public String getSubfolder() {
+            return subfolder;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public boolean isSuccess() {
+            return DatabaseBuildFanOut.Status.valueOf(status).isSuccess();
+        }
+
+        public String getDuration() {
+            return Util.getTimeSpanString(elapsedMillis);
+        }
+    }
+
+    private final String settingsHash;
+    private final long elapsedMillis;
+    private final List<Database> databases;
+
+    /**
+     * @param settingsHash identifies the step settings, besides the scripts, that the packages were built with.
+     */
+    public DatabaseBuildsAction(String settingsHash, List<DatabaseBuildFanOut.DatabaseResult> results, long elapsedMillis) {
+        this.settingsHash = settingsHash;
+        this.elapsedMillis = elapsedMillis;
+        this.databases = new ArrayList<Database>();
+        for (DatabaseBuildFanOut.DatabaseResult result : results) {
+            databases.add(new Database(result.getDatabase().getPackageid(), result.getDatabase().getSubfolder(),
+                    result.getStatus().name(), result.getElapsedMillis()));
+        }
+    }
+
+    /**
+     * The outcome {@code build} recorded for {@code packageid} in a step with the given settings, or null if it has none.
+     */
+    public static Database forPackage(Run<?, ?> build, String packageid, String settingsHash) {
+        for (DatabaseBuildsAction action : build.getActions(DatabaseBuildsAction.class)) {
+            if (!action.settingsHash.equals(settingsHash))
+                continue;
+            for (Database database : action.databases) {
+                if (database.getPackageid().equals(packageid))
+                    return database;
+            }
+        }
+        return null;
+    }
+
+    public String getDuration() {
+        return Util.getTimeSpanString(elapsedMillis);
+    }
+
+    public List<Database> getDatabases() {
+        return Collections.unmodifiableList(databases);
+    }
+
+    public int count(String status) {
+        int count = 0;
+        for (Database database : databases) {
+            if (database.getStatus().equals(status))
+                count++;
+        }
+        return count;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "SQL CI database builds";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,83 @@
+package redgatesqlci;
+
+import hudson.AbortException;
+import hudson.FilePath;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A scripts folder in the workspace and the ID of the package built from it.
+ */
+public class DatabaseFolder {
+    // SQL Source Control writes this to the root of every scripts folder.
+    private static final String DATABASE_INFO = "RedGateDatabaseInfo.xml";
+
+    private final String subfolder;
+    private final String packageid;
+
+    public DatabaseFolder(String subfolder, String packageid) {
+        this.subfolder = subfolder.replace('\\', '/').replaceAll("^/+|/+$", "");
+        this.packageid = packageid;
+    }
+
+    /**
+     * The folder's path relative to the workspace, with forward slashes.
+     */
+    public String getSubfolder() {
+        return subfolder;
+    }
+
+    public String getPackageid() {
+        return packageid;
+    }
+
+    @Override
+    public String toString() {
+        return packageid;
+    }
+
+    /**
+     * Reads one "subfolder,packageid" pair per line. Blank lines and lines starting with # are ignored.
+     *
+     * @param source where the list came from, for error messages.
+     */
+    public static List<DatabaseFolder> parse(String text, String source) throws AbortException {
+        List<DatabaseFolder> databases = new ArrayList<DatabaseFolder>();
+        String[] lines = text.split("\\r?\\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            int comma = line.lastIndexOf(',');
+            if (comma <= 0 || comma == line.length() - 1)
+                throw new AbortException(source + " line " + (i + 1) + ": expected subfolder,packageid but found \"" + line + "\".");
+            databases.add(new DatabaseFolder(line.substring(0, comma).trim(), line.substring(comma + 1).trim()));
+        }
+        return databases;
+    }
+
+    /**
+     * Finds every scripts folder below {@code root}, naming each package after its folder.
+     * Hidden folders, such as our own working files and VCS metadata, aren't searched.
+     */
+    public static List<DatabaseFolder> discover(FilePath root) throws IOException, InterruptedException {
+        List<DatabaseFolder> databases = new ArrayList<DatabaseFolder>();
+        String rootPath = root.getRemote();
+        for (FilePath info : root.list("**/" + DATABASE_INFO, "**/.*/**")) {
+            FilePath folder = info.getParent();
+            if (folder.getRemote().length() <= rootPath.length())
+                continue;
+            databases.add(new DatabaseFolder(folder.getRemote().substring(rootPath.length()), folder.getName()));
+        }
+        Collections.sort(databases, new Comparator<DatabaseFolder>() {
+            public int compare(DatabaseFolder a, DatabaseFolder b) {
+                return a.getSubfolder().compareToIgnoreCase(b.getSubfolder());
+            }
+        });
+        return databases;
+    }
+}
@@ -0,0 +1,35 @@
+package redgatesqlci;
+
+import java.util.List;
+
+/**
+ * A temporary database a build has borrowed from a {@link DatabasePool}. Return it with
+ * {@link DatabasePoolManager#release}.
+ */
+public class DatabaseLease {
+    private final DatabasePool pool;
+    private final String databaseName;
+
+    DatabaseLease(DatabasePool pool, String databaseName) {
+        this.pool = pool;
+        this.databaseName = databaseName;
+    }
+
+    public DatabasePool getPool() {
+        return pool;
+    }
+
+    public String getDatabaseName() {
+        return databaseName;
+    }
+
+    public void addTemporaryDatabaseParams(List<String> params) {
+        params.add("/temporaryDatabaseServer=" + pool.getServerName());
+        params.add("/temporaryDatabaseName=" + databaseName);
+
+        if (pool.usesSqlServerAuth()) {
+            params.add("/temporaryDatabaseUserName=" + pool.getUsername());
+            params.add("/temporaryDatabasePassword=" + pool.getPassword());
+        }
+    }
+}
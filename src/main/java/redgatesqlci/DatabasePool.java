@@ -0,0 +1,102 @@
+package redgatesqlci;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import java.util.regex.Pattern;
+
+/**
+ * Configuration of a pool of temporary databases on one SQL Server, shared by every job that builds or tests against it.
+ */
+public class DatabasePool extends AbstractDescribableImpl<DatabasePool> {
+
+    static final Pattern VALID_PREFIX = Pattern.compile("[A-Za-z0-9_]+");
+
+    private final String name;
+    public String getName() {
+        return name;
+    }
+
+    private final String serverName;
+    public String getServerName() {
+        return serverName;
+    }
+
+    // Blank for Windows Authentication.
+    private final String username;
+    public String getUsername() {
+        return username;
+    }
+
+    private final String password;
+    public String getPassword() {
+        return password;
+    }
+
+    private final String databasePrefix;
+    public String getDatabasePrefix() {
+        return databasePrefix;
+    }
+
+    private final int minSize;
+    public int getMinSize() {
+        return minSize;
+    }
+
+    private final int maxSize;
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    private final int idleMinutes;
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    @DataBoundConstructor
+    public DatabasePool(String name, String serverName, String username, String password, String databasePrefix,
+                        int minSize, int maxSize, int idleMinutes) {
+        this.name = name;
+        this.serverName = serverName;
+        this.username = username;
+        this.password = password;
+        this.databasePrefix = databasePrefix;
+        this.minSize = Math.max(0, minSize);
+        this.maxSize = Math.max(Math.max(1, minSize), maxSize);
+        this.idleMinutes = Math.max(1, idleMinutes);
+    }
+
+    public boolean usesSqlServerAuth() {
+        return username != null && !username.isEmpty();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<DatabasePool> {
+
+        public FormValidation doCheckName(@QueryParameter String value) {
+            if (value.length() == 0)
+                return FormValidation.error("Enter a pool name.");
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckServerName(@QueryParameter String value) {
+            if (value.length() == 0)
+                return FormValidation.error("Enter a server name.");
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckDatabasePrefix(@QueryParameter String value) {
+            if (!VALID_PREFIX.matcher(value).matches())
+                return FormValidation.error("Use only letters, digits and underscores.");
+            return FormValidation.ok();
+        }
+
+        public String getDisplayName() {
+            return "Temporary database pool";
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package redgatesqlci;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+
+/**
+ * Reclaims pooled temporary databases from aborted builds and evicts idle ones.
+ */
+@Extension
+public class DatabasePoolMaintenance extends AsyncPeriodicWork {
+
+    public DatabasePoolMaintenance() {
+        super("Redgate SQL CI database pool maintenance");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) {
+        DatabasePoolManager.get().maintain();
+    }
+}
@@ -0,0 +1,372 @@
+package redgatesqlci;
+
+import hudson.AbortException;
+import hudson.Launcher;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.logging.Logger;
+
+/**
+ * Hands out the databases of each {@link DatabasePool} to builds, and takes them back.
+ * <p>
+ * A database is created, and snapshotted while still empty, the first time it's needed. When a build returns it,
+ * it's restored from the snapshot, which is far cheaper than dropping and recreating it. A database whose build
+ * vanished without returning it is marked dirty by {@link DatabasePoolMaintenance} and restored before it's next
+ * handed out. The T-SQL all runs on the agents of the builds using the pool, because the controller may not be able
+ * to reach the SQL Server.
+ */
+public class DatabasePoolManager {
+    private static final Logger LOGGER = Logger.getLogger(DatabasePoolManager.class.getName());
+
+    private static final long WAIT_INTERVAL_MS = 10 * 1000;
+
+    // How long a build waits to borrow several databases together before it settles for fewer.
+    static final long PARTIAL_LEASE_WAIT_MS = 5 * 60 * 1000;
+
+    private static final DatabasePoolManager INSTANCE = new DatabasePoolManager();
+
+    public static DatabasePoolManager get() {
+        return INSTANCE;
+    }
+
+    private enum State { IDLE, LEASED }
+
+    private static class PooledDatabase {
+        final String name;
+        State state = State.LEASED;
+        boolean provisioned;
+        boolean dirty;
+        String leasedBy;
+        long idleSince;
+
+        PooledDatabase(String name) {
+            this.name = name;
+        }
+    }
+
+    private static class PoolState {
+        final List<PooledDatabase> databases = new ArrayList<PooledDatabase>();
+        // Evicted databases, dropped by the next build that uses the pool.
+        final List<String> pendingDrops = new ArrayList<String>();
+    }
+
+    private final Map<String, PoolState> pools = new HashMap<String, PoolState>();
+
+    private synchronized PoolState state(String poolName) {
+        PoolState state = pools.get(poolName);
+        if (state == null) {
+            state = new PoolState();
+            pools.put(poolName, state);
+        }
+        return state;
+    }
+
+    /**
+     * Borrows a database from the named pool, waiting for one to be returned if all are in use.
+     */
+    public DatabaseLease lease(String poolName, Run<?, ?> build, Launcher launcher, TaskListener listener)
+            throws IOException, InterruptedException {
+        return lease(poolName, 1, build, launcher, listener).get(0);
+    }
+
+    /**
+     * Borrows up to {@code count} databases from the named pool, all at once, so that builds never hold part of a
+     * pool while they wait for the rest of it. No more than the pool's size are borrowed. If they can't all be had
+     * together within {@link #PARTIAL_LEASE_WAIT_MS}, as many as are free are borrowed instead, which is at least one.
+     */
+    public List<DatabaseLease> lease(String poolName, int count, Run<?, ?> build, Launcher launcher, TaskListener listener)
+            throws IOException, InterruptedException {
+        DatabasePool pool = SqlCiGlobalConfiguration.get().getPool(poolName);
+        if (pool == null)
+            throw new AbortException("There is no temporary database pool called " + poolName + ".");
+        if (!DatabasePool.VALID_PREFIX.matcher(pool.getDatabasePrefix()).matches())
+            throw new AbortException("Temporary database pool " + poolName + " has an invalid database name prefix.");
+
+        PoolState state = state(poolName);
+        SqlCmd sqlCmd = new SqlCmd(pool.getServerName(), pool.getUsername(), pool.getPassword());
+        int wanted = Math.max(1, Math.min(count, pool.getMaxSize()));
+
+        List<PooledDatabase> taken = new ArrayList<PooledDatabase>();
+        List<String> drops;
+        boolean announcedWait = false;
+        long waitStart = System.currentTimeMillis();
+        synchronized (state) {
+            int available;
+            while ((available = available(state, pool)) < wanted
+                    && (available == 0 || System.currentTimeMillis() - waitStart < PARTIAL_LEASE_WAIT_MS)) {
+                if (!announcedWait) {
+                    listener.getLogger().println("Waiting for " + (wanted == 1 ? "a database" : wanted + " databases") + " in pool "
+                            + poolName + ", which has " + available + " of its " + pool.getMaxSize() + " free.");
+                    announcedWait = true;
+                }
+                state.wait(WAIT_INTERVAL_MS);
+            }
+            for (int i = 0; i < Math.min(wanted, available); i++)
+                taken.add(take(state, pool, build));
+            drops = new ArrayList<String>(state.pendingDrops);
+            state.pendingDrops.clear();
+        }
+
+        List<DatabaseLease> leases = new ArrayList<DatabaseLease>();
+        boolean leased = false;
+        try {
+            for (String drop : drops) {
+                listener.getLogger().println("Dropping idle pooled database " + drop + ".");
+                if (!sqlCmd.run(launcher, listener, dropSql(drop)))
+                    LOGGER.warning("Could not drop idle pooled database " + drop + " on " + pool.getServerName());
+            }
+
+            for (PooledDatabase database : taken) {
+                prepare(pool, state, sqlCmd, database, launcher, listener);
+                listener.getLogger().println("Using pooled database " + database.name + " from pool " + poolName + ".");
+                leases.add(new DatabaseLease(pool, database.name));
+            }
+            warmUp(pool, state, sqlCmd, build, launcher, listener);
+            leased = true;
+            return leases;
+        } finally {
+            if (!leased)
+                putBack(state, taken);
+        }
+    }
+
+    // How many databases could be taken now: the idle ones, and the ones the pool has room to create.
+    private static int available(PoolState state, DatabasePool pool) {
+        int idle = 0;
+        for (PooledDatabase database : state.databases) {
+            if (database.state == State.IDLE)
+                idle++;
+        }
+        return idle + Math.max(0, pool.getMaxSize() - state.databases.size());
+    }
+
+    // Creates the database, or resets it if it wasn't returned cleanly. A database that can't be made ready, for
+    // whatever reason, is dropped rather than left leased forever.
+    private static void prepare(DatabasePool pool, PoolState state, SqlCmd sqlCmd, PooledDatabase database,
+                                Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        boolean ready = false;
+        try {
+            if (!database.provisioned) {
+                listener.getLogger().println("Creating pooled database " + database.name + " on " + pool.getServerName() + ".");
+                ready = sqlCmd.run(launcher, listener, provisionSql(database.name));
+            } else if (database.dirty) {
+                listener.getLogger().println("Resetting pooled database " + database.name + ", which was not returned cleanly.");
+                ready = sqlCmd.run(launcher, listener, resetSql(database.name));
+            } else {
+                ready = true;
+            }
+        } finally {
+            synchronized (state) {
+                if (ready) {
+                    database.provisioned = true;
+                    database.dirty = false;
+                } else {
+                    discard(state, database);
+                }
+            }
+        }
+        if (!ready)
+            throw new AbortException("Could not prepare pooled database " + database.name + ".");
+    }
+
+    // Returns databases that were taken but won't be used after all. Ones that were never created are dropped.
+    private static void putBack(PoolState state, List<PooledDatabase> databases) {
+        synchronized (state) {
+            for (PooledDatabase database : databases) {
+                if (!state.databases.contains(database))
+                    continue;
+                if (database.provisioned) {
+                    database.state = State.IDLE;
+                    database.leasedBy = null;
+                    database.idleSince = System.currentTimeMillis();
+                } else {
+                    discard(state, database);
+                }
+            }
+            state.notifyAll();
+        }
+    }
+
+    // Must hold the lock on state.
+    private static void discard(PoolState state, PooledDatabase database) {
+        state.databases.remove(database);
+        state.pendingDrops.add(database.name);
+        state.notifyAll();
+    }
+
+    /**
+     * Returns a database to its pool, resetting it for the next build.
+     */
+    public void release(DatabaseLease lease, Launcher launcher, TaskListener listener) throws InterruptedException {
+        DatabasePool pool = lease.getPool();
+        SqlCmd sqlCmd = new SqlCmd(pool.getServerName(), pool.getUsername(), pool.getPassword());
+
+        boolean reset;
+        try {
+            reset = sqlCmd.run(launcher, listener, resetSql(lease.getDatabaseName()));
+        } catch (IOException e) {
+            listener.getLogger().println("Could not reset pooled database " + lease.getDatabaseName() + ": " + e.getMessage());
+            reset = false;
+        }
+
+        PoolState state = state(pool.getName());
+        synchronized (state) {
+            for (PooledDatabase database : state.databases) {
+                if (database.name.equals(lease.getDatabaseName())) {
+                    database.state = State.IDLE;
+                    database.dirty = !reset;
+                    database.leasedBy = null;
+                    database.idleSince = System.currentTimeMillis();
+                }
+            }
+            state.notifyAll();
+        }
+    }
+
+    // Prefers a clean idle database, then a dirty one, then a new one if the pool isn't full.
+    private static PooledDatabase take(PoolState state, DatabasePool pool, Run<?, ?> build) {
+        PooledDatabase chosen = null;
+        for (PooledDatabase database : state.databases) {
+            if (database.state == State.IDLE && (chosen == null || chosen.dirty && !database.dirty))
+                chosen = database;
+        }
+
+        if (chosen == null) {
+            if (state.databases.size() >= pool.getMaxSize())
+                return null;
+            chosen = new PooledDatabase(unusedName(state, pool));
+            state.databases.add(chosen);
+        }
+
+        chosen.state = State.LEASED;
+        chosen.leasedBy = build.getExternalizableId();
+        return chosen;
+    }
+
+    private static String unusedName(PoolState state, DatabasePool pool) {
+        Set<String> used = new HashSet<String>(state.pendingDrops);
+        for (PooledDatabase database : state.databases)
+            used.add(database.name);
+        for (int i = 1; ; i++) {
+            String name = pool.getDatabasePrefix() + "_" + i;
+            if (!used.contains(name))
+                return name;
+        }
+    }
+
+    // Creates databases until the pool holds its minimum, so later builds don't wait for them. Each is leased by
+    // the build creating it until it's ready, so that maintenance can reclaim it if the build goes away.
+    private void warmUp(DatabasePool pool, PoolState state, SqlCmd sqlCmd, Run<?, ?> build, Launcher launcher, TaskListener listener)
+            throws IOException, InterruptedException {
+        while (true) {
+            PooledDatabase database;
+            synchronized (state) {
+                if (state.databases.size() >= pool.getMinSize())
+                    return;
+                database = new PooledDatabase(unusedName(state, pool));
+                database.leasedBy = build.getExternalizableId();
+                state.databases.add(database);
+            }
+
+            listener.getLogger().println("Creating pooled database " + database.name + " to bring pool " + pool.getName() + " up to its minimum size.");
+            boolean provisioned = false;
+            try {
+                provisioned = sqlCmd.run(launcher, listener, provisionSql(database.name));
+            } finally {
+                synchronized (state) {
+                    if (provisioned) {
+                        database.provisioned = true;
+                        database.state = State.IDLE;
+                        database.leasedBy = null;
+                        database.idleSince = System.currentTimeMillis();
+                        state.notifyAll();
+                    } else {
+                        discard(state, database);
+                    }
+                }
+            }
+            if (!provisioned)
+                return;
+        }
+    }
+
+    /**
+     * Marks databases leased by builds that are no longer running as dirty and idle, and schedules databases that
+     * have been idle too long for dropping, down to each pool's minimum size.
+     */
+    void maintain() {
+        long now = System.currentTimeMillis();
+        List<String> poolNames;
+        synchronized (this) {
+            poolNames = new ArrayList<String>(pools.keySet());
+        }
+
+        for (String poolName : poolNames) {
+            DatabasePool pool = SqlCiGlobalConfiguration.get().getPool(poolName);
+            PoolState state = state(poolName);
+            synchronized (state) {
+                for (PooledDatabase database : new ArrayList<PooledDatabase>(state.databases)) {
+                    if (database.state != State.LEASED || database.leasedBy == null || isRunning(database.leasedBy))
+                        continue;
+                    LOGGER.warning("Build " + database.leasedBy + " did not return pooled database " + database.name + ". Reclaiming it.");
+                    if (!database.provisioned) {
+                        // It may be half created, so it's dropped rather than handed out.
+                        discard(state, database);
+                        continue;
+                    }
+                    database.state = State.IDLE;
+                    database.dirty = true;
+                    database.leasedBy = null;
+                    database.idleSince = now;
+                }
+
+                int minSize = pool == null ? 0 : pool.getMinSize();
+                long idleLimit = pool == null ? 0 : pool.getIdleMinutes() * 60L * 1000L;
+                Iterator<PooledDatabase> databases = state.databases.iterator();
+                while (databases.hasNext() && state.databases.size() > minSize) {
+                    PooledDatabase database = databases.next();
+                    if (database.state == State.IDLE && now - database.idleSince > idleLimit) {
+                        databases.remove();
+                        state.pendingDrops.add(database.name);
+                    }
+                }
+                state.notifyAll();
+            }
+        }
+    }
+
+    private static boolean isRunning(String externalizableId) {
+        Run<?, ?> build = Run.fromExternalizableId(externalizableId);
+        return build != null && build.isBuilding();
+    }
+
+    private static String provisionSql(String databaseName) {
+        String snapshot = databaseName + "_snapshot";
+        return "IF DB_ID(" + SqlCmd.quoteString(snapshot) + ") IS NOT NULL DROP DATABASE " + SqlCmd.quoteName(snapshot) + ";\n"
+                + "IF DB_ID(" + SqlCmd.quoteString(databaseName) + ") IS NOT NULL DROP DATABASE " + SqlCmd.quoteName(databaseName) + ";\n"
+                + "CREATE DATABASE " + SqlCmd.quoteName(databaseName) + ";\n"
+                + "DECLARE @file sysname, @path nvarchar(260);\n"
+                + "SELECT @file = name, @path = physical_name FROM sys.master_files WHERE database_id = DB_ID(" + SqlCmd.quoteString(databaseName) + ") AND type = 0;\n"
+                + "EXEC (N'CREATE DATABASE " + SqlCmd.quoteName(snapshot).replace("'", "''") + " ON (NAME = ' + QUOTENAME(@file) + N', FILENAME = ''' + @path + N'.ss'') AS SNAPSHOT OF "
+                + SqlCmd.quoteName(databaseName).replace("'", "''") + "');";
+    }
+
+    private static String resetSql(String databaseName) {
+        return "ALTER DATABASE " + SqlCmd.quoteName(databaseName) + " SET SINGLE_USER WITH ROLLBACK IMMEDIATE;\n"
+                + "RESTORE DATABASE " + SqlCmd.quoteName(databaseName) + " FROM DATABASE_SNAPSHOT = " + SqlCmd.quoteString(databaseName + "_snapshot") + ";\n"
+                + "ALTER DATABASE " + SqlCmd.quoteName(databaseName) + " SET MULTI_USER;";
+    }
+
+    private static String dropSql(String databaseName) {
+        String snapshot = databaseName + "_snapshot";
+        return "IF DB_ID(" + SqlCmd.quoteString(snapshot) + ") IS NOT NULL DROP DATABASE " + SqlCmd.quoteName(snapshot) + ";\n"
+                + "IF DB_ID(" + SqlCmd.quoteString(databaseName) + ") IS NOT NULL\n"
+                + "BEGIN\n"
+                + "  ALTER DATABASE " + SqlCmd.quoteName(databaseName) + " SET SINGLE_USER WITH ROLLBACK IMMEDIATE;\n"
+                + "  DROP DATABASE " + SqlCmd.quoteName(databaseName) + ";\n"
+                + "END";
+    }
+}
@@ -0,0 +1,140 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Works out, on the agent, whether a package can be built from the changed scripts alone, and if so writes a reduced
+ * scripts folder to validate them with.
+ * <p>
+ * The reduced folder holds the changed scripts, the scripts of every object that depends on them, and the scripts of
+ * everything those objects need in turn, so that SQL CI can create all of them on an otherwise empty database.
+ * Whenever a change can't be traced to objects, or reaches so much of the folder that validating it is no quicker
+ * than a full build, a full build is asked for instead.
+ */
+public class DeltaBuildPlanner implements FilePath.FileCallable<DeltaBuildPlanner.Plan> {
+    private static final long serialVersionUID = 1L;
+
+    public static class Plan implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String fullBuildReason;
+        private final int validatedObjectCount;
+        private final int copiedScriptCount;
+        private final int scriptCount;
+
+        Plan(String fullBuildReason, int validatedObjectCount, int copiedScriptCount, int scriptCount) {
+            this.fullBuildReason = fullBuildReason;
+            this.validatedObjectCount = validatedObjectCount;
+            this.copiedScriptCount = copiedScriptCount;
+            this.scriptCount = scriptCount;
+        }
+
+        /**
+         * Why the whole package has to be built, or null if validating the reduced folder is enough.
+         */
+        public String getFullBuildReason() {
+            return fullBuildReason;
+        }
+
+        public int getValidatedObjectCount() {
+            return validatedObjectCount;
+        }
+
+        public int getCopiedScriptCount() {
+            return copiedScriptCount;
+        }
+
+        public int getScriptCount() {
+            return scriptCount;
+        }
+    }
+
+    private final List<String> changedPaths;
+    private final String reducedFolderPath;
+
+    /**
+     * @param changedPaths the added and modified files, relative to the scripts folder.
+     * @param reducedFolderPath where to write the reduced scripts folder on the agent. It is emptied first.
+     */
+    public DeltaBuildPlanner(Collection<String> changedPaths, String reducedFolderPath) {
+        this.changedPaths = new ArrayList<String>(changedPaths);
+        this.reducedFolderPath = reducedFolderPath;
+    }
+
+    public Plan invoke(File folder, VirtualChannel channel) throws IOException, InterruptedException {
+        List<String> relativePaths = new ArrayList<String>();
+        ScriptsFolderFingerprinter.collect(folder, "", relativePaths);
+
+        ScriptDependencies dependencies = new ScriptDependencies();
+        List<String> otherFiles = new ArrayList<String>();
+        for (String relativePath : relativePaths) {
+            if (relativePath.toLowerCase().endsWith(".sql")) {
+                InputStream in = new FileInputStream(new File(folder, relativePath));
+                try {
+                    dependencies.add(relativePath, TestClassLister.readScript(in));
+                } finally {
+                    in.close();
+                }
+            } else {
+                otherFiles.add(relativePath);
+            }
+        }
+        int scriptCount = dependencies.getScripts().size();
+
+        Set<String> changedObjects = new HashSet<String>();
+        for (String path : changedPaths) {
+            if (!path.toLowerCase().endsWith(".sql"))
+                return fullBuild(path + " isn't an object script, so it may change how the whole package is built", scriptCount);
+            List<String> defined = dependencies.definedBy(path);
+            if (defined == null || defined.isEmpty())
+                return fullBuild(path + " doesn't define a table, view, procedure, function, type or schema", scriptCount);
+            changedObjects.addAll(defined);
+        }
+
+        Set<String> validated = dependencies.withDependants(changedObjects);
+        Set<String> scripts = new TreeSet<String>(changedPaths);
+        for (String object : dependencies.withDependencies(validated))
+            scripts.add(dependencies.scriptDefining(object));
+
+        // Below this, SQL CI spends about as long validating the reduced folder as it would the whole one.
+        if (scripts.size() * 2 > scriptCount)
+            return fullBuild("the changes reach " + scripts.size() + " of the " + scriptCount + " scripts", scriptCount);
+
+        File reducedFolder = new File(reducedFolderPath);
+        if (reducedFolder.exists())
+            Util.deleteRecursive(reducedFolder);
+        for (String relativePath : scripts)
+            copy(new File(folder, relativePath), new File(reducedFolder, relativePath));
+        // Settings such as RedGateDatabaseInfo.xml and filters apply to every object, so they always go along.
+        for (String relativePath : otherFiles)
+            copy(new File(folder, relativePath), new File(reducedFolder, relativePath));
+
+        return new Plan(null, validated.size(), scripts.size(), scriptCount);
+    }
+
+    private static Plan fullBuild(String reason, int scriptCount) {
+        return new Plan(reason, 0, 0, scriptCount);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        File parent = to.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Could not create " + parent);
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to);
+            try {
+                PackageVersionRewriter.copy(in, out);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Makes a new package from an earlier one by swapping in the scripts that have changed since, on the agent.
+ * <p>
+ * The earlier package is only used if every script in it can be matched to the scripts folder it was built from,
+ * byte for byte, so a package that SQL CI laid out or rewrote in some other way is never patched.
+ */
+public class DeltaPackagePatcher implements FilePath.FileCallable<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String scriptsFolderPath;
+    private final TreeMap<String, String> previousHashes;
+    private final Set<String> changedPaths;
+    private final String targetPath;
+    private final String version;
+
+    /**
+     * @param previousHashes the manifest of the scripts folder the earlier package was built from.
+     * @param changedPaths the added and modified files, relative to the scripts folder.
+     */
+    public DeltaPackagePatcher(String scriptsFolderPath, SortedMap<String, String> previousHashes,
+                               Collection<String> changedPaths, String targetPath, String version) {
+        this.scriptsFolderPath = scriptsFolderPath;
+        this.previousHashes = new TreeMap<String, String>(previousHashes);
+        this.changedPaths = new TreeSet<String>(changedPaths);
+        this.targetPath = targetPath;
+        this.version = version;
+    }
+
+    /**
+     * @return why the earlier package couldn't be patched, or null once the new package has been written.
+     */
+    public String invoke(File previousPackage, VirtualChannel channel) throws IOException, InterruptedException {
+        // Find where the scripts folder sits in the package, and check the unchanged scripts are as they were.
+        Map<String, String> pathsByLowerCase = new HashMap<String, String>();
+        for (String path : previousHashes.keySet())
+            pathsByLowerCase.put(path.toLowerCase(), path);
+
+        String prefix = null;
+        Map<String, String> pathsByEntry = new HashMap<String, String>();
+        ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(previousPackage)));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = decode(entry.getName());
+                if (entry.isDirectory() || !name.toLowerCase().endsWith(".sql"))
+                    continue;
+                String path = null;
+                int start = 0;
+                while (path == null) {
+                    path = pathsByLowerCase.get(name.substring(start).toLowerCase());
+                    int slash = name.indexOf('/', start);
+                    if (path != null || slash < 0)
+                        break;
+                    start = slash + 1;
+                }
+                if (path == null)
+                    return entry.getName() + " in the earlier package isn't in the scripts folder it was built from";
+                if (prefix == null)
+                    prefix = name.substring(0, start);
+                else if (!prefix.equals(name.substring(0, start)))
+                    return "the scripts in the earlier package aren't laid out as in the scripts folder";
+                if (!changedPaths.contains(path) && !hash(in).equals(previousHashes.get(path)))
+                    return path + " in the earlier package differs from the scripts folder it was built from";
+                pathsByEntry.put(entry.getName(), path);
+            }
+        } finally {
+            in.close();
+        }
+
+        int previousScripts = 0;
+        for (String path : previousHashes.keySet()) {
+            if (path.toLowerCase().endsWith(".sql"))
+                previousScripts++;
+        }
+        if (prefix == null || pathsByEntry.size() != previousScripts)
+            return "the earlier package doesn't hold every script in the scripts folder it was built from";
+
+        File target = new File(targetPath);
+        File temp = new File(targetPath + ".tmp");
+        Set<String> added = new TreeSet<String>(changedPaths);
+        in = new ZipInputStream(new BufferedInputStream(new FileInputStream(previousPackage)));
+        try {
+            ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    out.putNextEntry(new ZipEntry(entry.getName()));
+                    String path = pathsByEntry.get(entry.getName());
+                    if (path != null && changedPaths.contains(path)) {
+                        added.remove(path);
+                        copyScript(path, out);
+                    } else if (PackageVersionRewriter.isManifest(entry.getName())) {
+                        out.write(PackageVersionRewriter.rewriteVersion(PackageVersionRewriter.readFully(in), version));
+                    } else {
+                        PackageVersionRewriter.copy(in, out);
+                    }
+                    out.closeEntry();
+                }
+                for (String path : added) {
+                    out.putNextEntry(new ZipEntry(encode(prefix + path)));
+                    copyScript(path, out);
+                    out.closeEntry();
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        if (target.exists() && !target.delete())
+            throw new IOException("Could not replace " + target);
+        if (!temp.renameTo(target))
+            throw new IOException("Could not move " + temp + " to " + target);
+        return null;
+    }
+
+    private void copyScript(String path, OutputStream out) throws IOException {
+        InputStream script = new FileInputStream(new File(scriptsFolderPath, path));
+        try {
+            PackageVersionRewriter.copy(script, out);
+        } finally {
+            script.close();
+        }
+    }
+
+    private static String hash(InputStream in) throws IOException {
+        MessageDigest digest = ScriptsFolderFingerprinter.newDigest();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            digest.update(buffer, 0, read);
+        return Util.toHexString(digest.digest());
+    }
+
+    private static String decode(String entryName) throws UnsupportedEncodingException {
+        return URLDecoder.decode(entryName.replace("+", "%2B"), "UTF-8");
+    }
+
+    // Package part names are percent-encoded UTF-8, keeping only unreserved characters and the separator.
+    private static String encode(String name) throws UnsupportedEncodingException {
+        StringBuilder encoded = new StringBuilder();
+        for (byte b : name.getBytes("UTF-8")) {
+            char c = (char) (b & 0xFF);
+            if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || "-._~/".indexOf(c) >= 0)
+                encoded.append(c);
+            else
+                encoded.append('%').append(String.format("%02X", b & 0xFF));
+        }
+        return encoded.toString();
+    }
+}
@@ -0,0 +1,177 @@
+package redgatesqlci;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs a task for each item of a list at once, at most {@code maxParallel} at a time, each with its own prefixed log.
+ * <p>
+ * Workers take the next item that {@link #mayStart} allows, rather than strictly in list order, so subclasses can
+ * hold some items back while others run. The hooks are called with the lock on this object held.
+ */
+public class FanOut<T, R> {
+
+    /**
+     * The work done for one item, logging to its own {@code listener}.
+     */
+    public interface Task<T, R> {
+        R run(int index, T item, TaskListener listener) throws IOException, InterruptedException;
+    }
+
+    private final TaskListener listener;
+    private final int maxParallel;
+
+    // Guarded by this.
+    private final LinkedList<Integer> waiting = new LinkedList<Integer>();
+    private boolean aborted;
+
+    public FanOut(TaskListener listener, int maxParallel) {
+        this.listener = listener;
+        this.maxParallel = Math.max(1, maxParallel);
+    }
+
+    /**
+     * @return each item's result, in the items' order, or null for items that never started.
+     */
+    public List<R> run(final List<T> items, final Task<T, R> task) throws IOException, InterruptedException {
+        final List<R> results = new ArrayList<R>(Collections.<R>nCopies(items.size(), null));
+        if (items.isEmpty())
+            return results;
+        synchronized (this) {
+            waiting.clear();
+            aborted = false;
+            for (int i = 0; i < items.size(); i++)
+                waiting.add(i);
+        }
+
+        int workers = Math.min(maxParallel, items.size());
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> pending = new ArrayList<Future<Void>>();
+            for (int i = 0; i < workers; i++) {
+                pending.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        try {
+                            Integer next;
+                            while ((next = take(items)) != null) {
+                                R result = null;
+                                try {
+                                    result = runOne(next, items.get(next), task);
+                                    results.set(next, result);
+                                } finally {
+                                    done(items.get(next), result);
+                                }
+                            }
+                            return null;
+                        } catch (Exception e) {
+                            abort();
+                            throw e;
+                        }
+                    }
+                }));
+            }
+
+            for (Future<Void> future : pending) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    if (e.getCause() instanceof InterruptedException)
+                        throw (InterruptedException) e.getCause();
+                    throw new IOException(e.getCause());
+                }
+            }
+        } finally {
+            // On abort, interrupting the workers kills their sqlci processes.
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    /**
+     * Whether an item may start now. Called again for the items still waiting whenever one finishes.
+     */
+    protected boolean mayStart(T item) {
+        return true;
+    }
+
+    protected void started(T item) {
+    }
+
+    /**
+     * @param result null if the item's task threw.
+     */
+    protected void finished(T item, R result) {
+    }
+
+    /**
+     * Whether to leave the items that haven't started yet. Items already running finish.
+     */
+    protected boolean isStopped() {
+        return false;
+    }
+
+    protected String logPrefix(int index, T item) {
+        return "[" + item + "] ";
+    }
+
+    /**
+     * The result for an item whose task threw, having logged to {@code listener}. Rethrows by default, which stops
+     * every worker from starting another item, and fails the whole run once the items already running have finished.
+     */
+    protected R failed(int index, T item, IOException e, TaskListener listener) throws IOException {
+        throw e;
+    }
+
+    // The next item that may start, or null when there's nothing left to start.
+    private synchronized Integer take(List<T> items) throws InterruptedException {
+        while (true) {
+            if (waiting.isEmpty() || aborted || isStopped())
+                return null;
+            for (Iterator<Integer> i = waiting.iterator(); i.hasNext(); ) {
+                Integer index = i.next();
+                if (mayStart(items.get(index))) {
+                    i.remove();
+                    started(items.get(index));
+                    return index;
+                }
+            }
+            wait();
+        }
+    }
+
+    // A worker failed, so no more items start, and workers waiting for one give up.
+    private synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    private synchronized void done(T item, R result) {
+        finished(item, result);
+        notifyAll();
+    }
+
+    private R runOne(int index, T item, Task<T, R> task) throws IOException, InterruptedException {
+        PrefixedOutputStream out = new PrefixedOutputStream(logPrefix(index, item), listener.getLogger());
+        TaskListener itemListener = new StreamTaskListener(out);
+        try {
+            R result;
+            try {
+                result = task.run(index, item, itemListener);
+            } catch (IOException e) {
+                result = failed(index, item, e, itemListener);
+            }
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            return result;
+        } finally {
+            itemListener.getLogger().flush();
+            out.close();
+        }
+    }
+}
@@ -5,13 +5,19 @@ import org.kohsuke.stapler.DataBoundConstructor;
 public class GenerateTestData
 {
     private String sqlgenPath;
+    private boolean cacheData;
+
     public String getSqlgenPath() {
         return sqlgenPath;
     }
+    public boolean getCacheData() {
+        return cacheData;
+    }
 
     @DataBoundConstructor
-    public GenerateTestData(String sqlgenPath)
+    public GenerateTestData(String sqlgenPath, boolean cacheData)
     {
         this.sqlgenPath = sqlgenPath;
+        this.cacheData = cacheData;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,100 @@
+package redgatesqlci;
+
+import hudson.model.Action;
+import hudson.model.Run;
+
+/**
+ * Records whether a build made its package incrementally from an earlier one, and if not, why.
+ * The settings hash lets the next build tell whether this build's package was built the same way.
+ */
+public class IncrementalBuildAction implements Action {
+    private final String packageid;
+    private final String settingsHash;
+    private final String fullBuildReason;
+    private final int baseBuildNumber;
+    private final int changedScriptCount;
+    private final int validatedObjectCount;
+    private final int copiedScriptCount;
+    private final int scriptCount;
+
+    private IncrementalBuildAction(String packageid, String settingsHash, String fullBuildReason, int baseBuildNumber,
+                                   int changedScriptCount, int validatedObjectCount, int copiedScriptCount, int scriptCount) {
+        this.packageid = packageid;
+        this.settingsHash = settingsHash;
+        this.fullBuildReason = fullBuildReason;
+        this.baseBuildNumber = baseBuildNumber;
+        this.changedScriptCount = changedScriptCount;
+        this.validatedObjectCount = validatedObjectCount;
+        this.copiedScriptCount = copiedScriptCount;
+        this.scriptCount = scriptCount;
+    }
+
+    public static IncrementalBuildAction fullBuild(String packageid, String settingsHash, String reason) {
+        return new IncrementalBuildAction(packageid, settingsHash, reason, 0, 0, 0, 0, 0);
+    }
+
+    public static IncrementalBuildAction incremental(String packageid, String settingsHash, int baseBuildNumber,
+                                                     int changedScriptCount, DeltaBuildPlanner.Plan plan) {
+        return new IncrementalBuildAction(packageid, settingsHash, null, baseBuildNumber, changedScriptCount,
+                plan.getValidatedObjectCount(), plan.getCopiedScriptCount(), plan.getScriptCount());
+    }
+
+    /**
+     * How {@code build} made {@code packageid}, or null if it didn't build that package incrementally or try to.
+     */
+    public static IncrementalBuildAction forPackage(Run<?, ?> build, String packageid) {
+        for (IncrementalBuildAction action : build.getActions(IncrementalBuildAction.class)) {
+            if (action.getPackageid().equals(packageid))
+                return action;
+        }
+        return null;
+    }
+
+    public String getPackageid() {
+        return packageid;
+    }
+
+    public String getSettingsHash() {
+        return settingsHash;
+    }
+
+    public boolean isIncremental() {
+        return fullBuildReason == null;
+    }
+
+    public String getFullBuildReason() {
+        return fullBuildReason;
+    }
+
+    public int getBaseBuildNumber() {
+        return baseBuildNumber;
+    }
+
+    public int getChangedScriptCount() {
+        return changedScriptCount;
+    }
+
+    public int getValidatedObjectCount() {
+        return validatedObjectCount;
+    }
+
+    public int getCopiedScriptCount() {
+        return copiedScriptCount;
+    }
+
+    public int getScriptCount() {
+        return scriptCount;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "SQL CI incremental build";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
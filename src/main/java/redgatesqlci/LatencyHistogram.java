@@ -0,0 +1,52 @@
+package redgatesqlci;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-bucket histogram of durations that many threads can record into without locking.
+ * Bucket counts are non-cumulative here and summed when exported.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Upper bounds of the buckets, in seconds. sqlci steps take from seconds to about an hour.
+     */
+    public static final double[] BOUNDS_SECONDS = { 1, 5, 10, 30, 60, 120, 300, 600, 1200, 1800, 3600 };
+
+    // One more than the bounds, for durations past the last bound.
+    private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_SECONDS.length + 1);
+    private final AtomicLong sumMillis = new AtomicLong();
+    private final AtomicLong count = new AtomicLong();
+
+    public void record(long millis) {
+        double seconds = millis / 1000.0;
+        int bucket = 0;
+        while (bucket < BOUNDS_SECONDS.length && seconds > BOUNDS_SECONDS[bucket])
+            bucket++;
+        buckets.incrementAndGet(bucket);
+        sumMillis.addAndGet(millis);
+        count.incrementAndGet();
+    }
+
+    /**
+     * The number of recorded durations at or below each bound, followed by the total count.
+     */
+    public long[] cumulativeCounts() {
+        long[] cumulative = new long[buckets.length()];
+        long running = 0;
+        for (int i = 0; i < cumulative.length; i++) {
+            running += buckets.get(i);
+            cumulative[i] = running;
+        }
+        return cumulative;
+    }
+
+    public double getSumSeconds() {
+        return sumMillis.get() / 1000.0;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+}
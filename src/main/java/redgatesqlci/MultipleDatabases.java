@@ -0,0 +1,29 @@
+package redgatesqlci;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+public class MultipleDatabases
+{
+    private String databaseList;
+    public String getDatabaseList() {
+        return databaseList;
+    }
+
+    private boolean discoverDatabases;
+    public boolean getDiscoverDatabases() {
+        return discoverDatabases;
+    }
+
+    private int maxParallelBuilds;
+    public int getMaxParallelBuilds() {
+        return maxParallelBuilds;
+    }
+
+    @DataBoundConstructor
+    public MultipleDatabases(String databaseList, boolean discoverDatabases, int maxParallelBuilds)
+    {
+        this.databaseList = databaseList;
+        this.discoverDatabases = discoverDatabases;
+        this.maxParallelBuilds = maxParallelBuilds;
+    }
+}
@@ -0,0 +1,47 @@
+package redgatesqlci;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+public class MultipleTargets
+{
+    private String targetList;
+    public String getTargetList() {
+        return targetList;
+    }
+
+    private String targetsFile;
+    public String getTargetsFile() {
+        return targetsFile;
+    }
+
+    private int maxParallelSyncs;
+    public int getMaxParallelSyncs() {
+        return maxParallelSyncs;
+    }
+
+    private int maxSyncsPerServer;
+    public int getMaxSyncsPerServer() {
+        return maxSyncsPerServer;
+    }
+
+    private boolean failFast;
+    public boolean getFailFast() {
+        return failFast;
+    }
+
+    private boolean reuseScripts;
+    public boolean getReuseScripts() {
+        return reuseScripts;
+    }
+
+    @DataBoundConstructor
+    public MultipleTargets(String targetList, String targetsFile, int maxParallelSyncs, int maxSyncsPerServer, boolean failFast, boolean reuseScripts)
+    {
+        this.targetList = targetList;
+        this.targetsFile = targetsFile;
+        this.maxParallelSyncs = maxParallelSyncs;
+        this.maxSyncsPerServer = maxSyncsPerServer;
+        this.failFast = failFast;
+        this.reuseScripts = reuseScripts;
+    }
+}
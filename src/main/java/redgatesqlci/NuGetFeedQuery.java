@@ -0,0 +1,62 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+/**
+ * Asks a NuGet v2 (OData) feed whether it has a package version, from the node the callable runs on, as that is
+ * where packages are published from.
+ */
+public class NuGetFeedQuery implements FilePath.FileCallable<Boolean> {
+    private static final long serialVersionUID = 1L;
+
+    private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+    private final String feedUrl;
+    private final String packageid;
+    private final String version;
+
+    public NuGetFeedQuery(String feedUrl, String packageid, String version) {
+        this.feedUrl = feedUrl;
+        this.packageid = packageid;
+        this.version = version;
+    }
+
+    /**
+     * @return whether the feed has the version, or null if the feed's answer couldn't be understood.
+     */
+    public Boolean invoke(File ignored, VirtualChannel channel) throws IOException, InterruptedException {
+        String base = feedUrl.trim();
+        while (base.endsWith("/"))
+            base = base.substring(0, base.length() - 1);
+        URL url = new URL(base + "/Packages(Id='" + escape(packageid) + "',Version='" + escape(version) + "')");
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("Accept", "application/atom+xml");
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_OK)
+                return true;
+            if (status == HttpURLConnection.HTTP_NOT_FOUND)
+                return false;
+            return null;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    // OData string literals double their quotes, and the key then goes in the URL path.
+    private static String escape(String value) throws IOException {
+        return URLEncoder.encode(value.replace("'", "''"), "UTF-8").replace("+", "%20");
+    }
+}
@@ -0,0 +1,64 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Hashes what a package holds, on the node that holds it, leaving out the parts that change with its version:
+ * the nuspec's version element, the core properties and the package's own bookkeeping. Two packages with the same
+ * ID, built from the same scripts and settings, have the same hash, whatever their version.
+ */
+public class PackageContentHash implements FilePath.FileCallable<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final boolean scriptsOnly;
+
+    /**
+     * @param scriptsOnly whether to hash only the .sql scripts, rather than every part but the version metadata.
+     */
+    public PackageContentHash(boolean scriptsOnly) {
+        this.scriptsOnly = scriptsOnly;
+    }
+
+    public String invoke(File packageFile, VirtualChannel channel) throws IOException, InterruptedException {
+        TreeMap<String, String> hashes = new TreeMap<String, String>();
+        ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(packageFile)));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = URLDecoder.decode(entry.getName().replace("+", "%2B"), "UTF-8");
+                if (entry.isDirectory() || (scriptsOnly ? !name.toLowerCase().endsWith(".sql") : isVersionMetadata(name)))
+                    continue;
+                byte[] content = PackageVersionRewriter.readFully(in);
+                // The nuspec holds the package ID, which must count, so only its version is left out.
+                if (name.toLowerCase().endsWith(".nuspec"))
+                    content = PackageVersionRewriter.rewriteVersion(content, "");
+                MessageDigest digest = ScriptsFolderFingerprinter.newDigest();
+                digest.update(content);
+                hashes.put(name, Util.toHexString(digest.digest()));
+            }
+        } finally {
+            in.close();
+        }
+
+        MessageDigest digest = ScriptsFolderFingerprinter.newDigest();
+        for (Map.Entry<String, String> part : hashes.entrySet())
+            digest.update((part.getKey() + "\t" + part.getValue() + "\n").getBytes("UTF-8"));
+        return Util.toHexString(digest.digest());
+    }
+
+    // The core properties part gets a new name every time a package is made, and only repeats the nuspec.
+    private static boolean isVersionMetadata(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".psmdcp") || lower.startsWith("_rels/") || lower.equals("[content_types].xml");
+    }
+}
@@ -0,0 +1,183 @@
+package redgatesqlci;
+
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.model.Jenkins;
+
+import java.io.*;
+
+/**
+ * Hands a package an upstream build kept in the {@link PackageStore} to a downstream build, on whichever node the
+ * downstream build runs.
+ * <p>
+ * Each node keeps the packages it has fetched in a cache keyed by content hash, so a package is only copied from
+ * the controller once per node. Packages from the cache and from the controller are both checked against the hash
+ * the upstream build recorded before they are used.
+ */
+public class PackageHandoff {
+    // Cached packages not used for this long are deleted.
+    private static final long CACHE_MAX_IDLE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    private PackageHandoff() {
+    }
+
+    /**
+     * The upstream build to take packages from: the given build of the job, or its last successful build if no
+     * build number is given. Both may use the downstream build's environment variables.
+     */
+    public static Run<?, ?> upstreamBuild(Run<?, ?> build, TaskListener listener, String jobName, String buildNumber)
+            throws IOException, InterruptedException {
+        String expandedJob = build.getEnvironment(listener).expand(jobName).trim();
+        String expandedNumber = build.getEnvironment(listener).expand(buildNumber == null ? "" : buildNumber).trim();
+
+        Job<?, ?> job = Jenkins.getInstance().getItemByFullName(expandedJob, Job.class);
+        if (job == null)
+            throw new AbortException("There is no job called " + expandedJob + " to take packages from.");
+
+        Run<?, ?> upstream;
+        if (expandedNumber.isEmpty()) {
+            upstream = job.getLastSuccessfulBuild();
+            if (upstream == null)
+                throw new AbortException(expandedJob + " has no successful build to take packages from.");
+        } else {
+            try {
+                upstream = job.getBuildByNumber(Integer.parseInt(expandedNumber));
+            } catch (NumberFormatException e) {
+                throw new AbortException(expandedNumber + " isn't a build number.");
+            }
+            if (upstream == null)
+                throw new AbortException(expandedJob + " has no build #" + expandedNumber + ".");
+        }
+        return upstream;
+    }
+
+    /**
+     * Copies the package {@code upstream} kept in the package store into the workspace, named and versioned as
+     * that build made it.
+     *
+     * @return the package file in the workspace.
+     */
+    public static FilePath fetch(Run<?, ?> build, Run<?, ?> upstream, FilePath workspace, TaskListener listener, String packageid)
+            throws IOException, InterruptedException {
+        PackageStoreAction stored = PackageStoreAction.forPackage(upstream, packageid);
+        if (stored == null)
+            throw new AbortException(upstream.getFullDisplayName() + " didn't keep package " + packageid
+                    + " in the package store. Tick \"Keep the package in the controller's package store\" in its Build step.");
+
+        String contentHash = stored.getContentHash();
+        String version = "0." + upstream.getNumber();
+        FilePath target = workspace.child(Utils.constructPackageFileName(packageid, upstream.getNumber()));
+        FilePath cache = cacheDirectory(workspace);
+
+        boolean fromCache = false;
+        if (cache != null) {
+            FilePath cached = cache.child(contentHash + ".nupkg");
+            if (cached.exists()) {
+                cached.touch(System.currentTimeMillis());
+                cached.act(new VersionedCopy(target.getRemote(), version));
+                fromCache = contentHash.equals(target.act(new PackageContentHash(false)));
+                if (!fromCache) {
+                    listener.getLogger().println("The cached copy of " + packageid + " is damaged. Copying it from the controller again.");
+                    cached.delete();
+                }
+            }
+        }
+
+        if (!fromCache) {
+            FilePath download = cache != null ? cache.createTempFile(contentHash, ".tmp") : workspace.createTempFile(contentHash, ".tmp");
+            try {
+                if (!PackageStore.get().copyTo(contentHash, download))
+                    throw new AbortException("Package " + packageid + " from " + upstream.getFullDisplayName()
+                            + " is no longer in the package store.");
+                if (!contentHash.equals(download.act(new PackageContentHash(false))))
+                    throw new AbortException("Package " + packageid + " from " + upstream.getFullDisplayName()
+                            + " didn't match its checksum after copying.");
+                download.act(new VersionedCopy(target.getRemote(), version));
+                if (cache != null) {
+                    download.renameTo(cache.child(contentHash + ".nupkg"));
+                    cache.act(new PruneCache(CACHE_MAX_IDLE_MILLIS));
+                }
+            } finally {
+                if (download.exists())
+                    download.delete();
+            }
+        }
+
+        listener.getLogger().println("Using " + target.getName() + " from " + upstream.getFullDisplayName()
+                + (fromCache ? ", from this node's package cache." : ", copied from the package store."));
+        build.addAction(new UpstreamPackageAction(packageid, upstream.getParent().getFullName(), upstream.getNumber(), contentHash, fromCache));
+        return target;
+    }
+
+    private static FilePath cacheDirectory(FilePath workspace) throws IOException, InterruptedException {
+        Computer computer = workspace.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        FilePath nodeRoot = node == null ? null : node.getRootPath();
+        if (nodeRoot == null)
+            return null;
+        FilePath cache = nodeRoot.child("redgatesqlci-package-cache");
+        cache.mkdirs();
+        return cache;
+    }
+
+    /**
+     * Copies a package on the node that holds it, writing {@code version} into its manifest on the way.
+     */
+    private static class VersionedCopy implements FilePath.FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String targetPath;
+        private final String version;
+
+        VersionedCopy(String targetPath, String version) {
+            this.targetPath = targetPath;
+            this.version = version;
+        }
+
+        public Void invoke(File source, VirtualChannel channel) throws IOException, InterruptedException {
+            InputStream in = new FileInputStream(source);
+            try {
+                OutputStream out = new FileOutputStream(targetPath);
+                try {
+                    PackageVersionRewriter.rewrite(in, out, version);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Deletes cached packages that haven't been used for a while, and downloads that were abandoned.
+     */
+    private static class PruneCache implements FilePath.FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final long maxIdleMillis;
+
+        PruneCache(long maxIdleMillis) {
+            this.maxIdleMillis = maxIdleMillis;
+        }
+
+        public Void invoke(File cache, VirtualChannel channel) {
+            File[] files = cache.listFiles();
+            if (files == null)
+                return null;
+            long cutoff = System.currentTimeMillis() - maxIdleMillis;
+            for (File file : files) {
+                if (file.lastModified() < cutoff)
+                    file.delete();
+            }
+            return null;
+        }
+    }
+}
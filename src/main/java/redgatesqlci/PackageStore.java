@@ -0,0 +1,211 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide store of packages, keyed by their {@link PackageContentHash content hash}, so that builds whose
+ * packages differ only in version share one copy. The hash covers the package ID, so packages with different IDs never
+ * share an entry, even when their scripts are the same.
+ * <p>
+ * Each build that keeps a package here holds a reference to it. A package is deleted once the last build holding
+ * a reference to it is deleted.
+ */
+public class PackageStore {
+    private static final Logger LOGGER = Logger.getLogger(PackageStore.class.getName());
+
+    private static final String ENTRY_SUFFIX = ".nupkg";
+    private static final String REFERENCES_FILE = "references.txt";
+
+    private static PackageStore instance;
+
+    public static synchronized PackageStore get() {
+        if (instance == null)
+            instance = new PackageStore(new File(Jenkins.getInstance().getRootDir(), "redgatesqlci-packages"));
+        return instance;
+    }
+
+    private final File directory;
+
+    // Content hash to the externalizable IDs of the builds holding a reference to it.
+    private final Map<String, Set<String>> references = new HashMap<String, Set<String>>();
+
+    PackageStore(File directory) {
+        this.directory = directory;
+        load();
+    }
+
+    /**
+     * Adds a reference from {@code build} to the package at {@code packageFile}, copying the package from the
+     * node that holds it only if the store doesn't have its content yet.
+     *
+     * @param contentHash the package's content hash, worked out on the node that holds it.
+     * @return true if the package was copied, false if the store already had it.
+     */
+    public boolean add(String contentHash, FilePath packageFile, Run<?, ?> build) throws IOException, InterruptedException {
+        synchronized (this) {
+            if (entryFile(contentHash).isFile()) {
+                reference(contentHash, build);
+                return false;
+            }
+        }
+
+        File temp = File.createTempFile(contentHash, ".tmp", directory);
+        try {
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                packageFile.copyTo(out);
+            } finally {
+                out.close();
+            }
+            if (!contentHash.equals(new PackageContentHash(false).invoke(temp, null)))
+                throw new IOException(packageFile.getName() + " changed while it was being copied to the package store.");
+
+            synchronized (this) {
+                // Another build may have stored the same content meanwhile.
+                File entry = entryFile(contentHash);
+                if (!entry.isFile() && !temp.renameTo(entry))
+                    throw new IOException("Could not move " + temp + " to " + entry);
+                reference(contentHash, build);
+            }
+            return true;
+        } finally {
+            if (temp.exists())
+                temp.delete();
+        }
+    }
+
+    /**
+     * Copies the stored package to {@code target} as it was stored, so with the version of the build that stored it.
+     *
+     * @return false if the store doesn't have the package.
+     */
+    public boolean copyTo(String contentHash, FilePath target) throws IOException, InterruptedException {
+        File entry;
+        synchronized (this) {
+            entry = entryFile(contentHash);
+            if (!entry.isFile())
+                return false;
+        }
+
+        try {
+            target.copyFrom(new FilePath(entry));
+        } catch (IOException e) {
+            // The last build referring to the package was deleted while we were copying it.
+            LOGGER.log(Level.FINE, "Could not copy stored package " + contentHash, e);
+            return false;
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(String contentHash) {
+        return entryFile(contentHash).isFile();
+    }
+
+    File entryFile(String contentHash) {
+        return new File(directory, contentHash + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Drops every reference {@code build} holds, deleting the packages no other build refers to.
+     */
+    public synchronized void release(Run<?, ?> build) {
+        String id = build.getExternalizableId();
+        boolean changed = false;
+        for (Iterator<Map.Entry<String, Set<String>>> i = references.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<String, Set<String>> entry = i.next();
+            if (!entry.getValue().remove(id))
+                continue;
+            changed = true;
+            if (entry.getValue().isEmpty()) {
+                i.remove();
+                if (!entryFile(entry.getKey()).delete())
+                    LOGGER.warning("Could not delete unreferenced stored package " + entry.getKey());
+            }
+        }
+        if (changed)
+            save();
+    }
+
+    private void reference(String contentHash, Run<?, ?> build) {
+        Set<String> builds = references.get(contentHash);
+        if (builds == null)
+            references.put(contentHash, builds = new TreeSet<String>());
+        if (builds.add(build.getExternalizableId()))
+            save();
+    }
+
+    // One line per reference: the content hash and the build's externalizable ID, tab-separated.
+    private void save() {
+        File temp = new File(directory, REFERENCES_FILE + ".tmp");
+        File file = new File(directory, REFERENCES_FILE);
+        try {
+            Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(temp)), "UTF-8");
+            try {
+                for (Map.Entry<String, Set<String>> entry : references.entrySet()) {
+                    for (String build : entry.getValue())
+                        writer.write(entry.getKey() + "\t" + build + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (file.exists() && !file.delete())
+                throw new IOException("Could not replace " + file);
+            if (!temp.renameTo(file))
+                throw new IOException("Could not move " + temp + " to " + file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write package store references " + file, e);
+        }
+    }
+
+    // Packages are only moved into place together with their first reference, so any without one were left
+    // behind by a crash and can go.
+    private synchronized void load() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.warning("Could not create package store directory " + directory);
+            return;
+        }
+
+        File file = new File(directory, REFERENCES_FILE);
+        if (file.isFile()) {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split("\t", 2);
+                        if (fields.length < 2)
+                            continue;
+                        Set<String> builds = references.get(fields[0]);
+                        if (builds == null)
+                            references.put(fields[0], builds = new TreeSet<String>());
+                        builds.add(fields[1]);
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // Without the references we can't tell what is safe to delete, so delete nothing.
+                LOGGER.log(Level.WARNING, "Could not read package store references " + file, e);
+                return;
+            }
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+        for (File entry : files) {
+            String name = entry.getName();
+            if (name.endsWith(".tmp"))
+                entry.delete();
+            else if (name.endsWith(ENTRY_SUFFIX) && !references.containsKey(name.substring(0, name.length() - ENTRY_SUFFIX.length())))
+                entry.delete();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package redgatesqlci;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+
+/**
+ * Records that a build kept its package in the {@link PackageStore}, and serves it for download with the build's
+ * version.
+ */
+public class PackageStoreAction implements RunAction2 {
+    private final String packageid;
+    private final String contentHash;
+    private final long sizeBytes;
+    private final boolean copied;
+
+    private transient Run<?, ?> owner;
+
+    /**
+     * @param copied whether this build's package was copied to the store, rather than already being there.
+     */
+    public PackageStoreAction(String packageid, String contentHash, long sizeBytes, boolean copied) {
+        this.packageid = packageid;
+        this.contentHash = contentHash;
+        this.sizeBytes = sizeBytes;
+        this.copied = copied;
+    }
+
+    public String getPackageid() {
+        return packageid;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public boolean isCopied() {
+        return copied;
+    }
+
+    public String getFileName() {
+        return Utils.constructPackageFileName(packageid, owner.getNumber());
+    }
+
+    /**
+     * The package {@code build} kept in the store for {@code packageid}, or null if it didn't keep one.
+     */
+    public static PackageStoreAction forPackage(Run<?, ?> build, String packageid) {
+        for (PackageStoreAction action : build.getActions(PackageStoreAction.class)) {
+            if (action.getPackageid().equals(packageid))
+                return action;
+        }
+        return null;
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        owner.checkPermission(Run.ARTIFACTS);
+        File entry = PackageStore.get().entryFile(contentHash);
+        InputStream in;
+        try {
+            in = new FileInputStream(entry);
+        } catch (FileNotFoundException e) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "The package is no longer in the package store.");
+            return;
+        }
+        try {
+            rsp.setContentType("application/octet-stream");
+            rsp.setHeader("Content-Disposition", "attachment; filename=" + getFileName());
+            PackageVersionRewriter.rewrite(in, rsp.getOutputStream(), "0." + owner.getNumber());
+        } finally {
+            in.close();
+        }
+    }
+
+    public void onAttached(Run<?, ?> r) {
+        owner = r;
+    }
+
+    public void onLoad(Run<?, ?> r) {
+        owner = r;
+    }
+
+    public String getIconFileName() {
+        return "package.png";
+    }
+
+    public String getDisplayName() {
+        return "Package " + packageid;
+    }
+
+    public String getUrlName() {
+        return "redgatesqlci-package-" + packageid;
+    }
+}
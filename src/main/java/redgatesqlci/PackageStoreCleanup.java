@@ -0,0 +1,17 @@
+package redgatesqlci;
+
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Drops a deleted build's references to the packages it kept in the {@link PackageStore}.
+ */
+@Extension
+public class PackageStoreCleanup extends RunListener<Run<?, ?>> {
+    @Override
+    public void onDeleted(Run<?, ?> build) {
+        if (!build.getActions(PackageStoreAction.class).isEmpty())
+            PackageStore.get().release(build);
+    }
+}
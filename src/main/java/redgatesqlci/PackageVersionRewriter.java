@@ -0,0 +1,93 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Rewrites the version recorded in a package's manifest, so a package taken from the build cache
+ * carries the version of the build that is reusing it.
+ */
+public class PackageVersionRewriter implements FilePath.FileCallable<Void> {
+    private static final long serialVersionUID = 1L;
+
+    private static final Pattern VERSION_ELEMENT = Pattern.compile("<version>[^<]*</version>");
+
+    private final String version;
+
+    public PackageVersionRewriter(String version) {
+        this.version = version;
+    }
+
+    public Void invoke(File packageFile, VirtualChannel channel) throws IOException, InterruptedException {
+        File rewritten = new File(packageFile.getPath() + ".tmp");
+
+        InputStream in = new FileInputStream(packageFile);
+        try {
+            OutputStream out = new FileOutputStream(rewritten);
+            try {
+                rewrite(in, out, version);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        if (!packageFile.delete() || !rewritten.renameTo(packageFile))
+            throw new IOException("Could not replace " + packageFile + " with the rewritten package.");
+        return null;
+    }
+
+    /**
+     * Writes the package read from {@code in} to {@code out}, with {@code version} in its manifest.
+     */
+    static void rewrite(InputStream in, OutputStream out, String version) throws IOException {
+        ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(in));
+        ZipOutputStream zipOut = new ZipOutputStream(new BufferedOutputStream(out));
+        ZipEntry entry;
+        while ((entry = zipIn.getNextEntry()) != null) {
+            zipOut.putNextEntry(new ZipEntry(entry.getName()));
+            if (isManifest(entry.getName()))
+                zipOut.write(rewriteVersion(readFully(zipIn), version));
+            else
+                copy(zipIn, zipOut);
+            zipOut.closeEntry();
+        }
+        zipOut.finish();
+        zipOut.flush();
+    }
+
+    // Both the .nuspec and the OPC core properties record the package version.
+    static boolean isManifest(String entryName) {
+        String lowerName = entryName.toLowerCase();
+        return lowerName.endsWith(".nuspec") || lowerName.endsWith(".psmdcp");
+    }
+
+    static byte[] rewriteVersion(byte[] manifest, String version) throws UnsupportedEncodingException {
+        String text = new String(manifest, "UTF-8");
+        Matcher matcher = VERSION_ELEMENT.matcher(text);
+        if (!matcher.find())
+            return manifest;
+        return (text.substring(0, matcher.start()) + "<version>" + version + "</version>" + text.substring(matcher.end())).getBytes("UTF-8");
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copy(in, bytes);
+        return bytes.toByteArray();
+    }
+
+    static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            out.write(buffer, 0, read);
+    }
+}
@@ -0,0 +1,35 @@
+package redgatesqlci;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes each line to an underlying stream with a prefix, whole lines at a time,
+ * so several concurrent writers can share one build log without their lines tangling.
+ */
+public class PrefixedOutputStream extends LineTransformationOutputStream {
+    private final byte[] prefix;
+    private final OutputStream out;
+
+    public PrefixedOutputStream(String prefix, OutputStream out) {
+        this.prefix = prefix.getBytes();
+        this.out = out;
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        synchronized (out) {
+            out.write(prefix);
+            out.write(b, 0, len);
+            out.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        out.flush();
+    }
+}
@@ -1,13 +1,15 @@
 package redgatesqlci;
 
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
-import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import jenkins.tasks.SimpleBuildStep;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -16,8 +18,11 @@ import org.kohsuke.stapler.StaplerRequest;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-public class PublishBuilder extends Builder {
+public class PublishBuilder extends Builder implements SimpleBuildStep {
 
     private final String packageid;
     public String getPackageid() { return packageid; }
@@ -30,29 +35,137 @@ public class PublishBuilder extends Builder {
         return nugetFeedApiKey;
     }
 
+    // Don't upload a package whose content is already on the feed under an earlier version.
+    private final boolean skipPublished;
+    public boolean getSkipPublished() {
+        return skipPublished;
+    }
+
+    private final int maxParallelUploads;
+    public int getMaxParallelUploads() {
+        return Math.max(1, maxParallelUploads);
+    }
+
+    private final int uploadAttempts;
+    public int getUploadAttempts() {
+        return Math.max(1, uploadAttempts);
+    }
+
+    // Null unless the package is taken from an upstream build instead of this build.
+    private final String upstreamPackage;
+    public String getUpstreamPackage() {
+        return upstreamPackage;
+    }
+
+    private final String upstreamJob;
+    public String getUpstreamJob() {
+        return upstreamJob;
+    }
+
+    private final String upstreamBuild;
+    public String getUpstreamBuild() {
+        return upstreamBuild;
+    }
+
+    private static final long INITIAL_BACKOFF_MILLIS = 5 * 1000;
 
     @DataBoundConstructor
-    public PublishBuilder(String packageid, String nugetFeedUrl, String nugetFeedApiKey) {
+    public PublishBuilder(String packageid, String nugetFeedUrl, String nugetFeedApiKey, boolean skipPublished,
+                          int maxParallelUploads, int uploadAttempts, UpstreamPackage upstreamPackage) {
         this.packageid = packageid;
         this.nugetFeedUrl = nugetFeedUrl;
         this.nugetFeedApiKey = nugetFeedApiKey;
+        this.skipPublished = skipPublished;
+        this.maxParallelUploads = Math.max(1, maxParallelUploads);
+        this.uploadAttempts = Math.max(1, uploadAttempts);
+
+        this.upstreamPackage = upstreamPackage == null ? null : "true";
+        if(this.upstreamPackage != null)
+        {
+            this.upstreamJob = upstreamPackage.getJobName();
+            this.upstreamBuild = upstreamPackage.getBuildNumber();
+        }
+        else
+        {
+            this.upstreamJob = "";
+            this.upstreamBuild = "";
+        }
     }
 
     @Override
-    public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
-        ArrayList<String> params = new ArrayList<String>();
-
-        String packageFileName = Utils.constructPackageFileName(getPackageid(), build.getNumber());
+    public void perform(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener)
+            throws InterruptedException, IOException {
+        // Packages from an upstream build keep that build's version.
+        Run<?, ?> source = build;
+        if (getUpstreamPackage() != null)
+            source = PackageHandoff.upstreamBuild(build, listener, getUpstreamJob(), getUpstreamBuild());
+
+        Map<String, FilePath> packages = new LinkedHashMap<String, FilePath>();
+        for (String id : packageids(getPackageid())) {
+            if (source == build)
+                packages.put(id, workspace.child(Utils.constructPackageFileName(id, build.getNumber())));
+            else
+                packages.put(id, PackageHandoff.fetch(build, source, workspace, listener, id));
+        }
+        Utils.checkStepResult(runStep(build, workspace, launcher, listener, packages, "0." + source.getNumber()), "PUBLISH");
+    }
 
-        params.add("PUBLISH");
-        params.add("/package=" + packageFileName);
-        params.add("/nugetFeedUrl=" + getNugetFeedUrl());
+    private boolean runStep(final Run<?, ?> build, final FilePath workspace, final Launcher launcher, TaskListener listener,
+                            Map<String, FilePath> packages, String version) {
+        if (packages.isEmpty()) {
+            listener.error("Enter the ID of a package to publish.");
+            return false;
+        }
 
-        if (!getNugetFeedApiKey().isEmpty()) {
-            params.add("/nugetFeedApiKey=" + getNugetFeedApiKey());
+        PublishPipeline.Feed feed = new PublishPipeline.Feed() {
+            public Boolean hasPackage(String packageid, String version) throws IOException, InterruptedException {
+                return workspace.act(new NuGetFeedQuery(getNugetFeedUrl(), packageid, version));
+            }
+
+            public boolean push(FilePath packageFile, FilePath directory, TaskListener packageListener) {
+                ArrayList<String> params = new ArrayList<String>();
+                params.add("PUBLISH");
+                params.add("/package=" + packageFile.getRemote());
+                params.add("/nugetFeedUrl=" + getNugetFeedUrl());
+
+                if (!getNugetFeedApiKey().isEmpty()) {
+                    params.add("/nugetFeedApiKey=" + getNugetFeedApiKey());
+                }
+
+                return Utils.runSQLCIWithParams(build, directory, launcher, packageListener, params);
+            }
+        };
+
+        try {
+            PublishPipeline pipeline = new PublishPipeline(feed, getNugetFeedUrl(), PublishedPackageIndex.get(),
+                    workspace.child(".redgatesqlci").child("publish"), listener, getMaxParallelUploads(),
+                    getUploadAttempts(), INITIAL_BACKOFF_MILLIS, getSkipPublished());
+            long start = System.currentTimeMillis();
+            List<PublishPipeline.PackageResult> results = pipeline.run(packages, version);
+            build.addAction(new PublishedPackagesAction(getNugetFeedUrl(), results, System.currentTimeMillis() - start));
+
+            boolean success = true;
+            for (PublishPipeline.PackageResult result : results)
+                success &= result.getStatus().isSuccess();
+            return success;
+        } catch (IOException e) {
+            listener.error(e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            listener.getLogger().println("InterruptedException");
+            Thread.currentThread().interrupt();
+            return false;
         }
+    }
 
-        return Utils.runSQLCIWithParams(build, launcher, listener, params);
+    // Several package IDs can be given, separated by commas or white space, which package IDs can't contain.
+    static List<String> packageids(String value) {
+        List<String> ids = new ArrayList<String>();
+        for (String id : value.split("[,\\s]+")) {
+            if (!id.isEmpty() && !ids.contains(id))
+                ids.add(id);
+        }
+        return ids;
     }
 
 
@@ -84,6 +197,26 @@ public class PublishBuilder extends Builder {
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckMaxParallelUploads(@QueryParameter String value) throws IOException, ServletException {
+            try {
+                if (Integer.parseInt(value) < 1)
+                    return FormValidation.error("Enter at least 1 upload.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Enter a whole number of uploads.");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckUploadAttempts(@QueryParameter String value) throws IOException, ServletException {
+            try {
+                if (Integer.parseInt(value) < 1)
+                    return FormValidation.error("Enter at least 1 attempt.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Enter a whole number of attempts.");
+            }
+            return FormValidation.ok();
+        }
+
         public FormValidation doCheckNugetFeedUrl(@QueryParameter String nugetFeedUrl) throws IOException, ServletException {
             if (nugetFeedUrl.length() == 0)
                 return FormValidation.error("Enter a NuGet package feed URL");
@@ -0,0 +1,183 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Publishes several packages to a feed at once, at most {@code maxParallel} at a time, retrying failed uploads
+ * with exponential backoff.
+ * <p>
+ * With {@code skipPublished}, a package whose content is already on the feed under an earlier version isn't
+ * uploaded again. What was published is looked up in a {@link PublishedPackageIndex}, and confirmed with the feed.
+ */
+public class PublishPipeline {
+
+    /**
+     * The feed packages are published to. Stand in for it to publish somewhere other than a real NuGet feed.
+     */
+    public interface Feed {
+        /**
+         * @return whether the feed has the package version, or null if that can't be told.
+         */
+        Boolean hasPackage(String packageid, String version) throws IOException, InterruptedException;
+
+        /**
+         * Uploads a package, working in {@code directory} and logging to {@code listener}.
+         *
+         * @return true if the feed accepted the package.
+         */
+        boolean push(FilePath packageFile, FilePath directory, TaskListener listener) throws IOException, InterruptedException;
+    }
+
+    /**
+     * PUBLISHED means the package was uploaded; ALREADY_PUBLISHED that the feed already had its content under
+     * an earlier version.
+     */
+    public enum Status {
+        PUBLISHED, ALREADY_PUBLISHED, FAILED, SKIPPED;
+
+        public boolean isSuccess() {
+            return this == PUBLISHED || this == ALREADY_PUBLISHED;
+        }
+    }
+
+    public static class PackageResult {
+        private final String packageid;
+        private final Status status;
+        private final String feedVersion;
+        private final int attempts;
+        private final long elapsedMillis;
+
+        PackageResult(String packageid, Status status, String feedVersion, int attempts, long elapsedMillis) {
+            this.packageid = packageid;
+            this.status = status;
+            this.feedVersion = feedVersion;
+            this.attempts = attempts;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public String getPackageid() {
+            return packageid;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        /**
+         * The version on the feed that holds the package's content, or null if it isn't on the feed.
+         */
+        public String getFeedVersion() {
+            return feedVersion;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    private final Feed feed;
+    private final String feedUrl;
+    private final PublishedPackageIndex index;
+    private final FilePath packagesRoot;
+    private final TaskListener listener;
+    private final int maxParallel;
+    private final int maxAttempts;
+    private final long initialBackoffMillis;
+    private final boolean skipPublished;
+
+    /**
+     * @param feedUrl the feed's URL, as the index records it.
+     * @param packagesRoot where each upload gets its own working directory.
+     * @param maxAttempts how many times to try each upload, including the first.
+     */
+    public PublishPipeline(Feed feed, String feedUrl, PublishedPackageIndex index, FilePath packagesRoot, TaskListener listener,
+                           int maxParallel, int maxAttempts, long initialBackoffMillis, boolean skipPublished) {
+        this.feed = feed;
+        this.feedUrl = feedUrl;
+        this.index = index;
+        this.packagesRoot = packagesRoot;
+        this.listener = listener;
+        this.maxParallel = Math.max(1, maxParallel);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.skipPublished = skipPublished;
+    }
+
+    /**
+     * @param packages the package file for each package ID, all at {@code version}.
+     */
+    public List<PackageResult> run(final Map<String, FilePath> packages, final String version) throws IOException, InterruptedException {
+        packagesRoot.deleteRecursive();
+        List<String> packageids = new ArrayList<String>(packages.keySet());
+        FanOut<String, PackageResult> fanOut = new FanOut<String, PackageResult>(listener, maxParallel);
+        List<PackageResult> results = fanOut.run(packageids, new FanOut.Task<String, PackageResult>() {
+            public PackageResult run(int index, String packageid, TaskListener packageListener) throws IOException, InterruptedException {
+                return publish(index, packageid, packages.get(packageid), version, packageListener);
+            }
+        });
+
+        List<PackageResult> all = new ArrayList<PackageResult>();
+        for (int i = 0; i < results.size(); i++)
+            all.add(results.get(i) != null ? results.get(i) : new PackageResult(packageids.get(i), Status.SKIPPED, null, 0, 0));
+        return all;
+    }
+
+    private PackageResult publish(int position, String packageid, FilePath packageFile, String version, TaskListener packageListener)
+            throws IOException, InterruptedException {
+        FilePath directory = packagesRoot.child("package-" + (position + 1));
+        directory.mkdirs();
+
+        long start = System.currentTimeMillis();
+        if (!packageFile.exists()) {
+            packageListener.error("There is no package file " + packageFile.getName() + " to publish.");
+            return new PackageResult(packageid, Status.FAILED, null, 0, System.currentTimeMillis() - start);
+        }
+
+        String contentHash = packageFile.act(new PackageContentHash(false));
+        if (skipPublished) {
+            String published = index.lookup(feedUrl, packageid, contentHash);
+            if (published != null) {
+                Boolean onFeed = feed.hasPackage(packageid, published);
+                if (Boolean.TRUE.equals(onFeed)) {
+                    packageListener.getLogger().println("The feed already has this package's content as version " + published + ". Not uploading it again.");
+                    return new PackageResult(packageid, Status.ALREADY_PUBLISHED, published, 0, System.currentTimeMillis() - start);
+                }
+                if (onFeed == null) {
+                    packageListener.getLogger().println("Could not check whether the feed still has version " + published + ". Uploading the package.");
+                } else {
+                    packageListener.getLogger().println("Version " + published + " has been removed from the feed. Uploading the package.");
+                    index.forget(feedUrl, packageid, contentHash);
+                }
+            }
+        }
+
+        long backoffMillis = initialBackoffMillis;
+        for (int attempt = 1; ; attempt++) {
+            boolean pushed = feed.push(packageFile, directory, packageListener);
+            // A push that timed out may still have reached the feed, and pushing it again would be refused.
+            if (!pushed && attempt > 1 && Boolean.TRUE.equals(feed.hasPackage(packageid, version))) {
+                packageListener.getLogger().println("The feed has version " + version + " after all.");
+                pushed = true;
+            }
+            if (pushed) {
+                index.record(feedUrl, packageid, contentHash, version);
+                return new PackageResult(packageid, Status.PUBLISHED, version, attempt, System.currentTimeMillis() - start);
+            }
+            if (attempt >= maxAttempts)
+                return new PackageResult(packageid, Status.FAILED, null, attempt, System.currentTimeMillis() - start);
+
+            packageListener.getLogger().println("Upload attempt " + attempt + " of " + maxAttempts + " failed. Trying again in "
+                    + (backoffMillis / 1000) + " seconds.");
+            Thread.sleep(backoffMillis);
+            backoffMillis *= 2;
+        }
+    }
+}
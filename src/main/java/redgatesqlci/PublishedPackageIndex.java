@@ -0,0 +1,103 @@
+package redgatesqlci;
+
+import jenkins.model.Jenkins;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Controller-wide record of which package versions were published to which feed, keyed by the package's content
+ * hash, so that publishing the same content again can be skipped.
+ * <p>
+ * The record can be out of date, as packages can be deleted from a feed by hand, so always check with the feed
+ * before relying on an entry.
+ */
+public class PublishedPackageIndex {
+    private static final Logger LOGGER = Logger.getLogger(PublishedPackageIndex.class.getName());
+
+    private static PublishedPackageIndex instance;
+
+    public static synchronized PublishedPackageIndex get() {
+        if (instance == null)
+            instance = new PublishedPackageIndex(new File(Jenkins.getInstance().getRootDir(), "redgatesqlci-published-packages.txt"));
+        return instance;
+    }
+
+    private final File file;
+
+    // Feed, package ID and content hash, tab-separated, to the version published with that content.
+    private final Map<String, String> versions = new LinkedHashMap<String, String>();
+
+    PublishedPackageIndex(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * @return the version of the package published to the feed with this content, or null if there isn't one.
+     */
+    public synchronized String lookup(String feedUrl, String packageid, String contentHash) {
+        return versions.get(key(feedUrl, packageid, contentHash));
+    }
+
+    public synchronized void record(String feedUrl, String packageid, String contentHash, String version) {
+        versions.put(key(feedUrl, packageid, contentHash), version);
+        save();
+    }
+
+    public synchronized void forget(String feedUrl, String packageid, String contentHash) {
+        if (versions.remove(key(feedUrl, packageid, contentHash)) != null)
+            save();
+    }
+
+    // Feed URLs differing only in case or a trailing slash are the same feed, and NuGet package IDs ignore case.
+    private static String key(String feedUrl, String packageid, String contentHash) {
+        String feed = feedUrl.trim().toLowerCase(Locale.ENGLISH);
+        while (feed.endsWith("/"))
+            feed = feed.substring(0, feed.length() - 1);
+        return feed + "\t" + packageid.trim().toLowerCase(Locale.ENGLISH) + "\t" + contentHash;
+    }
+
+    private void load() {
+        if (!file.isFile())
+            return;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int lastTab = line.lastIndexOf('\t');
+                    if (lastTab > 0)
+                        versions.put(line.substring(0, lastTab), line.substring(lastTab + 1));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // Losing the record only costs us uploading packages again.
+            LOGGER.log(Level.WARNING, "Could not read published package index " + file, e);
+            versions.clear();
+        }
+    }
+
+    private void save() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(temp)), "UTF-8");
+            try {
+                for (Map.Entry<String, String> entry : versions.entrySet())
+                    writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+            } finally {
+                writer.close();
+            }
+            if (file.exists() && !file.delete())
+                throw new IOException("Could not replace " + file);
+            if (!temp.renameTo(file))
+                throw new IOException("Could not move " + temp + " to " + file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write published package index " + file, e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package redgatesqlci;
+
+import hudson.Util;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows how publishing each package to the feed went.
+ */
+public class PublishedPackagesAction implements Action {
+
+    public static class Package {
+        private final String packageid;
+        private final String status;
+        private final String feedVersion;
+        private final int attempts;
+        private final long elapsedMillis;
+
+        Package(String packageid, String status, String feedVersion, int attempts, long elapsedMillis) {
+            this.packageid = packageid;
+            this.status = status;
+            this.feedVersion = feedVersion;
+            this.attempts = attempts;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public String getPackageid() {
+            return packageid;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getFeedVersion() {
+            return feedVersion == null ? "" : feedVersion;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public String getDuration() {
+            return elapsedMillis == 0 ? "" : Util.getTimeSpanString(elapsedMillis);
+        }
+    }
+
+    private final String nugetFeedUrl;
+    private final long elapsedMillis;
+    private final List<Package> packages;
+
+    public PublishedPackagesAction(String nugetFeedUrl, List<PublishPipeline.PackageResult> results, long elapsedMillis) {
+        this.nugetFeedUrl = nugetFeedUrl;
+        this.elapsedMillis = elapsedMillis;
+        this.packages = new ArrayList<Package>();
+        for (PublishPipeline.PackageResult result : results) {
+            packages.add(new Package(result.getPackageid(), result.getStatus().name(), result.getFeedVersion(),
+                    result.getAttempts(), result.getElapsedMillis()));
+        }
+    }
+
+    public String getNugetFeedUrl() {
+        return nugetFeedUrl;
+    }
+
+    public String getDuration() {
+        return Util.getTimeSpanString(elapsedMillis);
+    }
+
+    public List<Package> getPackages() {
+        return Collections.unmodifiableList(packages);
+    }
+
+    public int count(String status) {
+        int count = 0;
+        for (Package published : packages) {
+            if (published.getStatus().equals(status))
+                count++;
+        }
+        return count;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "SQL CI published packages";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,223 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * One sqlci step, run entirely on the node that owns the working directory: finding sqlci, launching it,
+ * parsing its output and measuring the package. The controller makes one call, receives the log in chunks,
+ * and gets a {@link Result} back at the end.
+ */
+public class RemoteSqlCiStep implements FilePath.FileCallable<RemoteSqlCiStep.Result> {
+    private static final long serialVersionUID = 1L;
+
+    private static final int LOG_CHUNK_SIZE = 16 * 1024;
+    private static final long LOG_MAX_AGE_MILLIS = 500;
+
+    private final List<String> params;
+    private final SqlCiExecutable.Location knownLocation;
+    private final String home;
+    private final TaskListener listener;
+    private final String fullLogPath;
+    private final int tailLines;
+    private final long timeoutMillis;
+    private final long stallMillis;
+
+    /**
+     * @param knownLocation where sqlci was last found on this node, or null.
+     * @param home          the configured installation's home on this node, or null to search Program Files.
+     * @param fullLogPath   where to write all of sqlci's output, gzipped, leaving only warnings and errors for the
+     *                      build log; or null to send it all to the build log.
+     * @param tailLines     how many of the last lines of output to print if sqlci fails, when there is a full log.
+     * @param timeoutMillis how long sqlci may run before it is stopped, or 0 for no limit.
+     * @param stallMillis   how long sqlci may go without writing output before it is stopped, or 0 for no limit.
+     */
+    public RemoteSqlCiStep(List<String> params, SqlCiExecutable.Location knownLocation, String home, TaskListener listener,
+                           String fullLogPath, int tailLines, long timeoutMillis, long stallMillis) {
+        this.params = new ArrayList<String>(params);
+        this.knownLocation = knownLocation;
+        this.home = home;
+        this.listener = listener;
+        this.fullLogPath = fullLogPath;
+        this.tailLines = tailLines;
+        this.timeoutMillis = timeoutMillis;
+        this.stallMillis = stallMillis;
+    }
+
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final SqlCiExecutable.Location location;
+        private final long resolveMillis;
+        private final long launchMillis;
+        private final long runMillis;
+        private final int exitCode;
+        private final SqlCiTimeline timeline;
+        private final long outputBytes;
+        private final long packageBytes;
+        private final String stopReason;
+        private final String diagnostics;
+
+        Result(SqlCiExecutable.Location location, long resolveMillis, long launchMillis, long runMillis, int exitCode,
+               SqlCiTimeline timeline, long outputBytes, long packageBytes, String stopReason, String diagnostics) {
+            this.location = location;
+            this.resolveMillis = resolveMillis;
+            this.launchMillis = launchMillis;
+            this.runMillis = runMillis;
+            this.exitCode = exitCode;
+            this.timeline = timeline;
+            this.outputBytes = outputBytes;
+            this.packageBytes = packageBytes;
+            this.stopReason = stopReason;
+            this.diagnostics = diagnostics;
+        }
+
+        public SqlCiExecutable.Location getLocation() {
+            return location;
+        }
+
+        public long getResolveMillis() {
+            return resolveMillis;
+        }
+
+        public long getLaunchMillis() {
+            return launchMillis;
+        }
+
+        public long getRunMillis() {
+            return runMillis;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        // Null if sqlci wasn't found.
+        public SqlCiTimeline getTimeline() {
+            return timeline;
+        }
+
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+
+        public long getPackageBytes() {
+            return packageBytes;
+        }
+
+        /**
+         * Why the watchdog stopped sqlci, or null if it ran to the end.
+         */
+        public String getStopReason() {
+            return stopReason;
+        }
+
+        // Null unless the watchdog stopped sqlci.
+        public String getDiagnostics() {
+            return diagnostics;
+        }
+    }
+
+    public Result invoke(File workingDirectory, VirtualChannel channel) throws IOException, InterruptedException {
+        long resolveStart = System.currentTimeMillis();
+        SqlCiExecutable.Location location = knownLocation;
+        if (location == null || !location.isCurrent())
+            location = SqlCiExecutable.search(home);
+        long resolveMillis = System.currentTimeMillis() - resolveStart;
+        if (!location.isFound())
+            return new Result(location, resolveMillis, 0, 0, -1, null, 0, -1, null, null);
+
+        List<String> procParams = new ArrayList<String>();
+        procParams.add(location.path);
+        procParams.addAll(params);
+
+        // Send output and error streams to the log in chunks, through a parser that times each phase.
+
+        BatchingOutputStream log = new BatchingOutputStream(listener.getLogger(), LOG_CHUNK_SIZE, LOG_MAX_AGE_MILLIS);
+        CompactConsoleOutputStream compact = null;
+        if (fullLogPath != null)
+            compact = new CompactConsoleOutputStream(new GZIPOutputStream(new FileOutputStream(fullLogPath), LOG_CHUNK_SIZE), log, tailLines);
+        SqlCiOutputParser parser = new SqlCiOutputParser(compact != null ? compact : log);
+        long runStart = System.currentTimeMillis();
+        long launchMillis;
+        int exitCode;
+        String stopReason = null;
+        String diagnostics = null;
+        try {
+            SqlCiWatchdog watchdog = new SqlCiWatchdog(timeoutMillis, stallMillis);
+            Proc proc = new Launcher.LocalLauncher(listener).launch().cmds(procParams).envs(watchdog.environment())
+                    .pwd(workingDirectory).stdout(parser).stderr(parser).start();
+            launchMillis = System.currentTimeMillis() - runStart;
+            try {
+                while (proc.isAlive()) {
+                    Thread.sleep(LOG_MAX_AGE_MILLIS);
+                    log.flushIfStale();
+                    stopReason = watchdog.check(parser.getBytes());
+                    if (stopReason != null) {
+                        // The snapshot lists sqlci's processes before they're gone. Killing sqlci also kills the
+                        // processes it started.
+                        diagnostics = watchdog.snapshot(stopReason, params, workingDirectory.getPath());
+                        proc.kill();
+                        break;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // The build was aborted.
+                proc.kill();
+                throw e;
+            }
+            exitCode = proc.join();
+        } finally {
+            if (compact != null)
+                compact.close();
+            log.flush();
+        }
+        long runMillis = System.currentTimeMillis() - runStart;
+
+        if (compact != null) {
+            listener.getLogger().println("SQL CI wrote " + compact.getLineCount() + " lines (" + Utils.formatBytes(parser.getBytes())
+                    + "), with " + compact.getProblemCount() + " warnings and errors. The full output is archived with the build as "
+                    + new File(fullLogPath).getName() + ".");
+            if (exitCode != 0)
+                compact.printTail(listener.getLogger());
+        }
+
+        return new Result(location, resolveMillis, launchMillis, runMillis, exitCode,
+                parser.finish(params.get(0)), parser.getBytes(), packageSize(workingDirectory), stopReason, diagnostics);
+    }
+
+    // The size of the package the step built or used, or -1 if it can't be found.
+    private long packageSize(File workingDirectory) {
+        String packagePath = null;
+        String packageId = null;
+        String packageVersion = null;
+        for (String param : params) {
+            if (param.startsWith("/package="))
+                packagePath = param.substring("/package=".length());
+            else if (param.startsWith("/packageId="))
+                packageId = param.substring("/packageId=".length());
+            else if (param.startsWith("/packageVersion="))
+                packageVersion = param.substring("/packageVersion=".length());
+        }
+        if (packagePath == null && packageId != null && packageVersion != null)
+            packagePath = packageId + "." + packageVersion + ".nupkg";
+        if (packagePath == null)
+            return -1;
+
+        File packageFile = new File(packagePath);
+        if (!packageFile.isAbsolute())
+            packageFile = new File(workingDirectory, packagePath);
+        return packageFile.isFile() ? packageFile.length() : -1;
+    }
+}
@@ -6,6 +6,8 @@ public class RunTestSet
 {
     private String value;
     private String runOnlyParams;
+    private int shardCount;
+    private int fullRunEvery;
 
     public String getvalue() {
         return value;
@@ -13,11 +15,19 @@ public class RunTestSet
     public String getRunOnlyParams() {
         return runOnlyParams;
     }
+    public int getShardCount() {
+        return shardCount;
+    }
+    public int getFullRunEvery() {
+        return fullRunEvery;
+    }
 
     @DataBoundConstructor
-    public RunTestSet(String value, String runOnlyParams)
+    public RunTestSet(String value, String runOnlyParams, int shardCount, int fullRunEvery)
     {
         this.value = value;
         this.runOnlyParams = runOnlyParams;
+        this.shardCount = shardCount;
+        this.fullRunEvery = fullRunEvery;
     }
 }
\ No newline at end of file
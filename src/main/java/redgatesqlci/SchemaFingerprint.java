@@ -0,0 +1,86 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Hashes the schema of a database: its schemas, objects and module definitions, columns, indexes, constraints
+ * and foreign keys, in a fixed order. Databases with the same user schema get the same hash whatever their name,
+ * and whatever names SQL Server gave their unnamed constraints.
+ * Runs sqlcmd on the node the working directory is on, and hashes its output there as it streams.
+ */
+public class SchemaFingerprint implements FilePath.FileCallable<String> {
+    private static final long serialVersionUID = 1L;
+
+    // Constraints are hashed by what they do rather than by object, and the names SQL Server makes up for unnamed
+    // constraints, such as PK__Orders__3213E83F, are left out, as they differ in every database.
+    static final String SQL = "SET NOCOUNT ON;\n"
+            + "SELECT name FROM sys.schemas WHERE schema_id BETWEEN 5 AND 16383 ORDER BY name;\n"
+            + "SELECT SCHEMA_NAME(o.schema_id), o.name, o.type, ISNULL(m.definition, '') FROM sys.objects o"
+            + " LEFT JOIN sys.sql_modules m ON m.object_id = o.object_id"
+            + " WHERE o.is_ms_shipped = 0 AND o.type NOT IN ('PK', 'UQ', 'D', 'C', 'F') ORDER BY 1, 2;\n"
+            + "SELECT OBJECT_SCHEMA_NAME(c.object_id), OBJECT_NAME(c.object_id), c.column_id, c.name, TYPE_NAME(c.user_type_id),"
+            + " c.max_length, c.precision, c.scale, c.is_nullable, c.is_identity, ISNULL(cc.definition, ''), c.collation_name"
+            + " FROM sys.columns c JOIN sys.objects o ON o.object_id = c.object_id"
+            + " LEFT JOIN sys.computed_columns cc ON cc.object_id = c.object_id AND cc.column_id = c.column_id"
+            + " WHERE o.is_ms_shipped = 0 ORDER BY 1, 2, 3;\n"
+            + "SELECT OBJECT_SCHEMA_NAME(i.object_id), OBJECT_NAME(i.object_id),"
+            + " CASE WHEN kc.is_system_named = 1 THEN '' ELSE i.name END, i.type, i.is_unique, i.is_primary_key,"
+            + " ISNULL(i.filter_definition, ''), ic.key_ordinal, COL_NAME(ic.object_id, ic.column_id), ic.is_descending_key, ic.is_included_column"
+            + " FROM sys.indexes i JOIN sys.index_columns ic ON ic.object_id = i.object_id AND ic.index_id = i.index_id"
+            + " LEFT JOIN sys.key_constraints kc ON kc.parent_object_id = i.object_id AND kc.unique_index_id = i.index_id"
+            + " JOIN sys.objects o ON o.object_id = i.object_id WHERE o.is_ms_shipped = 0 ORDER BY 1, 2, 3, 6, 4, 5, 7, 11, 8, 9;\n"
+            + "SELECT OBJECT_SCHEMA_NAME(parent_object_id), OBJECT_NAME(parent_object_id), ISNULL(COL_NAME(parent_object_id, parent_column_id), ''),"
+            + " CASE WHEN is_system_named = 1 THEN '' ELSE name END, definition FROM sys.default_constraints"
+            + " UNION ALL SELECT OBJECT_SCHEMA_NAME(parent_object_id), OBJECT_NAME(parent_object_id), ISNULL(COL_NAME(parent_object_id, parent_column_id), ''),"
+            + " CASE WHEN is_system_named = 1 THEN '' ELSE name END, definition FROM sys.check_constraints"
+            + " ORDER BY 1, 2, 3, 4, 5;\n"
+            + "SELECT OBJECT_SCHEMA_NAME(fk.parent_object_id), OBJECT_NAME(fk.parent_object_id), CASE WHEN f.is_system_named = 1 THEN '' ELSE f.name END,"
+            + " COL_NAME(fk.parent_object_id, fk.parent_column_id), OBJECT_SCHEMA_NAME(fk.referenced_object_id),"
+            + " OBJECT_NAME(fk.referenced_object_id), COL_NAME(fk.referenced_object_id, fk.referenced_column_id)"
+            + " FROM sys.foreign_key_columns fk JOIN sys.foreign_keys f ON f.object_id = fk.constraint_object_id ORDER BY 1, 2, 3, 5, 6, 4, 7;\n"
+            + "SELECT SCHEMA_NAME(schema_id), name, TYPE_NAME(system_type_id), max_length, precision, scale, is_nullable"
+            + " FROM sys.types WHERE is_user_defined = 1 ORDER BY 1, 2;";
+
+    private final SqlCmd sqlCmd;
+    private final String database;
+    private final TaskListener listener;
+
+    public SchemaFingerprint(SqlCmd sqlCmd, String database, TaskListener listener) {
+        this.sqlCmd = sqlCmd;
+        this.database = database;
+        this.listener = listener;
+    }
+
+    /**
+     * @return the schema hash, or null if the database couldn't be read.
+     */
+    public String invoke(File workingDirectory, VirtualChannel channel) throws IOException, InterruptedException {
+        MessageDigest digest = ScriptsFolderFingerprinter.newDigest();
+        OutputStream out = new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, digest);
+        try {
+            if (!sqlCmd.query(new Launcher.LocalLauncher(listener), database, SQL, out))
+                return null;
+        } finally {
+            out.close();
+        }
+        return Util.toHexString(digest.digest());
+    }
+}
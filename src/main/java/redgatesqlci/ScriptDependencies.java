@@ -0,0 +1,180 @@
+package redgatesqlci;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The objects a set of scripts define and how they depend on each other, as far as can be told without parsing T-SQL.
+ * <p>
+ * Each script's CREATE statements say which objects it defines, and any name in a script that matches a defined
+ * object, even inside a string as in tSQLt.FakeTable 'dbo.Orders', is taken as a reference to it. Objects are named
+ * schema.name in lower case, with dbo assumed; schemas are named schema:name, and every object depends on its schema.
+ */
+public class ScriptDependencies {
+    private static final String NAME = "(\\[[^\\]]+\\]|\"[^\"]+\"|[A-Za-z_@#][\\w@#$]*)";
+
+    private static final Pattern CREATE = Pattern.compile(
+            "\\bCREATE\\s+(?:OR\\s+ALTER\\s+)?(?:TABLE|VIEW|PROC|PROCEDURE|FUNCTION|TRIGGER|TYPE|SYNONYM|SEQUENCE)\\s+"
+                    + "(?:" + NAME + "\\s*\\.\\s*)?" + NAME,
+            Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern CREATE_SCHEMA = Pattern.compile("\\bCREATE\\s+SCHEMA\\s+" + NAME, Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern REFERENCE = Pattern.compile("(?:" + NAME + "\\s*\\.\\s*)?" + NAME);
+
+    private final Map<String, List<String>> definedByScript = new HashMap<String, List<String>>();
+    private final Map<String, String> scriptText = new HashMap<String, String>();
+    private final Map<String, String> scriptByObject = new HashMap<String, String>();
+    private final Map<String, Set<String>> objectsByName = new HashMap<String, Set<String>>();
+
+    // Built on first use: for each object, the objects it mentions, and the objects that mention it.
+    private Map<String, Set<String>> dependencies;
+    private Map<String, Set<String>> dependants;
+
+    public void add(String scriptKey, String script) {
+        List<String> defined = definedObjects(script);
+        definedByScript.put(scriptKey, defined);
+        scriptText.put(scriptKey, script);
+        for (String object : defined) {
+            scriptByObject.put(object, scriptKey);
+            if (!object.startsWith("schema:")) {
+                String name = object.substring(object.indexOf('.') + 1);
+                Set<String> set = objectsByName.get(name);
+                if (set == null)
+                    objectsByName.put(name, set = new HashSet<String>());
+                set.add(object);
+            }
+        }
+        dependencies = null;
+        dependants = null;
+    }
+
+    public Set<String> getScripts() {
+        return Collections.unmodifiableSet(definedByScript.keySet());
+    }
+
+    /**
+     * The objects a script defines, or null if there is no such script.
+     */
+    public List<String> definedBy(String scriptKey) {
+        return definedByScript.get(scriptKey);
+    }
+
+    /**
+     * The script that defines an object, or null if no script does.
+     */
+    public String scriptDefining(String object) {
+        return scriptByObject.get(object);
+    }
+
+    /**
+     * The given objects and every object that depends on them, directly or not.
+     */
+    public Set<String> withDependants(Collection<String> objects) throws InterruptedException {
+        link();
+        return closure(objects, dependants);
+    }
+
+    /**
+     * The given objects and every object they depend on, directly or not.
+     */
+    public Set<String> withDependencies(Collection<String> objects) throws InterruptedException {
+        link();
+        return closure(objects, dependencies);
+    }
+
+    private static Set<String> closure(Collection<String> objects, Map<String, Set<String>> edges) {
+        Set<String> reached = new HashSet<String>(objects);
+        Deque<String> pending = new ArrayDeque<String>(objects);
+        while (!pending.isEmpty()) {
+            Set<String> next = edges.get(pending.pop());
+            if (next == null)
+                continue;
+            for (String object : next) {
+                if (reached.add(object))
+                    pending.push(object);
+            }
+        }
+        return reached;
+    }
+
+    private void link() throws InterruptedException {
+        if (dependencies != null)
+            return;
+
+        dependencies = new HashMap<String, Set<String>>();
+        dependants = new HashMap<String, Set<String>>();
+        for (Map.Entry<String, String> script : scriptText.entrySet()) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            List<String> defined = definedByScript.get(script.getKey());
+            if (defined.isEmpty())
+                continue;
+            Set<String> referenced = references(script.getValue());
+            for (String object : defined) {
+                if (!object.startsWith("schema:")) {
+                    String schema = "schema:" + object.substring(0, object.indexOf('.'));
+                    if (scriptByObject.containsKey(schema))
+                        link(object, schema);
+                }
+                for (String other : referenced) {
+                    if (!defined.contains(other))
+                        link(object, other);
+                }
+            }
+        }
+    }
+
+    private void link(String object, String dependency) {
+        Set<String> set = dependencies.get(object);
+        if (set == null)
+            dependencies.put(object, set = new HashSet<String>());
+        set.add(dependency);
+
+        set = dependants.get(dependency);
+        if (set == null)
+            dependants.put(dependency, set = new HashSet<String>());
+        set.add(object);
+    }
+
+    static List<String> definedObjects(String script) {
+        List<String> defined = new ArrayList<String>();
+        Matcher create = CREATE.matcher(script);
+        while (create.find())
+            defined.add(objectName(create.group(1), create.group(2)));
+        Matcher createSchema = CREATE_SCHEMA.matcher(script);
+        while (createSchema.find())
+            defined.add("schema:" + unquote(createSchema.group(1)));
+        return defined;
+    }
+
+    private Set<String> references(String script) {
+        Set<String> referenced = new HashSet<String>();
+        Matcher matcher = REFERENCE.matcher(script);
+        while (matcher.find()) {
+            Set<String> candidates = objectsByName.get(unquote(matcher.group(2)));
+            if (candidates == null)
+                continue;
+            if (matcher.group(1) == null) {
+                // An unqualified name could be any schema's object of that name.
+                referenced.addAll(candidates);
+            } else {
+                String qualified = objectName(matcher.group(1), matcher.group(2));
+                if (candidates.contains(qualified))
+                    referenced.add(qualified);
+            }
+        }
+        return referenced;
+    }
+
+    private static String objectName(String schema, String name) {
+        return (schema == null ? "dbo" : unquote(schema)) + "." + unquote(name);
+    }
+
+    private static String unquote(String name) {
+        if (name.startsWith("[") || name.startsWith("\""))
+            name = name.substring(1, name.length() - 1);
+        return name.toLowerCase();
+    }
+}
@@ -0,0 +1,37 @@
+package redgatesqlci;
+
+import java.io.Serializable;
+
+/**
+ * A problem found in a script before SQL CI was run, at a line of a file in the scripts folder.
+ */
+public class ScriptDiagnostic implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String path;
+    private final int line;
+    private final String message;
+
+    public ScriptDiagnostic(String path, int line, String message) {
+        this.path = path;
+        this.line = line;
+        this.message = message;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return path + ":" + line + ": " + message;
+    }
+}
@@ -0,0 +1,176 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Checks every script in a scripts folder with {@link TSqlChecker}, on the node that holds it and several at once.
+ * <p>
+ * Results are kept in a cache file keyed by each script's content hash, taken from the scripts folder manifest,
+ * so a script is only checked again once it changes.
+ */
+public class ScriptPreValidator implements FilePath.FileCallable<ScriptPreValidator.Result> {
+    private static final long serialVersionUID = 1L;
+
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ScriptDiagnostic> diagnostics;
+        private final int scriptCount;
+        private final int checkedCount;
+
+        Result(List<ScriptDiagnostic> diagnostics, int scriptCount, int checkedCount) {
+            this.diagnostics = diagnostics;
+            this.scriptCount = scriptCount;
+            this.checkedCount = checkedCount;
+        }
+
+        public List<ScriptDiagnostic> getDiagnostics() {
+            return diagnostics;
+        }
+
+        public int getScriptCount() {
+            return scriptCount;
+        }
+
+        /**
+         * The number of scripts that had to be checked; the rest had cached results.
+         */
+        public int getCheckedCount() {
+            return checkedCount;
+        }
+    }
+
+    private final TreeMap<String, String> hashes;
+    private final String cachePath;
+
+    /**
+     * @param hashes the scripts folder manifest's content hashes, keyed by path relative to the folder.
+     * @param cachePath where to keep the results cache on the node, outside the scripts folder or in a hidden directory.
+     */
+    public ScriptPreValidator(SortedMap<String, String> hashes, String cachePath) {
+        this.hashes = new TreeMap<String, String>(hashes);
+        this.cachePath = cachePath;
+    }
+
+    public Result invoke(final File folder, VirtualChannel channel) throws IOException, InterruptedException {
+        File cacheFile = new File(cachePath);
+        Map<String, List<ScriptDiagnostic>> cached = readCache(cacheFile);
+        Map<String, List<ScriptDiagnostic>> current = new HashMap<String, List<ScriptDiagnostic>>();
+
+        List<String> unchecked = new ArrayList<String>();
+        int scriptCount = 0;
+        for (Map.Entry<String, String> file : hashes.entrySet()) {
+            if (!file.getKey().toLowerCase().endsWith(".sql"))
+                continue;
+            scriptCount++;
+            List<ScriptDiagnostic> known = cached.get(file.getValue());
+            if (known != null)
+                current.put(file.getValue(), known);
+            else
+                unchecked.add(file.getKey());
+        }
+
+        if (!unchecked.isEmpty()) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(unchecked.size(), Runtime.getRuntime().availableProcessors()));
+            try {
+                Map<String, Future<List<ScriptDiagnostic>>> pending = new LinkedHashMap<String, Future<List<ScriptDiagnostic>>>();
+                for (final String relativePath : unchecked) {
+                    pending.put(relativePath, executor.submit(new Callable<List<ScriptDiagnostic>>() {
+                        public List<ScriptDiagnostic> call() throws IOException {
+                            InputStream in = new FileInputStream(new File(folder, relativePath));
+                            try {
+                                return TSqlChecker.check(relativePath, TestClassLister.readScript(in));
+                            } finally {
+                                in.close();
+                            }
+                        }
+                    }));
+                }
+                for (Map.Entry<String, Future<List<ScriptDiagnostic>>> entry : pending.entrySet()) {
+                    try {
+                        current.put(hashes.get(entry.getKey()), entry.getValue().get());
+                    } catch (ExecutionException e) {
+                        throw new IOException("Could not check " + entry.getKey() + ": " + e.getCause().getMessage());
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        File cacheDir = cacheFile.getParentFile();
+        if (cacheDir != null)
+            cacheDir.mkdirs();
+        writeCache(cacheFile, current);
+
+        // Cached diagnostics are keyed by content, so report them against the script's current path.
+        List<ScriptDiagnostic> diagnostics = new ArrayList<ScriptDiagnostic>();
+        for (Map.Entry<String, String> file : hashes.entrySet()) {
+            List<ScriptDiagnostic> found = current.get(file.getValue());
+            if (found == null || !file.getKey().toLowerCase().endsWith(".sql"))
+                continue;
+            for (ScriptDiagnostic diagnostic : found)
+                diagnostics.add(new ScriptDiagnostic(file.getKey(), diagnostic.getLine(), diagnostic.getMessage()));
+        }
+        return new Result(diagnostics, scriptCount, unchecked.size());
+    }
+
+    /**
+     * A header line with the checker version, then a line holding just the hash of every script checked,
+     * followed by tab-separated hash, line and message for each diagnostic it had.
+     */
+    private static Map<String, List<ScriptDiagnostic>> readCache(File file) {
+        Map<String, List<ScriptDiagnostic>> cached = new HashMap<String, List<ScriptDiagnostic>>();
+        if (!file.isFile())
+            return cached;
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                if (!String.valueOf(TSqlChecker.VERSION).equals(reader.readLine()))
+                    return cached;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", 3);
+                    List<ScriptDiagnostic> diagnostics = cached.get(fields[0]);
+                    if (diagnostics == null)
+                        cached.put(fields[0], diagnostics = new ArrayList<ScriptDiagnostic>());
+                    if (fields.length == 3)
+                        diagnostics.add(new ScriptDiagnostic("", Integer.parseInt(fields[1]), fields[2]));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            cached.clear();
+        } catch (NumberFormatException e) {
+            // A damaged cache only costs us checking every script again.
+            cached.clear();
+        }
+        return cached;
+    }
+
+    private static void writeCache(File file, Map<String, List<ScriptDiagnostic>> results) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(temp)), "UTF-8");
+        try {
+            writer.write(TSqlChecker.VERSION + "\n");
+            for (Map.Entry<String, List<ScriptDiagnostic>> result : results.entrySet()) {
+                writer.write(result.getKey() + "\n");
+                for (ScriptDiagnostic diagnostic : result.getValue())
+                    writer.write(result.getKey() + "\t" + diagnostic.getLine() + "\t" + diagnostic.getMessage() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (file.exists() && !file.delete())
+            throw new IOException("Could not replace pre-validation cache " + file);
+        if (!temp.renameTo(file))
+            throw new IOException("Could not write pre-validation cache " + file);
+    }
+}
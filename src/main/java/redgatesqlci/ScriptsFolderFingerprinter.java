@@ -0,0 +1,228 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.remoting.VirtualChannel;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fingerprints a scripts folder on the node that holds it.
+ * <p>
+ * The size, modification time and hash of every file is kept in an index file between runs, and a file is only
+ * read again if its size or modification time has changed. The files that do need reading are hashed in parallel.
+ */
+public class ScriptsFolderFingerprinter implements FilePath.FileCallable<ScriptsFolderManifest> {
+    private static final long serialVersionUID = 1L;
+
+    // Filesystems with coarse timestamps can't tell a file written just before the index was saved from one
+    // written just after, so such files are always hashed again.
+    private static final long TIMESTAMP_RESOLUTION_MS = 2000;
+
+    private final String indexPath;
+
+    /**
+     * @param indexPath where to keep the index on the node, outside the scripts folder or in a hidden directory.
+     */
+    public ScriptsFolderFingerprinter(String indexPath) {
+        this.indexPath = indexPath;
+    }
+
+    public ScriptsFolderManifest invoke(File folder, VirtualChannel channel) throws IOException, InterruptedException {
+        if (!folder.isDirectory())
+            throw new FileNotFoundException("Scripts folder " + folder + " does not exist.");
+
+        File indexFile = new File(indexPath);
+        Index previous = Index.read(indexFile);
+
+        List<String> relativePaths = new ArrayList<String>();
+        collect(folder, "", relativePaths);
+
+        Index current = new Index(System.currentTimeMillis());
+        final TreeMap<String, String> hashes = new TreeMap<String, String>();
+        List<String> changed = new ArrayList<String>();
+
+        for (String relativePath : relativePaths) {
+            File file = new File(folder, relativePath);
+            long size = file.length();
+            long modified = file.lastModified();
+
+            IndexEntry known = previous.entries.get(relativePath);
+            if (known != null && known.size == size && known.modified == modified
+                    && modified < previous.writtenAt - TIMESTAMP_RESOLUTION_MS) {
+                hashes.put(relativePath, known.hash);
+                current.entries.put(relativePath, known);
+            } else {
+                changed.add(relativePath);
+                current.entries.put(relativePath, new IndexEntry(size, modified, null));
+            }
+        }
+
+        Map<String, String> changedHashes = hashInParallel(folder, changed);
+        for (Map.Entry<String, String> entry : changedHashes.entrySet()) {
+            hashes.put(entry.getKey(), entry.getValue());
+            IndexEntry stat = current.entries.get(entry.getKey());
+            current.entries.put(entry.getKey(), new IndexEntry(stat.size, stat.modified, entry.getValue()));
+        }
+
+        File indexDir = indexFile.getParentFile();
+        if (indexDir != null)
+            indexDir.mkdirs();
+        current.write(indexFile);
+
+        return new ScriptsFolderManifest(hashes, changed.size());
+    }
+
+    private static Map<String, String> hashInParallel(final File folder, List<String> relativePaths)
+            throws IOException, InterruptedException {
+        Map<String, String> hashes = new HashMap<String, String>();
+        if (relativePaths.isEmpty())
+            return hashes;
+
+        int threads = Math.min(relativePaths.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            Map<String, Future<String>> pending = new LinkedHashMap<String, Future<String>>();
+            for (final String relativePath : relativePaths) {
+                pending.put(relativePath, executor.submit(new Callable<String>() {
+                    public String call() throws IOException {
+                        return hashFile(new File(folder, relativePath));
+                    }
+                }));
+            }
+
+            for (Map.Entry<String, Future<String>> entry : pending.entrySet()) {
+                try {
+                    hashes.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not hash " + entry.getKey() + ": " + e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return hashes;
+    }
+
+    static String hashFile(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                digest.update(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+        return Util.toHexString(digest.digest());
+    }
+
+    static void collect(File dir, String prefix, List<String> relativePaths) {
+        File[] children = dir.listFiles();
+        if (children == null)
+            return;
+
+        for (File child : children) {
+            if (!isScriptsFolderContent(child))
+                continue;
+            if (child.isDirectory())
+                collect(child, prefix + child.getName() + "/", relativePaths);
+            else
+                relativePaths.add(prefix + child.getName());
+        }
+    }
+
+    // The scripts folder is often the workspace root, so skip VCS metadata, our own index, and the packages and
+    // reports that previous SQL CI steps left behind; otherwise every build would fingerprint differently.
+    static boolean isScriptsFolderContent(File file) {
+        String name = file.getName();
+        if (name.startsWith("."))
+            return false;
+        if (file.isDirectory())
+            return true;
+        String lowerName = name.toLowerCase();
+        return !lowerName.endsWith(".nupkg") && !lowerName.endsWith(".junit.xml");
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class IndexEntry {
+        final long size;
+        final long modified;
+        final String hash;
+
+        IndexEntry(long size, long modified, String hash) {
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Tab-separated size, modification time, hash and relative path, one file per line,
+     * after a header line holding the time the index was written.
+     */
+    private static class Index {
+        final long writtenAt;
+        final Map<String, IndexEntry> entries = new HashMap<String, IndexEntry>();
+
+        Index(long writtenAt) {
+            this.writtenAt = writtenAt;
+        }
+
+        static Index read(File file) {
+            if (!file.isFile())
+                return new Index(0);
+
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                try {
+                    Index index = new Index(Long.parseLong(reader.readLine()));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split("\t", 4);
+                        if (fields.length == 4)
+                            index.entries.put(fields[3], new IndexEntry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2]));
+                    }
+                    return index;
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                return new Index(0);
+            } catch (NumberFormatException e) {
+                // A damaged index only costs us a full rehash.
+                return new Index(0);
+            }
+        }
+
+        void write(File file) throws IOException {
+            File temp = new File(file.getPath() + ".tmp");
+            Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(temp)), "UTF-8");
+            try {
+                writer.write(writtenAt + "\n");
+                for (Map.Entry<String, IndexEntry> entry : entries.entrySet()) {
+                    IndexEntry value = entry.getValue();
+                    writer.write(value.size + "\t" + value.modified + "\t" + value.hash + "\t" + entry.getKey() + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (file.exists() && !file.delete())
+                throw new IOException("Could not replace fingerprint index " + file);
+            if (!temp.renameTo(file))
+                throw new IOException("Could not write fingerprint index " + file);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package redgatesqlci;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The content hash of every object script in a scripts folder, keyed by path relative to the folder,
+ * plus a root hash that changes whenever any path or content changes.
+ */
+public class ScriptsFolderManifest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final TreeMap<String, String> hashes;
+    private final String rootHash;
+    private final int hashedCount;
+
+    public ScriptsFolderManifest(SortedMap<String, String> hashes, int hashedCount) {
+        this.hashes = new TreeMap<String, String>(hashes);
+        this.rootHash = computeRootHash(this.hashes);
+        this.hashedCount = hashedCount;
+    }
+
+    public SortedMap<String, String> getHashes() {
+        return Collections.unmodifiableSortedMap(hashes);
+    }
+
+    public String getRootHash() {
+        return rootHash;
+    }
+
+    public int getFileCount() {
+        return hashes.size();
+    }
+
+    /**
+     * The number of files that had to be read to build this manifest; the rest were unchanged since the last run.
+     */
+    public int getHashedCount() {
+        return hashedCount;
+    }
+
+    private static String computeRootHash(SortedMap<String, String> hashes) {
+        MessageDigest digest = ScriptsFolderFingerprinter.newDigest();
+        try {
+            for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                digest.update(entry.getKey().getBytes("UTF-8"));
+                digest.update((byte) 0);
+                digest.update(entry.getValue().getBytes("UTF-8"));
+                digest.update((byte) '\n');
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return hudson.Util.toHexString(digest.digest());
+    }
+
+    public void write(File file) throws IOException {
+        Writer writer = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file)), "UTF-8");
+        try {
+            writer.write(hashedCount + "\n");
+            for (Map.Entry<String, String> entry : hashes.entrySet())
+                writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static ScriptsFolderManifest read(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            int hashedCount = Integer.parseInt(reader.readLine());
+            TreeMap<String, String> hashes = new TreeMap<String, String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0)
+                    hashes.put(line.substring(tab + 1), line.substring(0, tab));
+            }
+            return new ScriptsFolderManifest(hashes, hashedCount);
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt scripts folder manifest " + file);
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package redgatesqlci;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records the fingerprint of the scripts folder a package was built from.
+ * Only the root hash is kept in the build record; the per-object manifest is kept in a file next to it.
+ */
+public class ScriptsFolderManifestAction implements RunAction2 {
+    private final String packageid;
+    private final String rootHash;
+    private final int fileCount;
+    private final int hashedCount;
+
+    private transient Run<?, ?> owner;
+
+    public ScriptsFolderManifestAction(String packageid, ScriptsFolderManifest manifest) {
+        this.packageid = packageid;
+        this.rootHash = manifest.getRootHash();
+        this.fileCount = manifest.getFileCount();
+        this.hashedCount = manifest.getHashedCount();
+    }
+
+    public String getPackageid() {
+        return packageid;
+    }
+
+    public String getRootHash() {
+        return rootHash;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public int getHashedCount() {
+        return hashedCount;
+    }
+
+    public ScriptsFolderManifest getManifest() throws IOException {
+        return ScriptsFolderManifest.read(manifestFile(owner, packageid));
+    }
+
+    static File manifestFile(Run<?, ?> build, String packageid) {
+        return new File(build.getRootDir(), "redgatesqlci-manifest-" + packageid + ".txt");
+    }
+
+    /**
+     * The fingerprint recorded for {@code packageid} by {@code build}, or null if it didn't build that package.
+     */
+    public static ScriptsFolderManifestAction forPackage(Run<?, ?> build, String packageid) {
+        for (ScriptsFolderManifestAction action : build.getActions(ScriptsFolderManifestAction.class)) {
+            if (action.getPackageid().equals(packageid))
+                return action;
+        }
+        return null;
+    }
+
+    public void onAttached(Run<?, ?> r) {
+        owner = r;
+    }
+
+    public void onLoad(Run<?, ?> r) {
+        owner = r;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Scripts folder fingerprint";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
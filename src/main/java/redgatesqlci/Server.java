@@ -8,6 +8,7 @@ public class Server
     private String serverName;
     private String dbName;
     private ServerAuth serverAuth;
+    private String poolName;
 
     public String getvalue() {
         return value;
@@ -21,13 +22,17 @@ public class Server
     public ServerAuth getServerAuth() {
         return serverAuth;
     }
+    public String getPoolName() {
+        return poolName;
+    }
 
     @DataBoundConstructor
-    public Server(String value, String serverName, String dbName, ServerAuth serverAuth)
+    public Server(String value, String serverName, String dbName, ServerAuth serverAuth, String poolName)
     {
         this.value = value;
         this.serverName = serverName;
         this.dbName = dbName;
         this.serverAuth = serverAuth;
+        this.poolName = poolName;
     }
 }
\ No newline at end of file
@@ -0,0 +1,148 @@
+package redgatesqlci;
+
+import hudson.Util;
+import hudson.model.TaskListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits how many sqlci processes the whole controller runs against each SQL Server at once.
+ * <p>
+ * Builds queue for a server in arrival order. The queue and the permit count are lock-free; a waiting build parks
+ * until it reaches the head of the queue and a permit is free. Limits come from {@link SqlCiGlobalConfiguration}
+ * and are re-read while waiting, so raising a limit lets queued builds in straight away.
+ */
+public class ServerAdmission {
+
+    // How often a waiting build re-checks its position, so it can tell the user when it moves up the queue.
+    private static final long POLL_INTERVAL_NS = TimeUnit.SECONDS.toNanos(5);
+
+    private static final ConcurrentHashMap<String, Gate> GATES = new ConcurrentHashMap<String, Gate>();
+
+    /**
+     * Permission to run against one server, which must be released when sqlci exits.
+     */
+    public static class Permit {
+        private final Gate gate;
+        private final long waitMillis;
+        private boolean released;
+
+        Permit(Gate gate, long waitMillis) {
+            this.gate = gate;
+            this.waitMillis = waitMillis;
+        }
+
+        public long getWaitMillis() {
+            return waitMillis;
+        }
+
+        public synchronized void release() {
+            if (released || gate == null)
+                return;
+            released = true;
+            gate.release();
+        }
+    }
+
+    private static class Gate {
+        final ConcurrentLinkedQueue<Thread> waiting = new ConcurrentLinkedQueue<Thread>();
+        final AtomicInteger running = new AtomicInteger();
+
+        boolean tryAcquire(int limit) {
+            while (true) {
+                int current = running.get();
+                if (limit > 0 && current >= limit)
+                    return false;
+                if (running.compareAndSet(current, current + 1))
+                    return true;
+            }
+        }
+
+        void release() {
+            running.decrementAndGet();
+            wakeHead();
+        }
+
+        void wakeHead() {
+            Thread head = waiting.peek();
+            if (head != null)
+                LockSupport.unpark(head);
+        }
+
+        int positionOf(Thread thread) {
+            int position = 1;
+            for (Thread queued : waiting) {
+                if (queued == thread)
+                    return position;
+                position++;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * The server a set of sqlci parameters will connect to, or null for LocalDB and steps that don't use a server.
+     */
+    public static String targetServer(Iterable<String> params) {
+        for (String param : params) {
+            if (param.startsWith("/temporaryDatabaseServer="))
+                return param.substring("/temporaryDatabaseServer=".length());
+            if (param.startsWith("/databaseServer="))
+                return param.substring("/databaseServer=".length());
+        }
+        return null;
+    }
+
+    /**
+     * Waits for permission to run against {@code server}, telling the build its place in the queue.
+     */
+    public static Permit acquire(String server, TaskListener listener) throws InterruptedException {
+        if (server == null)
+            return new Permit(null, 0);
+
+        String key = server.trim().toLowerCase();
+        Gate gate = GATES.get(key);
+        if (gate == null) {
+            Gate created = new Gate();
+            gate = GATES.putIfAbsent(key, created);
+            if (gate == null)
+                gate = created;
+        }
+
+        long start = System.currentTimeMillis();
+        Thread current = Thread.currentThread();
+        gate.waiting.add(current);
+        int reportedPosition = 0;
+        try {
+            while (true) {
+                int limit = SqlCiGlobalConfiguration.get().getPermitsFor(server);
+                if (gate.waiting.peek() == current && gate.tryAcquire(limit))
+                    break;
+
+                int position = gate.positionOf(current);
+                if (position != reportedPosition) {
+                    listener.getLogger().println("Waiting to run SQL CI against " + server + ": position " + position
+                            + " in the queue, " + gate.running.get() + " running.");
+                    reportedPosition = position;
+                }
+
+                LockSupport.parkNanos(gate, POLL_INTERVAL_NS);
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        } finally {
+            gate.waiting.remove(current);
+            // Whether we got a permit or gave up, the next build in line may now be able to go.
+            gate.wakeHead();
+        }
+
+        long waitMillis = System.currentTimeMillis() - start;
+        if (reportedPosition != 0)
+            listener.getLogger().println("Waited " + Util.getTimeSpanString(waitMillis) + " to run SQL CI against " + server + ".");
+        return new Permit(gate, waitMillis);
+    }
+}
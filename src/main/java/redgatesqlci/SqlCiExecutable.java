@@ -0,0 +1,163 @@
+package redgatesqlci;
+
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds sqlci.exe on the node that runs a build, and remembers where it is per node.
+ * A step is given the remembered location, checks it with a single stat of the executable on the node,
+ * and searches again only if the executable has been replaced or removed.
+ */
+public class SqlCiExecutable {
+
+    private static final ConcurrentHashMap<String, Location> LOCATIONS = new ConcurrentHashMap<String, Location>();
+
+    public static class Location implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String path;
+        final long lastModified;
+        final long length;
+        // Everywhere that was searched, for the error message when sqlci isn't found.
+        final String searched;
+
+        Location(String path, long lastModified, long length, String searched) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.searched = searched;
+        }
+
+        public boolean isFound() {
+            return path != null;
+        }
+
+        public String getSearched() {
+            return searched;
+        }
+
+        // Run on the node: whether sqlci is still the same file as when it was found.
+        boolean isCurrent() {
+            File file = new File(path);
+            return file.isFile() && file.lastModified() == lastModified && file.length() == length;
+        }
+    }
+
+    /**
+     * Where sqlci was last found on the node that {@code workingDirectory} is on, or null if it hasn't been found there.
+     */
+    public static Location known(FilePath workingDirectory) {
+        return LOCATIONS.get(key(workingDirectory.toComputer()));
+    }
+
+    public static void remember(FilePath workingDirectory, Location location) {
+        if (location.isFound())
+            LOCATIONS.put(key(workingDirectory.toComputer()), location);
+    }
+
+    /**
+     * The configured installation's home on the node that {@code workingDirectory} is on, or null to search Program Files.
+     */
+    public static String home(FilePath workingDirectory, TaskListener listener) throws IOException, InterruptedException {
+        SqlCiInstallation installation = SqlCiInstallation.getDefault();
+        if (installation == null)
+            return null;
+        Computer computer = workingDirectory.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        return node == null ? installation.getHome() : installation.forNode(node, listener).getHome();
+    }
+
+    static void forget(Computer computer) {
+        LOCATIONS.remove(computer.getName());
+    }
+
+    static void forgetAll() {
+        LOCATIONS.clear();
+    }
+
+    private static String key(Computer computer) {
+        return computer == null ? "" : computer.getName();
+    }
+
+    /**
+     * Searches this machine for sqlci, in {@code home} if it's set and in Program Files otherwise.
+     */
+    static Location search(String home) {
+        String[] candidates;
+        if (home != null && home.trim().length() > 0) {
+            candidates = new String[] { home, home + "\\sqlci.exe" };
+        } else {
+            candidates = new String[] {
+                    System.getenv("ProgramFiles") + "\\Red Gate\\SQL Automation Pack 1\\sqlCI\\sqlci.exe",
+                    System.getenv("ProgramFiles") + "\\Red Gate\\sqlCI\\sqlci.exe",
+                    System.getenv("ProgramFiles(X86)") + "\\Red Gate\\SQL Automation Pack 1\\sqlCI\\sqlci.exe",
+                    System.getenv("ProgramFiles(X86)") + "\\Red Gate\\sqlCI\\sqlci.exe"
+            };
+        }
+
+        File found = null;
+        String searched = "";
+        for (String candidate : candidates) {
+            File file = new File(candidate);
+            if (file.isFile())
+                found = file;
+            searched = searched.concat(candidate + "  ");
+        }
+        if (found == null)
+            return new Location(null, 0, 0, searched);
+        return new Location(found.getAbsolutePath(), found.lastModified(), found.length(), searched);
+    }
+
+    private static class Search implements Callable<Location, IOException> {
+        private static final long serialVersionUID = 1L;
+
+        private final String home;
+
+        Search(String home) {
+            this.home = home;
+        }
+
+        public Location call() throws IOException {
+            return search(home);
+        }
+    }
+
+    /**
+     * Looks for sqlci as soon as an agent connects, so that the first build doesn't have to.
+     */
+    @Extension
+    public static class Prefetch extends ComputerListener {
+        @Override
+        public void onOnline(Computer c, TaskListener listener) throws IOException, InterruptedException {
+            forget(c);
+            VirtualChannel channel = c.getChannel();
+            Node node = c.getNode();
+            if (channel == null || node == null)
+                return;
+
+            SqlCiInstallation installation = SqlCiInstallation.getDefault();
+            String home = installation == null ? null : installation.forNode(node, listener).getHome();
+            Location location = channel.call(new Search(home));
+            if (location.isFound()) {
+                LOCATIONS.put(c.getName(), location);
+                listener.getLogger().println("Redgate SQL CI found at " + location.path);
+            }
+        }
+
+        @Override
+        public void onOffline(Computer c) {
+            forget(c);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package redgatesqlci;
+
+import hudson.Extension;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.model.GlobalConfiguration;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Settings shared by all the Redgate SQL CI build steps.
+ */
+@Extension
+public class SqlCiGlobalConfiguration extends GlobalConfiguration {
+
+    private List<DatabasePool> pools = new ArrayList<DatabasePool>();
+
+    // 0 means no limit.
+    private int defaultPermitsPerServer;
+
+    // One "server=permits" line per server that needs a limit other than the default.
+    private String serverPermits = "";
+
+    // Whether /redgatesqlci-metrics can be scraped without logging in.
+    private boolean anonymousMetrics;
+
+    // Whether sqlci's output goes to an archived, gzipped log, leaving only warnings and errors in the console.
+    private boolean compactConsole;
+
+    // How many of the last lines of output to print in the console when sqlci fails, in compact console mode.
+    private int consoleTailLines = 100;
+
+    // How many minutes a sqlci run may take, or may go without writing output, before it is stopped. 0 means no limit.
+    private int stepTimeoutMinutes;
+    private int stallTimeoutMinutes;
+
+    public SqlCiGlobalConfiguration() {
+        load();
+    }
+
+    public static SqlCiGlobalConfiguration get() {
+        return GlobalConfiguration.all().get(SqlCiGlobalConfiguration.class);
+    }
+
+    public List<DatabasePool> getPools() {
+        return pools == null ? Collections.<DatabasePool>emptyList() : Collections.unmodifiableList(pools);
+    }
+
+    public DatabasePool getPool(String name) {
+        for (DatabasePool pool : getPools()) {
+            if (pool.getName().equals(name))
+                return pool;
+        }
+        return null;
+    }
+
+    public int getDefaultPermitsPerServer() {
+        return defaultPermitsPerServer;
+    }
+
+    public String getServerPermits() {
+        return serverPermits;
+    }
+
+    public boolean isAnonymousMetrics() {
+        return anonymousMetrics;
+    }
+
+    public boolean isCompactConsole() {
+        return compactConsole;
+    }
+
+    public int getConsoleTailLines() {
+        return consoleTailLines;
+    }
+
+    public int getStepTimeoutMinutes() {
+        return stepTimeoutMinutes;
+    }
+
+    public int getStallTimeoutMinutes() {
+        return stallTimeoutMinutes;
+    }
+
+    /**
+     * How many sqlci processes may run against {@code server} at once across the controller, or 0 for no limit.
+     */
+    public int getPermitsFor(String server) {
+        if (serverPermits != null) {
+            for (String line : serverPermits.split("\\r?\\n")) {
+                int equals = line.lastIndexOf('=');
+                if (equals > 0 && line.substring(0, equals).trim().equalsIgnoreCase(server.trim())) {
+                    try {
+                        return Integer.parseInt(line.substring(equals + 1).trim());
+                    } catch (NumberFormatException e) {
+                        break;
+                    }
+                }
+            }
+        }
+        return defaultPermitsPerServer;
+    }
+
+    public FormValidation doCheckServerPermits(@QueryParameter String value) {
+        for (String line : value.split("\\r?\\n")) {
+            if (line.trim().isEmpty())
+                continue;
+            int equals = line.lastIndexOf('=');
+            try {
+                if (equals <= 0 || Integer.parseInt(line.substring(equals + 1).trim()) < 0)
+                    return FormValidation.error("Enter one server=permits pair per line, for example MYSERVER\\SQL2012=4.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Enter one server=permits pair per line, for example MYSERVER\\SQL2012=4.");
+            }
+        }
+        return FormValidation.ok();
+    }
+
+    public ListBoxModel poolNameItems() {
+        ListBoxModel items = new ListBoxModel();
+        for (DatabasePool pool : getPools())
+            items.add(pool.getName() + " (" + pool.getServerName() + ")", pool.getName());
+        return items;
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        pools = req.bindJSONToList(DatabasePool.class, json.get("pools"));
+        defaultPermitsPerServer = Math.max(0, json.optInt("defaultPermitsPerServer", 0));
+        serverPermits = json.optString("serverPermits", "");
+        anonymousMetrics = json.optBoolean("anonymousMetrics", false);
+        compactConsole = json.optBoolean("compactConsole", false);
+        consoleTailLines = Math.max(0, Math.min(10000, json.optInt("consoleTailLines", 100)));
+        stepTimeoutMinutes = Math.max(0, json.optInt("stepTimeoutMinutes", 0));
+        stallTimeoutMinutes = Math.max(0, json.optInt("stallTimeoutMinutes", 0));
+        save();
+        return true;
+    }
+}
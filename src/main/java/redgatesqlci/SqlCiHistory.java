@@ -0,0 +1,148 @@
+package redgatesqlci;
+
+import hudson.model.Job;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A compact, append-only record of every sqlci step a job has run, one tab-separated line per step, kept in the
+ * job's directory. The trend graph reads this instead of loading build records.
+ */
+public class SqlCiHistory {
+    private static final Logger LOGGER = Logger.getLogger(SqlCiHistory.class.getName());
+
+    private static final String FILE_NAME = "redgatesqlci-history.tsv";
+
+    // Once the file grows past this, it's cut back to its newest half.
+    private static final long MAX_BYTES = 512 * 1024;
+
+    public static class Record {
+        private final int buildNumber;
+        private final SqlCiRunAction.Step step;
+
+        Record(int buildNumber, SqlCiRunAction.Step step) {
+            this.buildNumber = buildNumber;
+            this.step = step;
+        }
+
+        public int getBuildNumber() {
+            return buildNumber;
+        }
+
+        public SqlCiRunAction.Step getStep() {
+            return step;
+        }
+    }
+
+    public static boolean exists(Job<?, ?> job) {
+        return file(job).isFile();
+    }
+
+    /**
+     * When the history last changed, in milliseconds since the epoch, or 0 if there is none.
+     */
+    public static long lastModified(Job<?, ?> job) {
+        return file(job).lastModified();
+    }
+
+    public static void append(Job<?, ?> job, int buildNumber, SqlCiRunAction.Step step) throws IOException {
+        File file = file(job);
+        synchronized (SqlCiHistory.class) {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                writer.write(buildNumber + "\t" + step.getCommand() + "\t" + step.getQueueMillis() + "\t" + step.getResolveMillis()
+                        + "\t" + step.getLaunchMillis() + "\t" + step.getRunMillis() + "\t" + step.getExitCode()
+                        + "\t" + step.getOutputBytes() + "\t" + step.getPackageBytes() + "\t" + step.getServer() + "\n");
+            } finally {
+                writer.close();
+            }
+
+            if (file.length() > MAX_BYTES) {
+                List<String> lines = readLines(file);
+                rewrite(file, lines.subList(lines.size() / 2, lines.size()));
+            }
+        }
+    }
+
+    /**
+     * The steps run by the job's newest {@code maxBuilds} builds that ran sqlci, oldest first.
+     */
+    public static List<Record> read(Job<?, ?> job, int maxBuilds) {
+        List<String> lines;
+        synchronized (SqlCiHistory.class) {
+            try {
+                lines = readLines(file(job));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not read SQL CI history for " + job.getFullName(), e);
+                return new ArrayList<Record>();
+            }
+        }
+
+        LinkedList<Record> records = new LinkedList<Record>();
+        int builds = 0;
+        int previousBuild = -1;
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            Record record = parse(lines.get(i));
+            if (record == null)
+                continue;
+            if (record.getBuildNumber() != previousBuild) {
+                if (++builds > maxBuilds)
+                    break;
+                previousBuild = record.getBuildNumber();
+            }
+            records.addFirst(record);
+        }
+        return records;
+    }
+
+    private static Record parse(String line) {
+        String[] fields = line.split("\t");
+        if (fields.length < 10)
+            return null;
+        try {
+            return new Record(Integer.parseInt(fields[0]), new SqlCiRunAction.Step(fields[1],
+                    fields[9].equals("LocalDB") ? null : fields[9], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                    Long.parseLong(fields[4]), Long.parseLong(fields[5]), Integer.parseInt(fields[6]),
+                    Long.parseLong(fields[7]), Long.parseLong(fields[8])));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static File file(Job<?, ?> job) {
+        return new File(job.getRootDir(), FILE_NAME);
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        if (!file.isFile())
+            return lines;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private static void rewrite(File file, List<String> lines) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            for (String line : lines)
+                writer.write(line + "\n");
+        } finally {
+            writer.close();
+        }
+        if (!file.delete() || !temp.renameTo(file))
+            throw new IOException("Could not rewrite " + file);
+    }
+}
@@ -0,0 +1,72 @@
+package redgatesqlci;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.EnvironmentSpecific;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.NodeSpecific;
+import hudson.tools.ToolDescriptor;
+import hudson.tools.ToolInstallation;
+import hudson.tools.ToolProperty;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Where sqlci is installed. The home may be the sqlci directory or sqlci.exe itself, and can be overridden per node.
+ * With no installation configured, each node looks in the usual Program Files locations.
+ */
+public class SqlCiInstallation extends ToolInstallation
+        implements NodeSpecific<SqlCiInstallation>, EnvironmentSpecific<SqlCiInstallation> {
+    private static final long serialVersionUID = 1L;
+
+    @DataBoundConstructor
+    public SqlCiInstallation(String name, String home, List<? extends ToolProperty<?>> properties) {
+        super(name, home, properties);
+    }
+
+    public SqlCiInstallation forNode(Node node, TaskListener log) throws IOException, InterruptedException {
+        return new SqlCiInstallation(getName(), translateFor(node, log), getProperties().toList());
+    }
+
+    public SqlCiInstallation forEnvironment(EnvVars environment) {
+        return new SqlCiInstallation(getName(), environment.expand(getHome()), getProperties().toList());
+    }
+
+    /**
+     * The installation builds use, or null to search the usual locations.
+     */
+    public static SqlCiInstallation getDefault() {
+        DescriptorImpl descriptor = Jenkins.getInstance().getDescriptorByType(DescriptorImpl.class);
+        SqlCiInstallation[] installations = descriptor == null ? null : descriptor.getInstallations();
+        return installations == null || installations.length == 0 ? null : installations[0];
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends ToolDescriptor<SqlCiInstallation> {
+
+        public DescriptorImpl() {
+            load();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Redgate SQL CI";
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            List<SqlCiInstallation> installations = req.bindJSONToList(SqlCiInstallation.class, json.get("tool"));
+            setInstallations(installations.toArray(new SqlCiInstallation[installations.size()]));
+            save();
+            // Every node has to look again, since the configured home may have changed.
+            SqlCiExecutable.forgetAll();
+            return true;
+        }
+    }
+}
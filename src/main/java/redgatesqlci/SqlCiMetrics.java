@@ -0,0 +1,128 @@
+package redgatesqlci;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controller-wide sqlci step metrics, labelled by step type, node and target server.
+ * Recording is lock-free; only the first step for a new label combination allocates.
+ */
+public class SqlCiMetrics {
+
+    private static final ConcurrentHashMap<String, Series> SERIES = new ConcurrentHashMap<String, Series>();
+
+    private static class Series {
+        final String step;
+        final String node;
+        final String server;
+        final LatencyHistogram duration = new LatencyHistogram();
+        final LatencyHistogram queueWait = new LatencyHistogram();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final ConcurrentHashMap<Integer, AtomicLong> exitCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+        Series(String step, String node, String server) {
+            this.step = step;
+            this.node = node;
+            this.server = server;
+        }
+
+        String labels() {
+            return "step=\"" + escape(step) + "\",node=\"" + escape(node) + "\",server=\"" + escape(server) + "\"";
+        }
+    }
+
+    /**
+     * The metrics of one sqlci step while it runs.
+     */
+    public static class StepTimer {
+        private final Series series;
+
+        StepTimer(Series series) {
+            this.series = series;
+        }
+
+        public void queued(long waitMillis) {
+            series.queueWait.record(waitMillis);
+        }
+
+        public void started() {
+            series.inFlight.incrementAndGet();
+        }
+
+        public void finished(long runMillis, int exitCode) {
+            series.inFlight.decrementAndGet();
+            series.duration.record(runMillis);
+
+            AtomicLong counter = series.exitCodes.get(exitCode);
+            if (counter == null) {
+                AtomicLong created = new AtomicLong();
+                counter = series.exitCodes.putIfAbsent(exitCode, created);
+                if (counter == null)
+                    counter = created;
+            }
+            counter.incrementAndGet();
+        }
+    }
+
+    public static StepTimer forStep(String step, String node, String server) {
+        String nodeName = node == null || node.isEmpty() ? "master" : node;
+        String serverName = server == null ? "localdb" : server;
+        String key = step + "\u0000" + nodeName + "\u0000" + serverName;
+
+        Series series = SERIES.get(key);
+        if (series == null) {
+            Series created = new Series(step, nodeName, serverName);
+            series = SERIES.putIfAbsent(key, created);
+            if (series == null)
+                series = created;
+        }
+        return new StepTimer(series);
+    }
+
+    /**
+     * Writes every series in the Prometheus text exposition format.
+     */
+    public static void writePrometheus(PrintWriter out) {
+        Map<String, Series> sorted = new TreeMap<String, Series>(SERIES);
+
+        out.println("# HELP redgatesqlci_step_duration_seconds Time sqlci took to run, from launch to exit.");
+        out.println("# TYPE redgatesqlci_step_duration_seconds histogram");
+        for (Series series : sorted.values())
+            writeHistogram(out, "redgatesqlci_step_duration_seconds", series.labels(), series.duration);
+
+        out.println("# HELP redgatesqlci_step_queue_wait_seconds Time spent waiting for a permit for the target server.");
+        out.println("# TYPE redgatesqlci_step_queue_wait_seconds histogram");
+        for (Series series : sorted.values())
+            writeHistogram(out, "redgatesqlci_step_queue_wait_seconds", series.labels(), series.queueWait);
+
+        out.println("# HELP redgatesqlci_steps_in_flight sqlci processes running now.");
+        out.println("# TYPE redgatesqlci_steps_in_flight gauge");
+        for (Series series : sorted.values())
+            out.println("redgatesqlci_steps_in_flight{" + series.labels() + "} " + series.inFlight.get());
+
+        out.println("# HELP redgatesqlci_step_exits_total sqlci runs by exit code; -1 means sqlci didn't run to completion.");
+        out.println("# TYPE redgatesqlci_step_exits_total counter");
+        for (Series series : sorted.values()) {
+            for (Map.Entry<Integer, AtomicLong> exitCode : new TreeMap<Integer, AtomicLong>(series.exitCodes).entrySet())
+                out.println("redgatesqlci_step_exits_total{" + series.labels() + ",exit_code=\"" + exitCode.getKey() + "\"} " + exitCode.getValue().get());
+        }
+    }
+
+    private static void writeHistogram(PrintWriter out, String name, String labels, LatencyHistogram histogram) {
+        long[] cumulative = histogram.cumulativeCounts();
+        for (int i = 0; i < LatencyHistogram.BOUNDS_SECONDS.length; i++)
+            out.println(name + "_bucket{" + labels + ",le=\"" + LatencyHistogram.BOUNDS_SECONDS[i] + "\"} " + cumulative[i]);
+        out.println(name + "_bucket{" + labels + ",le=\"+Inf\"} " + cumulative[cumulative.length - 1]);
+        out.println(name + "_sum{" + labels + "} " + histogram.getSumSeconds());
+        out.println(name + "_count{" + labels + "} " + histogram.getCount());
+    }
+
+    // Server names usually contain a backslash, which Prometheus label values must escape.
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,41 @@
+package redgatesqlci;
+
+import hudson.Extension;
+import hudson.model.UnprotectedRootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Serves {@link SqlCiMetrics} at /redgatesqlci-metrics for Prometheus to scrape.
+ * Anonymous scrapes are only allowed when the global configuration says so.
+ */
+@Extension
+public class SqlCiMetricsEndpoint implements UnprotectedRootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Redgate SQL CI metrics";
+    }
+
+    public String getUrlName() {
+        return "redgatesqlci-metrics";
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        SqlCiGlobalConfiguration config = SqlCiGlobalConfiguration.get();
+        if (config == null || !config.isAnonymousMetrics())
+            Jenkins.getInstance().checkPermission(Jenkins.READ);
+
+        rsp.setContentType("text/plain; version=0.0.4; charset=utf-8");
+        PrintWriter out = rsp.getWriter();
+        SqlCiMetrics.writePrometheus(out);
+        out.flush();
+    }
+}
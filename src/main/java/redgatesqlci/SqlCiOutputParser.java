@@ -0,0 +1,240 @@
+package redgatesqlci;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Watches sqlci's output on its way to the build log, and times the phases of the run.
+ * <p>
+ * Every byte is forwarded to the log unchanged and immediately. The start of each line is matched against phase
+ * markers and message prefixes in place, in a reused buffer, so the only allocations are for the warnings and errors
+ * that are kept.
+ */
+public class SqlCiOutputParser extends OutputStream {
+
+    // Only the start of a line is examined; sqlci puts its markers first.
+    private static final int MAX_SCANNED_LINE = 512;
+
+    private static final int MAX_MESSAGES = 20;
+    private static final int MAX_MESSAGE_LENGTH = 300;
+
+    // Each marker must start the line, after any indentation, and end at a word boundary, so that a test or object
+    // named after a phase doesn't switch to it.
+    private static final String[][] PHASE_MARKERS = {
+            { "Schema creation", "creating database", "creating temporary database", "creating schema", "deploying" },
+            { "Validation", "validating" },
+            { "tSQLt tests", "running tsqlt", "running tests", "running test" },
+            { "Comparison", "comparing", "synchronizing", "synchronising" },
+            { "Packaging", "creating package", "building package", "packaging", "publishing", "pushing" },
+    };
+
+    // The prefixes sqlci and the tools it runs give their messages. Like the phase markers, they must start the line
+    // as whole words, so "0 errors" or a test named test_ErrorHandling isn't counted.
+    private static final byte[][] ERROR_PREFIXES = toLowerBytes(new String[] {
+            "error:", "error -", "[error]", "fatal:", "fatal error", "unhandled exception" });
+    private static final byte[][] WARNING_PREFIXES = toLowerBytes(new String[] {
+            "warning:", "warning -", "[warning]", "warn:" });
+    private static final byte[] SQL_MESSAGE = "msg ".getBytes();
+    private static final byte[] SQL_ERROR_LEVEL = ", level ".getBytes();
+    private static final byte[] EXCEPTION = "exception:".getBytes();
+
+    private static final byte[][][] PHASE_MARKER_BYTES = new byte[PHASE_MARKERS.length][][];
+    static {
+        // The first entry is the phase's name, not a marker.
+        for (int i = 0; i < PHASE_MARKERS.length; i++)
+            PHASE_MARKER_BYTES[i] = toLowerBytes(Arrays.copyOfRange(PHASE_MARKERS[i], 1, PHASE_MARKERS[i].length));
+    }
+
+    private final OutputStream out;
+    private final long start;
+
+    private final byte[] line = new byte[MAX_SCANNED_LINE];
+    private int lineLength;
+    private long bytes;
+
+    private String currentPhase;
+    private long currentPhaseStart;
+    private final List<SqlCiTimeline.Phase> phases = new ArrayList<SqlCiTimeline.Phase>();
+    private int warningCount;
+    private int errorCount;
+    private final List<String> messages = new ArrayList<String>();
+
+    public SqlCiOutputParser(OutputStream out) {
+        this.out = out;
+        this.start = System.currentTimeMillis();
+        this.currentPhaseStart = start;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        out.write(b);
+        bytes++;
+        scan((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        bytes += len;
+        for (int i = off; i < off + len; i++)
+            scan(b[i]);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    // The underlying stream is the build log, which belongs to the caller.
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Ends the current phase and returns the timeline of the run so far.
+     */
+    public synchronized SqlCiTimeline finish(String command) {
+        if (lineLength > 0)
+            endLine();
+        long now = System.currentTimeMillis();
+        List<SqlCiTimeline.Phase> all = new ArrayList<SqlCiTimeline.Phase>(phases);
+        all.add(new SqlCiTimeline.Phase(currentPhase == null ? "Startup" : currentPhase, currentPhaseStart - start, now - currentPhaseStart));
+        return new SqlCiTimeline(command, now - start, all, warningCount, errorCount, messages);
+    }
+
+    private void scan(byte b) {
+        if (b == '\n' || b == '\r') {
+            if (lineLength > 0)
+                endLine();
+        } else if (lineLength < MAX_SCANNED_LINE) {
+            line[lineLength++] = b;
+        }
+    }
+
+    private void endLine() {
+        String phase = phaseOf();
+        if (phase != null && !phase.equals(currentPhase)) {
+            long now = System.currentTimeMillis();
+            phases.add(new SqlCiTimeline.Phase(currentPhase == null ? "Startup" : currentPhase, currentPhaseStart - start, now - currentPhaseStart));
+            currentPhase = phase;
+            currentPhaseStart = now;
+        }
+
+        if (isError(line, lineLength)) {
+            errorCount++;
+            keepMessage("Error: ");
+        } else if (isWarning(line, lineLength)) {
+            warningCount++;
+            keepMessage("Warning: ");
+        }
+        lineLength = 0;
+    }
+
+    private String phaseOf() {
+        int start = indentation(line, lineLength);
+        for (int i = 0; i < PHASE_MARKER_BYTES.length; i++) {
+            for (byte[] marker : PHASE_MARKER_BYTES[i]) {
+                if (startsWithWord(line, lineLength, start, marker))
+                    return PHASE_MARKERS[i][0];
+            }
+        }
+        return null;
+    }
+
+    private void keepMessage(String kind) {
+        if (messages.size() >= MAX_MESSAGES)
+            return;
+        String text = new String(line, 0, Math.min(lineLength, MAX_MESSAGE_LENGTH)).trim();
+        messages.add(kind + text);
+    }
+
+    /**
+     * Whether a line is an error message: one that starts with an error prefix, a SQL Server error such as
+     * "Msg 208, Level 16", or an exception's type name followed by its message.
+     */
+    static boolean isError(byte[] line, int lineLength) {
+        int start = indentation(line, lineLength);
+        for (byte[] prefix : ERROR_PREFIXES) {
+            if (startsWithWord(line, lineLength, start, prefix))
+                return true;
+        }
+        return isSqlServerError(line, lineLength, start) || isException(line, lineLength, start);
+    }
+
+    static boolean isWarning(byte[] line, int lineLength) {
+        int start = indentation(line, lineLength);
+        for (byte[] prefix : WARNING_PREFIXES) {
+            if (startsWithWord(line, lineLength, start, prefix))
+                return true;
+        }
+        return false;
+    }
+
+    // "Msg 208, Level 16, State 1, ..."
+    private static boolean isSqlServerError(byte[] line, int lineLength, int start) {
+        if (!startsWith(line, lineLength, start, SQL_MESSAGE))
+            return false;
+        int i = start + SQL_MESSAGE.length;
+        int digits = i;
+        while (i < lineLength && line[i] >= '0' && line[i] <= '9')
+            i++;
+        return i > digits && startsWith(line, lineLength, i, SQL_ERROR_LEVEL);
+    }
+
+    // "System.Data.SqlClient.SqlException: ...", where the first word names the exception.
+    private static boolean isException(byte[] line, int lineLength, int start) {
+        int end = start;
+        while (end < lineLength && line[end] != ' ' && line[end] != '\t')
+            end++;
+        return end - start >= EXCEPTION.length && startsWith(line, lineLength, end - EXCEPTION.length, EXCEPTION);
+    }
+
+    private static int indentation(byte[] line, int lineLength) {
+        int i = 0;
+        while (i < lineLength && (line[i] == ' ' || line[i] == '\t'))
+            i++;
+        return i;
+    }
+
+    // Whether the marker is at offset in the line, and isn't followed by more of the same word.
+    private static boolean startsWithWord(byte[] line, int lineLength, int offset, byte[] marker) {
+        if (!startsWith(line, lineLength, offset, marker))
+            return false;
+        int next = offset + marker.length;
+        return next == lineLength || !isWordChar(marker[marker.length - 1]) || !isWordChar(line[next]);
+    }
+
+    // Case-insensitive match of an ASCII lower-case marker at offset in the line.
+    private static boolean startsWith(byte[] line, int lineLength, int offset, byte[] marker) {
+        if (offset + marker.length > lineLength)
+            return false;
+        for (int j = 0; j < marker.length; j++) {
+            if (toLower(line[offset + j]) != marker[j])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isWordChar(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+    }
+
+    private static byte toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static byte[][] toLowerBytes(String[] markers) {
+        byte[][] result = new byte[markers.length][];
+        for (int i = 0; i < markers.length; i++)
+            result[i] = markers[i].toLowerCase().getBytes();
+        return result;
+    }
+}
@@ -0,0 +1,180 @@
+package redgatesqlci;
+
+import hudson.Util;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timings of every sqlci process a build ran, with the time spent queueing for the target server
+ * kept separate from the time sqlci itself ran. Each step is also appended to the job's {@link SqlCiHistory}.
+ */
+public class SqlCiRunAction implements RunAction2 {
+
+    public static class Step {
+        private final String command;
+        private final String server;
+        private final long queueMillis;
+        private final long resolveMillis;
+        private final long launchMillis;
+        private final long runMillis;
+        private final int exitCode;
+        private final long outputBytes;
+        private final long packageBytes;
+
+        /**
+         * @param resolveMillis time taken to find the sqlci executable.
+         * @param launchMillis time from asking for the process to it having started.
+         * @param runMillis time from asking for the process to it having exited.
+         * @param exitCode sqlci's exit code, or -1 if it didn't run to completion.
+         * @param packageBytes size of the package built or used, or -1 if there isn't one.
+         */
+        public Step(String command, String server, long queueMillis, long resolveMillis, long launchMillis, long runMillis,
+                    int exitCode, long outputBytes, long packageBytes) {
+            this.command = command;
+            this.server = server;
+            this.queueMillis = queueMillis;
+            this.resolveMillis = resolveMillis;
+            this.launchMillis = launchMillis;
+            this.runMillis = runMillis;
+            this.exitCode = exitCode;
+            this.outputBytes = outputBytes;
+            this.packageBytes = packageBytes;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public String getServer() {
+            return server == null ? "LocalDB" : server;
+        }
+
+        public long getQueueMillis() {
+            return queueMillis;
+        }
+
+        public long getResolveMillis() {
+            return resolveMillis;
+        }
+
+        public long getLaunchMillis() {
+            return launchMillis;
+        }
+
+        public long getRunMillis() {
+            return runMillis;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public long getOutputBytes() {
+            return outputBytes;
+        }
+
+        public long getPackageBytes() {
+            return packageBytes;
+        }
+
+        public String getQueueTime() {
+            return Util.getTimeSpanString(queueMillis);
+        }
+
+        public String getRunTime() {
+            return Util.getTimeSpanString(runMillis);
+        }
+
+        public String getPackageSize() {
+            return packageBytes < 0 ? "" : Utils.formatBytes(packageBytes);
+        }
+
+        public String getOutputSize() {
+            return Utils.formatBytes(outputBytes);
+        }
+
+        public boolean isSuccess() {
+            return exitCode == 0;
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<Step>();
+
+    private transient Run<?, ?> owner;
+
+    /**
+     * The build's action, adding one if it doesn't have one yet. Steps may run concurrently, so this is synchronized.
+     */
+    public static SqlCiRunAction forBuild(Run<?, ?> build) {
+        synchronized (build) {
+            SqlCiRunAction action = build.getAction(SqlCiRunAction.class);
+            if (action == null) {
+                action = new SqlCiRunAction();
+                build.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    /**
+     * Records a step on the build, and in its job's history for the trend graph.
+     */
+    public void addStep(Step step) throws IOException {
+        synchronized (this) {
+            steps.add(step);
+        }
+        if (owner != null)
+            SqlCiHistory.append(owner.getParent(), owner.getNumber(), step);
+    }
+
+    public synchronized List<Step> getSteps() {
+        return Collections.unmodifiableList(new ArrayList<Step>(steps));
+    }
+
+    public synchronized long getTotalQueueMillis() {
+        long total = 0;
+        for (Step step : steps)
+            total += step.getQueueMillis();
+        return total;
+    }
+
+    public synchronized long getTotalRunMillis() {
+        long total = 0;
+        for (Step step : steps)
+            total += step.getRunMillis();
+        return total;
+    }
+
+    public String getTotalQueueTime() {
+        return Util.getTimeSpanString(getTotalQueueMillis());
+    }
+
+    public String getTotalRunTime() {
+        return Util.getTimeSpanString(getTotalRunMillis());
+    }
+
+    public void onAttached(Run<?, ?> r) {
+        owner = r;
+    }
+
+    public void onLoad(Run<?, ?> r) {
+        owner = r;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "SQL CI timings";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
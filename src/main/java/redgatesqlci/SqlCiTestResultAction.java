@@ -0,0 +1,131 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The tSQLt results of one package's tests. The build record holds only the counts and the first few failures;
+ * every test's record is kept in a file next to it and read only when the results page is shown.
+ */
+public class SqlCiTestResultAction implements RunAction2 {
+
+    private final String packageid;
+    private final int total;
+    private final int failed;
+    private final int skipped;
+    private final long durationMillis;
+    private final List<TestCaseRecord> failures;
+
+    private transient Run<?, ?> owner;
+
+    SqlCiTestResultAction(String packageid, TestResultReader.Summary summary) {
+        this.packageid = packageid;
+        this.total = summary.getTotal();
+        this.failed = summary.getFailed();
+        this.skipped = summary.getSkipped();
+        this.durationMillis = summary.getDurationMillis();
+        this.failures = new ArrayList<TestCaseRecord>(summary.getFailures());
+    }
+
+    /**
+     * Copies the records file {@link TestResultReader} wrote on the agent into {@code build}'s directory as it is,
+     * and attaches the summary to the build.
+     */
+    public static SqlCiTestResultAction record(Run<?, ?> build, String packageid, TestResultReader.Summary summary,
+                                               FilePath records) throws IOException, InterruptedException {
+        records.copyTo(new FilePath(recordsFile(build, packageid)));
+
+        SqlCiTestResultAction action = new SqlCiTestResultAction(packageid, summary);
+        build.addAction(action);
+        return action;
+    }
+
+    public String getPackageid() {
+        return packageid;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public int getPassed() {
+        return total - failed - skipped;
+    }
+
+    public String getDuration() {
+        return Util.getTimeSpanString(durationMillis);
+    }
+
+    public Run<?, ?> getOwner() {
+        return owner;
+    }
+
+    public List<TestCaseRecord> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * Every test's record, failures first.
+     */
+    public List<TestCaseRecord> getRecords() throws IOException {
+        List<TestCaseRecord> notPassed = new ArrayList<TestCaseRecord>();
+        List<TestCaseRecord> passed = new ArrayList<TestCaseRecord>();
+        File file = recordsFile(owner, packageid);
+        if (!file.isFile())
+            return notPassed;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // A damaged line is skipped rather than losing the whole page.
+                TestCaseRecord record = TestCaseRecord.fromLine(line);
+                if (record != null)
+                    (record.isPassed() ? passed : notPassed).add(record);
+            }
+        } finally {
+            reader.close();
+        }
+        notPassed.addAll(passed);
+        return notPassed;
+    }
+
+    static File recordsFile(Run<?, ?> build, String packageid) {
+        return new File(build.getRootDir(), "redgatesqlci-tests-" + packageid + ".tsv");
+    }
+
+    public void onAttached(Run<?, ?> r) {
+        owner = r;
+    }
+
+    public void onLoad(Run<?, ?> r) {
+        owner = r;
+    }
+
+    public String getIconFileName() {
+        return "clipboard.png";
+    }
+
+    public String getDisplayName() {
+        return "SQL CI test results: " + packageid;
+    }
+
+    public String getUrlName() {
+        return "redgatesqlci-tests-" + packageid;
+    }
+}
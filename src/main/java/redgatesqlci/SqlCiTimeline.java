@@ -0,0 +1,96 @@
+package redgatesqlci;
+
+import hudson.Util;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The phases of one sqlci run, as recognised in its output, with the warnings and errors it printed.
+ */
+public class SqlCiTimeline implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static class Phase implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final long offsetMillis;
+        private final long durationMillis;
+
+        public Phase(String name, long offsetMillis, long durationMillis) {
+            this.name = name;
+            this.offsetMillis = offsetMillis;
+            this.durationMillis = durationMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOffsetMillis() {
+            return offsetMillis;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public String getDuration() {
+            return Util.getTimeSpanString(durationMillis);
+        }
+    }
+
+    private final String command;
+    private final long totalMillis;
+    private final List<Phase> phases;
+    private final int warningCount;
+    private final int errorCount;
+    private final List<String> messages;
+
+    public SqlCiTimeline(String command, long totalMillis, List<Phase> phases, int warningCount, int errorCount, List<String> messages) {
+        this.command = command;
+        this.totalMillis = totalMillis;
+        this.phases = new ArrayList<Phase>(phases);
+        this.warningCount = warningCount;
+        this.errorCount = errorCount;
+        this.messages = new ArrayList<String>(messages);
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public String getTotal() {
+        return Util.getTimeSpanString(totalMillis);
+    }
+
+    public List<Phase> getPhases() {
+        return Collections.unmodifiableList(phases);
+    }
+
+    public int getWarningCount() {
+        return warningCount;
+    }
+
+    public int getErrorCount() {
+        return errorCount;
+    }
+
+    public List<String> getMessages() {
+        return Collections.unmodifiableList(messages);
+    }
+
+    /**
+     * The share of the run taken by a phase, as a whole percentage, for drawing the timeline.
+     */
+    public int percentOf(Phase phase) {
+        return totalMillis == 0 ? 0 : (int) (phase.getDurationMillis() * 100 / totalMillis);
+    }
+}
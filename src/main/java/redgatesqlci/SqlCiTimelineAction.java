@@ -0,0 +1,50 @@
+package redgatesqlci;
+
+import hudson.model.Action;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The phase timelines of every sqlci process a build ran.
+ */
+public class SqlCiTimelineAction implements Action {
+
+    private final List<SqlCiTimeline> timelines = new ArrayList<SqlCiTimeline>();
+
+    /**
+     * The build's action, adding one if it doesn't have one yet. Steps may run concurrently, so this is synchronized.
+     */
+    public static SqlCiTimelineAction forBuild(Run<?, ?> build) {
+        synchronized (build) {
+            SqlCiTimelineAction action = build.getAction(SqlCiTimelineAction.class);
+            if (action == null) {
+                action = new SqlCiTimelineAction();
+                build.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    public synchronized void addTimeline(SqlCiTimeline timeline) {
+        timelines.add(timeline);
+    }
+
+    public synchronized List<SqlCiTimeline> getTimelines() {
+        return Collections.unmodifiableList(new ArrayList<SqlCiTimeline>(timelines));
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "SQL CI timeline";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
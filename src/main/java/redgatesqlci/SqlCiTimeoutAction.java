@@ -0,0 +1,83 @@
+package redgatesqlci;
+
+import hudson.model.Run;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.*;
+
+/**
+ * Records that the watchdog stopped a hung sqlci run, and serves the diagnostics it took at the time.
+ */
+public class SqlCiTimeoutAction implements RunAction2 {
+    private final String command;
+    private final String reason;
+    private final String fileName;
+
+    private transient Run<?, ?> owner;
+
+    /**
+     * @param fileName the diagnostics file, in the build's directory.
+     */
+    public SqlCiTimeoutAction(String command, String reason, String fileName) {
+        this.command = command;
+        this.reason = reason;
+        this.fileName = fileName;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void doIndex(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        owner.checkPermission(Run.ARTIFACTS);
+        File file = new File(owner.getRootDir(), fileName);
+        InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND, "The diagnostics have been deleted.");
+            return;
+        }
+        try {
+            rsp.setContentType("text/plain;charset=UTF-8");
+            OutputStream out = rsp.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1)
+                out.write(buffer, 0, read);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void onAttached(Run<?, ?> r) {
+        owner = r;
+    }
+
+    public void onLoad(Run<?, ?> r) {
+        owner = r;
+    }
+
+    public String getIconFileName() {
+        return "warning.png";
+    }
+
+    public String getDisplayName() {
+        return "SQL CI " + command + " timeout";
+    }
+
+    public String getUrlName() {
+        return fileName.substring(0, fileName.length() - ".txt".length());
+    }
+}
@@ -0,0 +1,120 @@
+package redgatesqlci;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Job;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import hudson.util.ShiftedCategoryAxis;
+import jenkins.model.TransientActionFactory;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.awt.Color;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Graphs how long each kind of sqlci step has taken over a job's recent builds, from the job's {@link SqlCiHistory}.
+ */
+public class SqlCiTrendAction implements Action {
+
+    public static final int DEFAULT_BUILDS = 50;
+
+    private final Job<?, ?> job;
+
+    public SqlCiTrendAction(Job<?, ?> job) {
+        this.job = job;
+    }
+
+    public Job<?, ?> getJob() {
+        return job;
+    }
+
+    public List<SqlCiHistory.Record> getRecords() {
+        return SqlCiHistory.read(job, DEFAULT_BUILDS);
+    }
+
+    public void doGraph(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        final List<SqlCiHistory.Record> records = getRecords();
+
+        // The graph only changes when the history does, so browsers may keep it until then.
+        new Graph(SqlCiHistory.lastModified(job), 500, 200) {
+            @Override
+            protected JFreeChart createGraph() {
+                return createChart(records);
+            }
+        }.doPng(req, rsp);
+    }
+
+    // Total seconds per step type for each build.
+    private static JFreeChart createChart(List<SqlCiHistory.Record> records) {
+        Map<String, Map<Integer, Long>> totals = new TreeMap<String, Map<Integer, Long>>();
+        for (SqlCiHistory.Record record : records) {
+            Map<Integer, Long> byBuild = totals.get(record.getStep().getCommand());
+            if (byBuild == null) {
+                byBuild = new TreeMap<Integer, Long>();
+                totals.put(record.getStep().getCommand(), byBuild);
+            }
+            Long total = byBuild.get(record.getBuildNumber());
+            byBuild.put(record.getBuildNumber(), (total == null ? 0 : total) + record.getStep().getRunMillis());
+        }
+
+        DataSetBuilder<String, Integer> data = new DataSetBuilder<String, Integer>();
+        for (Map.Entry<String, Map<Integer, Long>> command : totals.entrySet()) {
+            for (Map.Entry<Integer, Long> build : command.getValue().entrySet())
+                data.add(build.getValue() / 1000.0, command.getKey(), build.getKey());
+        }
+
+        JFreeChart chart = ChartFactory.createLineChart(null, null, "seconds", data.build(),
+                PlotOrientation.VERTICAL, true, true, false);
+        chart.setBackgroundPaint(Color.white);
+
+        CategoryPlot plot = chart.getCategoryPlot();
+        plot.setBackgroundPaint(Color.white);
+        plot.setOutlinePaint(null);
+        plot.setRangeGridlinesVisible(true);
+        plot.setRangeGridlinePaint(Color.black);
+
+        ShiftedCategoryAxis domainAxis = new ShiftedCategoryAxis(null);
+        domainAxis.setLowerMargin(0.0);
+        domainAxis.setUpperMargin(0.0);
+        domainAxis.setCategoryMargin(0.0);
+        plot.setDomainAxis(domainAxis);
+        return chart;
+    }
+
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    public String getDisplayName() {
+        return "SQL CI Trend";
+    }
+
+    public String getUrlName() {
+        return "sqlci-trend";
+    }
+
+    /**
+     * Adds the trend to every job that has run a SQL CI step, Pipeline jobs included.
+     */
+    @Extension
+    public static class Factory extends TransientActionFactory<Job> {
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(Job target) {
+            if (!SqlCiHistory.exists(target))
+                return Collections.emptyList();
+            return Collections.singletonList(new SqlCiTrendAction(target));
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package redgatesqlci;
+
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.util.ProcessTree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decides when a sqlci run has hung, and gathers what is needed to find out why and to clean up after it.
+ * <p>
+ * A run is stopped once it has run for longer than the step timeout, or once it has written no output for longer
+ * than the stall timeout. Either is off when 0.
+ */
+public class SqlCiWatchdog {
+    // Set in sqlci's environment, and so inherited by every process it starts, to find them again.
+    private static final String RUN_VARIABLE = "REDGATESQLCI_RUN";
+
+    // The sessions that are blocked, and the sessions blocking them, on the server sqlci was working against.
+    private static final String BLOCKING_SESSIONS_SQL = "SET NOCOUNT ON; SELECT r.session_id, r.blocking_session_id, r.status, r.command,"
+            + " r.wait_type, r.wait_time, DB_NAME(r.database_id), SUBSTRING(t.text, 1, 400)"
+            + " FROM sys.dm_exec_requests r OUTER APPLY sys.dm_exec_sql_text(r.sql_handle) t"
+            + " WHERE r.blocking_session_id <> 0"
+            + " OR r.session_id IN (SELECT blocking_session_id FROM sys.dm_exec_requests WHERE blocking_session_id <> 0)";
+
+    private final long timeoutMillis;
+    private final long stallMillis;
+    private final String runId = UUID.randomUUID().toString();
+    private final long start;
+    private long lastOutput;
+    private long lastBytes;
+
+    public SqlCiWatchdog(long timeoutMillis, long stallMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.stallMillis = stallMillis;
+        this.start = System.currentTimeMillis();
+        this.lastOutput = start;
+    }
+
+    /**
+     * The environment to start sqlci with, so that its process tree can be listed.
+     */
+    public Map<String, String> environment() {
+        return Collections.singletonMap(RUN_VARIABLE, runId);
+    }
+
+    /**
+     * @param bytes how much output the run has written so far.
+     * @return why the run should be stopped, or null if it should carry on.
+     */
+    public String check(long bytes) {
+        long now = System.currentTimeMillis();
+        if (bytes != lastBytes) {
+            lastBytes = bytes;
+            lastOutput = now;
+        }
+        if (timeoutMillis > 0 && now - start >= timeoutMillis)
+            return "it ran for longer than the step timeout of " + Util.getTimeSpanString(timeoutMillis);
+        if (stallMillis > 0 && now - lastOutput >= stallMillis)
+            return "it wrote no output for " + Util.getTimeSpanString(now - lastOutput);
+        return null;
+    }
+
+    /**
+     * A picture of the run at the moment it was stopped, with the processes sqlci had running, taken on the node
+     * running it.
+     */
+    public String snapshot(String reason, List<String> params, String workingDirectory) {
+        long now = System.currentTimeMillis();
+        StringBuilder text = new StringBuilder();
+        text.append("SQL CI ").append(params.get(0)).append(" was stopped at ").append(new Date(now))
+                .append(", because ").append(reason).append(".\n");
+        text.append("Running for ").append(Util.getTimeSpanString(now - start)).append(", last output ")
+                .append(Util.getTimeSpanString(now - lastOutput)).append(" before, ").append(lastBytes).append(" bytes of output in all.\n");
+        text.append("Working directory: ").append(workingDirectory).append('\n');
+        text.append("Command: sqlci");
+        for (String param : params)
+            text.append(' ').append(maskPassword(param));
+
+        text.append("\n\nProcesses of the run (process ID, parent process ID, command line):\n");
+        int found = 0;
+        for (ProcessTree.OSProcess process : ProcessTree.get()) {
+            if (!process.hasMatchingEnvVars(environment()))
+                continue;
+            ProcessTree.OSProcess parent = process.getParent();
+            text.append(process.getPid()).append('\t').append(parent == null ? "" : String.valueOf(parent.getPid())).append('\t');
+            for (String argument : process.getArguments())
+                text.append(maskPassword(argument)).append(' ');
+            text.append('\n');
+            found++;
+        }
+        if (found == 0)
+            text.append("None could be found on the node.\n");
+        return text.toString();
+    }
+
+    /**
+     * Lists the blocked and blocking sessions on the server the run was working against, which is the usual reason
+     * for sqlci to hang.
+     */
+    static String blockingSessions(List<String> params, Launcher launcher) throws IOException, InterruptedException {
+        SqlCmd sqlCmd = sqlCmdFor(params);
+        if (sqlCmd == null)
+            return "The run wasn't against a SQL Server, so there are no sessions to list.\n";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!sqlCmd.query(launcher, "master", BLOCKING_SESSIONS_SQL, out))
+            return "Could not list the blocked sessions on " + ServerAdmission.targetServer(params) + ".\n";
+        String sessions = out.toString("UTF-8").trim();
+        return sessions.isEmpty()
+                ? "No sessions were blocked on " + ServerAdmission.targetServer(params) + ".\n"
+                : "Blocked and blocking sessions on " + ServerAdmission.targetServer(params) + " (session, blocked by, status,"
+                + " command, wait type, wait ms, database, statement):\n" + sessions + "\n";
+    }
+
+    /**
+     * Drops the named temporary database the run was using, unless it belongs to a pool, which resets its own
+     * databases when they are returned.
+     */
+    static void dropTemporaryDatabase(List<String> params, Launcher launcher, TaskListener listener) throws IOException, InterruptedException {
+        String server = param(params, "/temporaryDatabaseServer=");
+        String database = param(params, "/temporaryDatabaseName=");
+        if (server == null || database == null || isPooled(server, database))
+            return;
+
+        SqlCmd sqlCmd = sqlCmdFor(params);
+        listener.getLogger().println("Dropping temporary database " + database + " on " + server + ".");
+        if (!sqlCmd.run(launcher, listener, "IF DB_ID(" + SqlCmd.quoteString(database) + ") IS NOT NULL\n"
+                + "BEGIN\n"
+                + "  ALTER DATABASE " + SqlCmd.quoteName(database) + " SET SINGLE_USER WITH ROLLBACK IMMEDIATE;\n"
+                + "  DROP DATABASE " + SqlCmd.quoteName(database) + ";\n"
+                + "END"))
+            listener.getLogger().println("Could not drop temporary database " + database + ".");
+    }
+
+    private static boolean isPooled(String server, String database) {
+        SqlCiGlobalConfiguration config = SqlCiGlobalConfiguration.get();
+        if (config == null)
+            return false;
+        for (DatabasePool pool : config.getPools()) {
+            if (pool.getServerName().trim().equalsIgnoreCase(server.trim()) && database.startsWith(pool.getDatabasePrefix()))
+                return true;
+        }
+        return false;
+    }
+
+    // Connects as sqlci did, to its temporary database server or else its target server.
+    private static SqlCmd sqlCmdFor(List<String> params) {
+        if (param(params, "/temporaryDatabaseServer=") != null)
+            return new SqlCmd(param(params, "/temporaryDatabaseServer="), param(params, "/temporaryDatabaseUserName="),
+                    param(params, "/temporaryDatabasePassword="));
+        if (param(params, "/databaseServer=") != null)
+            return new SqlCmd(param(params, "/databaseServer="), param(params, "/databaseUserName="), param(params, "/databasePassword="));
+        return null;
+    }
+
+    private static String param(List<String> params, String prefix) {
+        for (String param : params) {
+            if (param.startsWith(prefix))
+                return param.substring(prefix.length());
+        }
+        return null;
+    }
+
+    private static String maskPassword(String param) {
+        int equals = param.indexOf('=');
+        String name = equals > 0 ? param.substring(0, equals).toLowerCase() : "";
+        if (name.contains("password") || name.contains("apikey"))
+            return param.substring(0, equals + 1) + "********";
+        return param;
+    }
+}
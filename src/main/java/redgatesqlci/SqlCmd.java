@@ -0,0 +1,149 @@
+package redgatesqlci;
+
+import hudson.Launcher;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs T-SQL batches with sqlcmd, and bulk copies with bcp, on the node the launcher belongs to.
+ */
+public class SqlCmd implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String serverName;
+    private final String username;
+    private final String password;
+
+    public SqlCmd(String serverName, String username, String password) {
+        this.serverName = serverName;
+        this.username = username;
+        this.password = password;
+    }
+
+    /**
+     * Waits for permission to run against this server, so that sqlcmd and bcp count against the same per-server
+     * limit as sqlci. Call it on the controller, and release the permit before running sqlci, which waits for a
+     * permit of its own.
+     */
+    public ServerAdmission.Permit admit(TaskListener listener) throws InterruptedException {
+        return ServerAdmission.acquire(serverName, listener);
+    }
+
+    /**
+     * @return true if sqlcmd ran the batch without error.
+     */
+    public boolean run(Launcher launcher, TaskListener listener, String sql) throws IOException, InterruptedException {
+        return run(launcher, listener, "master", sql);
+    }
+
+    /**
+     * @return true if sqlcmd ran the batch in {@code database} without error.
+     */
+    public boolean run(Launcher launcher, TaskListener listener, String database, String sql) throws IOException, InterruptedException {
+        List<String> cmds = command(database);
+        cmds.add("-Q");
+        cmds.add(sql);
+
+        return launcher.launch().cmds(cmds).stdout(listener).quiet(true).join() == 0;
+    }
+
+    /**
+     * @return true if sqlcmd ran the script file in {@code database} without error.
+     */
+    public boolean runFile(Launcher launcher, TaskListener listener, String database, String scriptPath) throws IOException, InterruptedException {
+        List<String> cmds = command(database);
+        cmds.add("-i");
+        cmds.add(scriptPath);
+
+        return launcher.launch().cmds(cmds).stdout(listener).quiet(true).join() == 0;
+    }
+
+    /**
+     * Writes the rows a query returns to {@code out}, tab-separated, without headers and with long values in full.
+     *
+     * @return true if sqlcmd ran the query without error.
+     */
+    public boolean query(Launcher launcher, String database, String sql, OutputStream out) throws IOException, InterruptedException {
+        List<String> cmds = command(database);
+        cmds.add("-h");
+        cmds.add("-1");
+        cmds.add("-y");
+        cmds.add("0");
+        cmds.add("-s");
+        cmds.add("\t");
+        cmds.add("-Q");
+        cmds.add(sql);
+
+        return launcher.launch().cmds(cmds).stdout(out).quiet(true).join() == 0;
+    }
+
+    /**
+     * Copies a table's rows to or from a file in bcp's native format. Rows are loaded with their identity values
+     * as they are, and without checking constraints or firing triggers.
+     *
+     * @param table the schema-qualified, quoted table name.
+     * @return true if bcp copied every row.
+     */
+    public boolean bulkCopy(Launcher launcher, TaskListener listener, String database, String table, boolean out, String dataFile)
+            throws IOException, InterruptedException {
+        List<String> cmds = new ArrayList<String>();
+        cmds.add("bcp");
+        cmds.add(table);
+        cmds.add(out ? "out" : "in");
+        cmds.add(dataFile);
+        cmds.add("-n");
+        cmds.add("-q");
+        if (!out) {
+            cmds.add("-E");
+            cmds.add("-h");
+            cmds.add("TABLOCK");
+        }
+        cmds.add("-S");
+        cmds.add(serverName);
+        if (username != null && !username.isEmpty()) {
+            cmds.add("-U");
+            cmds.add(username);
+            cmds.add("-P");
+            cmds.add(password);
+        } else {
+            cmds.add("-T");
+        }
+        cmds.add("-d");
+        cmds.add(database);
+
+        return launcher.launch().cmds(cmds).stdout(listener).quiet(true).join() == 0;
+    }
+
+    private List<String> command(String database) {
+        List<String> cmds = new ArrayList<String>();
+        cmds.add("sqlcmd");
+        cmds.add("-S");
+        cmds.add(serverName);
+        if (username != null && !username.isEmpty()) {
+            cmds.add("-U");
+            cmds.add(username);
+            cmds.add("-P");
+            cmds.add(password);
+        } else {
+            cmds.add("-E");
+        }
+        // Stop at the first error and report it through the exit code.
+        cmds.add("-b");
+        cmds.add("-d");
+        cmds.add(database);
+        return cmds;
+    }
+
+    static String quoteName(String name) {
+        return "[" + name.replace("]", "]]") + "]";
+    }
+
+    static String quoteString(String value) {
+        return "N'" + value.replace("'", "''") + "'";
+    }
+}
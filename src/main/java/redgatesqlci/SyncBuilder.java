@@ -1,14 +1,16 @@
 package redgatesqlci;
 
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
-import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.BuildListener;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import jenkins.tasks.SimpleBuildStep;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -17,8 +19,9 @@ import org.kohsuke.stapler.StaplerRequest;
 import javax.servlet.ServletException;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
-public class SyncBuilder extends Builder {
+public class SyncBuilder extends Builder implements SimpleBuildStep {
 
     private final String packageid;
     public String getPackageid() {
@@ -55,38 +58,200 @@ public class SyncBuilder extends Builder {
         return additionalParams;
     }
 
+    // Null unless the package is synced to a list of targets instead of the single server and database.
+    private final String multipleTargets;
+    public String getMultipleTargets() {
+        return multipleTargets;
+    }
+
+    private final String targetList;
+    public String getTargetList() {
+        return targetList;
+    }
+
+    private final String targetsFile;
+    public String getTargetsFile() {
+        return targetsFile;
+    }
+
+    private final int maxParallelSyncs;
+    public int getMaxParallelSyncs() {
+        return maxParallelSyncs;
+    }
+
+    private final int maxSyncsPerServer;
+    public int getMaxSyncsPerServer() {
+        return maxSyncsPerServer;
+    }
+
+    private final boolean failFast;
+    public boolean getFailFast() {
+        return failFast;
+    }
+
+    private final boolean reuseScripts;
+    public boolean getReuseScripts() {
+        return reuseScripts;
+    }
+
+    // Null unless the package is taken from an upstream build instead of this build.
+    private final String upstreamPackage;
+    public String getUpstreamPackage() {
+        return upstreamPackage;
+    }
+
+    private final String upstreamJob;
+    public String getUpstreamJob() {
+        return upstreamJob;
+    }
+
+    private final String upstreamBuild;
+    public String getUpstreamBuild() {
+        return upstreamBuild;
+    }
+
     @DataBoundConstructor
-    public SyncBuilder(String packageid, String serverName, String dbName, ServerAuth serverAuth, String additionalParams) {
+    public SyncBuilder(String packageid, String serverName, String dbName, ServerAuth serverAuth, MultipleTargets multipleTargets, String additionalParams,
+                       UpstreamPackage upstreamPackage) {
         this.packageid = packageid;
         this.serverName = serverName;
         this.dbName = dbName;
         this.serverAuth = serverAuth.getvalue();
         this.username = serverAuth.getUsername();
         this.password = serverAuth.getPassword();
+        this.multipleTargets = multipleTargets == null ? null : "true";
+
+        if(this.multipleTargets != null)
+        {
+            this.targetList = multipleTargets.getTargetList();
+            this.targetsFile = multipleTargets.getTargetsFile();
+            this.maxParallelSyncs = Math.max(1, multipleTargets.getMaxParallelSyncs());
+            this.maxSyncsPerServer = Math.max(0, multipleTargets.getMaxSyncsPerServer());
+            this.failFast = multipleTargets.getFailFast();
+            this.reuseScripts = multipleTargets.getReuseScripts();
+        }
+        else
+        {
+            this.targetList = "";
+            this.targetsFile = "";
+            this.maxParallelSyncs = 1;
+            this.maxSyncsPerServer = 0;
+            this.failFast = false;
+            this.reuseScripts = false;
+        }
+
         this.additionalParams = additionalParams;
+
+        this.upstreamPackage = upstreamPackage == null ? null : "true";
+        if(this.upstreamPackage != null)
+        {
+            this.upstreamJob = upstreamPackage.getJobName();
+            this.upstreamBuild = upstreamPackage.getBuildNumber();
+        }
+        else
+        {
+            this.upstreamJob = "";
+            this.upstreamBuild = "";
+        }
     }
 
     @Override
-    public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
-        ArrayList<String> params = new ArrayList<String>();
+    public void perform(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener)
+            throws InterruptedException, IOException {
+        FilePath packageFile = packageFile(build, workspace, listener);
+        if (getMultipleTargets() != null)
+            Utils.checkStepResult(syncToTargets(build, workspace, launcher, listener, packageFile), "SYNC");
+        else
+            Utils.checkStepResult(runStep(build, workspace, launcher, listener, packageFile), "SYNC");
+    }
 
-        String packageFileName = Utils.constructPackageFileName(getPackageid(), build.getNumber());
+    // The package to sync: this build's, or the one an upstream build kept in the package store.
+    private FilePath packageFile(Run<?, ?> build, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+        if (getUpstreamPackage() == null)
+            return workspace.child(Utils.constructPackageFileName(getPackageid(), build.getNumber()));
+        Run<?, ?> upstream = PackageHandoff.upstreamBuild(build, listener, getUpstreamJob(), getUpstreamBuild());
+        return PackageHandoff.fetch(build, upstream, workspace, listener, getPackageid());
+    }
+
+    private boolean runStep(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener, FilePath packageFile) {
+        List<String> params = syncParams(packageFile.getName(), new SyncTarget(getServerName(), getDbName()), null);
+        return Utils.runSQLCIWithParams(build, workspace, launcher, listener, params);
+    }
+
+    // Syncs to every target in the list and the targets file, several at once.
+    private boolean syncToTargets(final Run<?, ?> build, FilePath workspace, final Launcher launcher, TaskListener listener,
+                                  FilePath packageFile) throws IOException, InterruptedException {
+        List<SyncTarget> targets = new ArrayList<SyncTarget>(SyncTarget.parse(getTargetList(), "Target list"));
+        if (!getTargetsFile().isEmpty()) {
+            FilePath file = workspace.child(getTargetsFile());
+            if (!file.exists())
+                throw new AbortException("Targets file " + file.getRemote() + " doesn't exist.");
+            targets.addAll(SyncTarget.parse(file.readToString(), getTargetsFile()));
+        }
+        if (targets.isEmpty()) {
+            listener.getLogger().println("No sync targets were given.");
+            return true;
+        }
+
+        listener.getLogger().println("Syncing " + getPackageid() + " to " + targets.size() + " targets, at most "
+                + getMaxParallelSyncs() + " at a time" + (getMaxSyncsPerServer() > 0 ? " and " + getMaxSyncsPerServer() + " per server" : "")
+                + (getFailFast() ? ", stopping at the first failure." : "."));
+
+        final String packagePath = packageFile.getRemote();
+        FilePath targetsRoot = workspace.child(".redgatesqlci").child("sync-targets");
+        long start = System.currentTimeMillis();
+        List<SyncFanOut.TargetResult> results;
+        if (getReuseScripts()) {
+            boolean sqlAuth = getServerAuth().equals("sqlServerAuth");
+            SyncScriptReuse reuse = new SyncScriptReuse(build, workspace, launcher, listener,
+                    sqlAuth ? getUsername() : "", sqlAuth ? getPassword() : "", new SyncScriptReuse.SyncParams() {
+                public List<String> paramsFor(SyncTarget target, String scriptFile) {
+                    return syncParams(packagePath, target, scriptFile);
+                }
+            });
+            results = reuse.run(targets, packageFile, getAdditionalParams(), targetsRoot,
+                    getMaxParallelSyncs(), getMaxSyncsPerServer(), getFailFast());
+        } else {
+            SyncFanOut fanOut = new SyncFanOut(targetsRoot, listener, getMaxParallelSyncs(), getMaxSyncsPerServer(), getFailFast());
+            results = fanOut.run(targets, new SyncFanOut.TargetCommand() {
+                public SyncFanOut.Status sync(SyncTarget target, FilePath directory, TaskListener targetListener) {
+                    return Utils.runSQLCIWithParams(build, directory, launcher, targetListener, syncParams(packagePath, target, null))
+                            ? SyncFanOut.Status.SUCCEEDED : SyncFanOut.Status.FAILED;
+                }
+            });
+        }
+
+        SyncTargetsAction action = new SyncTargetsAction(getPackageid(), results, System.currentTimeMillis() - start);
+        build.addAction(action);
+        listener.getLogger().println("Synced " + action.count("SUCCEEDED") + " targets with SQL CI and "
+                + action.count("CACHED_SCRIPT") + " with a cached script; " + action.count("UP_TO_DATE") + " were already up to date, "
+                + action.count("FAILED") + " failed and " + action.count("SKIPPED") + " were skipped.");
+        return action.count("FAILED") == 0 && action.count("SKIPPED") == 0;
+    }
+
+    // If scriptFile isn't null, SQL Compare also saves the deployment script there.
+    private List<String> syncParams(String packagePath, SyncTarget target, String scriptFile) {
+        ArrayList<String> params = new ArrayList<String>();
 
         params.add("SYNC");
-        params.add("/package=" + packageFileName);
+        params.add("/package=" + packagePath);
 
-        params.add("/databaseServer=" + getServerName());
-        params.add("/databaseName=" + getDbName());
+        params.add("/databaseServer=" + target.getServerName());
+        params.add("/databaseName=" + target.getDbName());
 
         if (getServerAuth().equals("sqlServerAuth")) {
             params.add("/databaseUserName=" + getUsername());
             params.add("/databasePassword=" + getPassword());
         }
 
-        if (!getAdditionalParams().isEmpty())
-            params.add("/additionalCompareArgs=\"" + getAdditionalParams() + "\"");
+        String compareArgs = getAdditionalParams();
+        if (scriptFile != null)
+            compareArgs = (compareArgs.isEmpty() ? "" : compareArgs + " ") + "/scriptFile:" + scriptFile;
+
+        if (!compareArgs.isEmpty())
+            params.add("/additionalCompareArgs=\"" + compareArgs + "\"");
 
-        return Utils.runSQLCIWithParams(build, launcher, listener, params);
+        return params;
     }
 
 
@@ -124,6 +289,25 @@ public class SyncBuilder extends Builder {
             return FormValidation.ok();
         }
 
+        public FormValidation doCheckTargetList(@QueryParameter String value) {
+            try {
+                SyncTarget.parse(value, "Line");
+            } catch (AbortException e) {
+                return FormValidation.error(e.getMessage());
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckMaxParallelSyncs(@QueryParameter String value) {
+            try {
+                if (Integer.parseInt(value) < 1)
+                    return FormValidation.error("Enter at least 1.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Enter a whole number.");
+            }
+            return FormValidation.ok();
+        }
+
         public FormValidation doCheckServerName(@QueryParameter String serverName) throws IOException, ServletException {
             if (serverName.length() == 0)
                 return FormValidation.error("Enter a server name");
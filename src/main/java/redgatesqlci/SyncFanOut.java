@@ -0,0 +1,134 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Runs a sync against many targets at once, at most {@code maxParallel} in total and at most
+ * {@code maxPerServer} against any one server. Each sync runs in its own working directory.
+ * <p>
+ * Workers take the next target whose server has room, rather than queueing in list order,
+ * so a busy server doesn't hold up targets on idle ones.
+ */
+public class SyncFanOut {
+
+    /**
+     * Syncs one target, in its own working directory and with its own log.
+     */
+    public interface TargetCommand {
+        Status sync(SyncTarget target, FilePath directory, TaskListener listener) throws IOException, InterruptedException;
+    }
+
+    /**
+     * SUCCEEDED means sqlci synced the target; CACHED_SCRIPT that a cached deployment script was applied instead;
+     * UP_TO_DATE that the target already had the package's schema.
+     */
+    public enum Status {
+        SUCCEEDED, CACHED_SCRIPT, UP_TO_DATE, FAILED, SKIPPED;
+
+        public boolean isSuccess() {
+            return this == SUCCEEDED || this == CACHED_SCRIPT || this == UP_TO_DATE;
+        }
+    }
+
+    public static class TargetResult {
+        private final SyncTarget target;
+        private final Status status;
+        private final long elapsedMillis;
+
+        TargetResult(SyncTarget target, Status status, long elapsedMillis) {
+            this.target = target;
+            this.status = status;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public SyncTarget getTarget() {
+            return target;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    private final FilePath targetsRoot;
+    private final TaskListener listener;
+    private final int maxParallel;
+    private final int maxPerServer;
+    private final boolean failFast;
+
+    /**
+     * @param maxPerServer 0 for no limit.
+     * @param failFast     whether to skip targets that haven't started once one has failed. Syncs already running finish.
+     */
+    public SyncFanOut(FilePath targetsRoot, TaskListener listener, int maxParallel, int maxPerServer, boolean failFast) {
+        this.targetsRoot = targetsRoot;
+        this.listener = listener;
+        this.maxParallel = maxParallel;
+        this.maxPerServer = maxPerServer;
+        this.failFast = failFast;
+    }
+
+    public List<TargetResult> run(List<SyncTarget> targets, final TargetCommand command) throws IOException, InterruptedException {
+        targetsRoot.deleteRecursive();
+        List<TargetResult> results = new TargetFanOut().run(targets, new FanOut.Task<SyncTarget, TargetResult>() {
+            public TargetResult run(int index, SyncTarget target, TaskListener targetListener) throws IOException, InterruptedException {
+                FilePath directory = targetsRoot.child("target-" + (index + 1));
+                directory.mkdirs();
+                long start = System.currentTimeMillis();
+                Status status = command.sync(target, directory, targetListener);
+                return new TargetResult(target, status, System.currentTimeMillis() - start);
+            }
+        });
+
+        List<TargetResult> all = new ArrayList<TargetResult>();
+        for (int i = 0; i < results.size(); i++)
+            all.add(results.get(i) != null ? results.get(i) : new TargetResult(targets.get(i), Status.SKIPPED, 0));
+        return all;
+    }
+
+    private static String serverKey(SyncTarget target) {
+        return target.getServerName().trim().toLowerCase(Locale.ENGLISH);
+    }
+
+    // Holds back targets whose server is full, and stops starting targets after a failure with failFast.
+    private class TargetFanOut extends FanOut<SyncTarget, TargetResult> {
+        private final Map<String, Integer> runningPerServer = new HashMap<String, Integer>();
+        private boolean failed;
+
+        TargetFanOut() {
+            super(listener, maxParallel);
+        }
+
+        @Override
+        protected boolean mayStart(SyncTarget target) {
+            Integer running = runningPerServer.get(serverKey(target));
+            return maxPerServer <= 0 || running == null || running < maxPerServer;
+        }
+
+        @Override
+        protected void started(SyncTarget target) {
+            Integer running = runningPerServer.get(serverKey(target));
+            runningPerServer.put(serverKey(target), running == null ? 1 : running + 1);
+        }
+
+        @Override
+        protected void finished(SyncTarget target, TargetResult result) {
+            runningPerServer.put(serverKey(target), runningPerServer.get(serverKey(target)) - 1);
+            if (result == null || !result.getStatus().isSuccess())
+                failed = true;
+        }
+
+        @Override
+        protected boolean isStopped() {
+            return failFast && failed;
+        }
+    }
+}
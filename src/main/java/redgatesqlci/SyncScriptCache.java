@@ -0,0 +1,111 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Controller-wide store of the deployment scripts SQL Compare generated while syncing packages.
+ * <p>
+ * A script is keyed by the package and by the schema hash of the database it was generated against, so it can be
+ * applied unchanged to any other database with that schema. For each package, the schema hash of a database it has
+ * been synced to is also kept, so that databases already at that schema can be left alone.
+ */
+public class SyncScriptCache {
+
+    // Scripts beyond this many are deleted, oldest first.
+    private static final int MAX_SCRIPTS = 500;
+
+    private static SyncScriptCache instance;
+
+    public static synchronized SyncScriptCache get() {
+        if (instance == null)
+            instance = new SyncScriptCache(new File(Jenkins.getInstance().getRootDir(), "redgatesqlci-sync-scripts"));
+        return instance;
+    }
+
+    private final File directory;
+
+    SyncScriptCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * The schema hash that databases have once {@code packageKey} has been synced to them, or null if it isn't known.
+     */
+    public synchronized String getSyncedSchema(String packageKey) throws IOException {
+        File file = new File(directory, packageKey + ".schema");
+        return file.isFile() ? new FilePath(file).readToString().trim() : null;
+    }
+
+    public synchronized void putSyncedSchema(String packageKey, String schemaHash) throws IOException, InterruptedException {
+        directory.mkdirs();
+        new FilePath(new File(directory, packageKey + ".schema")).write(schemaHash, "UTF-8");
+    }
+
+    public synchronized boolean hasScript(String packageKey, String schemaHash) {
+        return scriptFile(packageKey, schemaHash).isFile();
+    }
+
+    /**
+     * Copies the cached script to {@code target}.
+     *
+     * @return false if there isn't one.
+     */
+    public boolean restoreScript(String packageKey, String schemaHash, FilePath target) throws IOException, InterruptedException {
+        File file = scriptFile(packageKey, schemaHash);
+        synchronized (this) {
+            if (!file.isFile())
+                return false;
+            file.setLastModified(System.currentTimeMillis());
+        }
+        target.copyFrom(new FilePath(file));
+        return true;
+    }
+
+    public void storeScript(String packageKey, String schemaHash, FilePath source) throws IOException, InterruptedException {
+        File file = scriptFile(packageKey, schemaHash);
+        File temp = new File(directory, file.getName() + ".tmp");
+        directory.mkdirs();
+        source.copyTo(new FilePath(temp));
+        synchronized (this) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Could not store " + file);
+            prune();
+        }
+    }
+
+    /**
+     * Forgets a script that didn't produce the expected schema.
+     */
+    public synchronized void removeScript(String packageKey, String schemaHash) {
+        scriptFile(packageKey, schemaHash).delete();
+    }
+
+    private File scriptFile(String packageKey, String schemaHash) {
+        return new File(directory, packageKey + "-" + schemaHash + ".sql");
+    }
+
+    private void prune() {
+        File[] scripts = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().endsWith(".sql");
+            }
+        });
+        if (scripts == null || scripts.length <= MAX_SCRIPTS)
+            return;
+        Arrays.sort(scripts, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return Long.valueOf(a.lastModified()).compareTo(b.lastModified());
+            }
+        });
+        for (int i = 0; i < scripts.length - MAX_SCRIPTS; i++)
+            scripts[i].delete();
+    }
+}
@@ -0,0 +1,195 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Syncs a package to many targets while comparing each distinct target schema only once.
+ * <p>
+ * Every target's schema is hashed first. Targets that already have the schema the package produces are left alone.
+ * For each other schema, one target is synced by sqlci while SQL Compare saves its deployment script, and that
+ * script is cached and then applied with sqlcmd to the other targets with the same schema. A target whose schema
+ * doesn't come out as expected after the script is synced by sqlci instead.
+ */
+public class SyncScriptReuse {
+
+    /**
+     * Builds the sqlci parameters that sync one target, saving the deployment script to {@code scriptFile} if it isn't null.
+     */
+    public interface SyncParams {
+        List<String> paramsFor(SyncTarget target, String scriptFile);
+    }
+
+    private static final String SCRIPT_NAME = "deploy.sql";
+
+    private final Run<?, ?> build;
+    private final FilePath workspace;
+    private final Launcher launcher;
+    private final TaskListener listener;
+    private final String username;
+    private final String password;
+    private final SyncParams syncParams;
+    private final SyncScriptCache cache = SyncScriptCache.get();
+
+    /**
+     * @param username blank for Windows Authentication.
+     */
+    public SyncScriptReuse(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+                           String username, String password, SyncParams syncParams) {
+        this.build = build;
+        this.workspace = workspace;
+        this.launcher = launcher;
+        this.listener = listener;
+        this.username = username;
+        this.password = password;
+        this.syncParams = syncParams;
+    }
+
+    public List<SyncFanOut.TargetResult> run(List<SyncTarget> targets, FilePath packageFile, String compareOptions,
+                                             FilePath targetsRoot, int maxParallel, int maxPerServer, boolean failFast)
+            throws IOException, InterruptedException {
+        // Anything that changes what SQL Compare deploys is part of the key.
+        final String packageKey = Util.getDigestOf(packageFile.digest() + "\n" + compareOptions);
+
+        final Map<SyncTarget, String> schemas = fingerprintAll(targets, maxParallel);
+        String syncedSchema = cache.getSyncedSchema(packageKey);
+
+        List<SyncTarget> leaders = new ArrayList<SyncTarget>();
+        List<SyncTarget> followers = new ArrayList<SyncTarget>();
+        Map<SyncTarget, SyncFanOut.TargetResult> results = new HashMap<SyncTarget, SyncFanOut.TargetResult>();
+        Set<String> leadSchemas = new HashSet<String>();
+        for (SyncTarget target : targets) {
+            String schema = schemas.get(target);
+            if (schema != null && schema.equals(syncedSchema))
+                results.put(target, new SyncFanOut.TargetResult(target, SyncFanOut.Status.UP_TO_DATE, 0));
+            else if (schema != null && (cache.hasScript(packageKey, schema) || !leadSchemas.add(schema)))
+                followers.add(target);
+            else
+                leaders.add(target);
+        }
+        listener.getLogger().println(results.size() + " targets already have this package's schema. "
+                + leaders.size() + " will be compared by SQL CI and " + followers.size() + " will reuse a deployment script.");
+
+        // Targets that need a comparison go first, so their scripts are ready for the rest.
+        boolean leadersFailed = false;
+        if (!leaders.isEmpty()) {
+            SyncFanOut fanOut = new SyncFanOut(targetsRoot, listener, maxParallel, maxPerServer, failFast);
+            for (SyncFanOut.TargetResult result : fanOut.run(leaders, new SyncFanOut.TargetCommand() {
+                public SyncFanOut.Status sync(SyncTarget target, FilePath directory, TaskListener targetListener)
+                        throws IOException, InterruptedException {
+                    return syncAndCache(target, schemas.get(target), packageKey, directory, targetListener);
+                }
+            })) {
+                results.put(result.getTarget(), result);
+                leadersFailed |= !result.getStatus().isSuccess();
+            }
+        }
+
+        if (!followers.isEmpty() && !(failFast && leadersFailed)) {
+            final String expectedSchema = cache.getSyncedSchema(packageKey);
+            SyncFanOut fanOut = new SyncFanOut(targetsRoot, listener, maxParallel, maxPerServer, failFast);
+            for (SyncFanOut.TargetResult result : fanOut.run(followers, new SyncFanOut.TargetCommand() {
+                public SyncFanOut.Status sync(SyncTarget target, FilePath directory, TaskListener targetListener)
+                        throws IOException, InterruptedException {
+                    return applyCachedScript(target, schemas.get(target), expectedSchema, packageKey, directory, targetListener);
+                }
+            }))
+                results.put(result.getTarget(), result);
+        }
+
+        List<SyncFanOut.TargetResult> all = new ArrayList<SyncFanOut.TargetResult>();
+        for (SyncTarget target : targets) {
+            SyncFanOut.TargetResult result = results.get(target);
+            all.add(result != null ? result : new SyncFanOut.TargetResult(target, SyncFanOut.Status.SKIPPED, 0));
+        }
+        return all;
+    }
+
+    // Syncs with sqlci, then caches the script SQL Compare saved and the schema the target ended up with.
+    private SyncFanOut.Status syncAndCache(SyncTarget target, String schema, String packageKey, FilePath directory,
+                                           TaskListener targetListener) throws IOException, InterruptedException {
+        FilePath script = directory.child(SCRIPT_NAME);
+        if (!Utils.runSQLCIWithParams(build, directory, launcher, targetListener,
+                syncParams.paramsFor(target, schema == null ? null : script.getRemote())))
+            return SyncFanOut.Status.FAILED;
+        if (schema == null)
+            return SyncFanOut.Status.SUCCEEDED;
+
+        String syncedSchema = fingerprint(target, targetListener);
+        if (syncedSchema != null) {
+            cache.putSyncedSchema(packageKey, syncedSchema);
+            if (script.exists())
+                cache.storeScript(packageKey, schema, script);
+            else
+                targetListener.getLogger().println("SQL Compare didn't save a deployment script, so it can't be reused.");
+        }
+        return SyncFanOut.Status.SUCCEEDED;
+    }
+
+    private SyncFanOut.Status applyCachedScript(SyncTarget target, String schema, String expectedSchema, String packageKey,
+                                                FilePath directory, TaskListener targetListener) throws IOException, InterruptedException {
+        FilePath script = directory.child(SCRIPT_NAME);
+        if (expectedSchema != null && cache.restoreScript(packageKey, schema, script)) {
+            targetListener.getLogger().println("Applying the cached deployment script for schema " + schema + ".");
+            SqlCmd sqlCmd = sqlCmd(target);
+            boolean applied;
+            ServerAdmission.Permit permit = sqlCmd.admit(targetListener);
+            try {
+                applied = sqlCmd.runFile(launcher, targetListener, target.getDbName(), script.getRemote());
+            } finally {
+                permit.release();
+            }
+            if (applied && expectedSchema.equals(fingerprint(target, targetListener)))
+                return SyncFanOut.Status.CACHED_SCRIPT;
+
+            targetListener.getLogger().println("The cached deployment script didn't produce the expected schema. Syncing with SQL CI instead.");
+            cache.removeScript(packageKey, schema);
+        }
+        return Utils.runSQLCIWithParams(build, directory, launcher, targetListener, syncParams.paramsFor(target, null))
+                ? SyncFanOut.Status.SUCCEEDED : SyncFanOut.Status.FAILED;
+    }
+
+    private Map<SyncTarget, String> fingerprintAll(List<SyncTarget> targets, int maxParallel) throws IOException, InterruptedException {
+        FanOut<SyncTarget, String> fanOut = new FanOut<SyncTarget, String>(listener, maxParallel) {
+            @Override
+            protected String failed(int index, SyncTarget target, IOException e, TaskListener targetListener) {
+                targetListener.getLogger().println("Could not read the schema: " + e.getMessage());
+                return null;
+            }
+        };
+        List<String> fingerprints = fanOut.run(targets, new FanOut.Task<SyncTarget, String>() {
+            public String run(int index, SyncTarget target, TaskListener targetListener) throws IOException, InterruptedException {
+                return fingerprint(target, targetListener);
+            }
+        });
+
+        Map<SyncTarget, String> schemas = new HashMap<SyncTarget, String>();
+        for (int i = 0; i < targets.size(); i++) {
+            if (fingerprints.get(i) != null)
+                schemas.put(targets.get(i), fingerprints.get(i));
+        }
+        return schemas;
+    }
+
+    // Null if the target's schema couldn't be read; that target is then always synced by sqlci. The catalog query is
+    // heavy, so it waits for a permit like sqlci does.
+    private String fingerprint(SyncTarget target, TaskListener targetListener) throws IOException, InterruptedException {
+        SqlCmd sqlCmd = sqlCmd(target);
+        ServerAdmission.Permit permit = sqlCmd.admit(targetListener);
+        try {
+            return workspace.act(new SchemaFingerprint(sqlCmd, target.getDbName(), TaskListener.NULL));
+        } finally {
+            permit.release();
+        }
+    }
+
+    private SqlCmd sqlCmd(SyncTarget target) {
+        return new SqlCmd(target.getServerName(), username, password);
+    }
+}
@@ -0,0 +1,65 @@
+package redgatesqlci;
+
+import hudson.AbortException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A database that a package is synced to.
+ */
+public class SyncTarget {
+    private final String serverName;
+    private final String dbName;
+
+    public SyncTarget(String serverName, String dbName) {
+        this.serverName = serverName;
+        this.dbName = dbName;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public String getDbName() {
+        return dbName;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SyncTarget))
+            return false;
+        SyncTarget other = (SyncTarget) o;
+        return serverName.equals(other.serverName) && dbName.equals(other.dbName);
+    }
+
+    @Override
+    public int hashCode() {
+        return serverName.hashCode() * 31 + dbName.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return serverName + "/" + dbName;
+    }
+
+    /**
+     * Reads one "server,database" target per line. Blank lines and lines starting with # are ignored.
+     *
+     * @param source where the list came from, for error messages.
+     */
+    public static List<SyncTarget> parse(String text, String source) throws AbortException {
+        List<SyncTarget> targets = new ArrayList<SyncTarget>();
+        String[] lines = text.split("\\r?\\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            int comma = line.indexOf(',');
+            if (comma <= 0 || comma == line.length() - 1)
+                throw new AbortException(source + " line " + (i + 1) + ": expected server,database but found \"" + line + "\".");
+            targets.add(new SyncTarget(line.substring(0, comma).trim(), line.substring(comma + 1).trim()));
+        }
+        return targets;
+    }
+}
@@ -0,0 +1,91 @@
+package redgatesqlci;
+
+import hudson.Util;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Shows how a package's sync to each of several targets went.
+ */
+public class SyncTargetsAction implements Action {
+
+    public static class Target {
+        private final String serverName;
+        private final String dbName;
+        private final String status;
+        private final long elapsedMillis;
+
+        Target(String serverName, String dbName, String status, long elapsedMillis) {
+            this.serverName = serverName;
+            this.dbName = dbName;
+            this.status = status;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public String getServerName() {
+            return serverName;
+        }
+
+        public String getDbName() {
+            return dbName;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getDuration() {
+            return elapsedMillis == 0 ? "" : Util.getTimeSpanString(elapsedMillis);
+        }
+    }
+
+    private final String packageid;
+    private final long elapsedMillis;
+    private final List<Target> targets;
+
+    public SyncTargetsAction(String packageid, List<SyncFanOut.TargetResult> results, long elapsedMillis) {
+        this.packageid = packageid;
+        this.elapsedMillis = elapsedMillis;
+        this.targets = new ArrayList<Target>();
+        for (SyncFanOut.TargetResult result : results) {
+            targets.add(new Target(result.getTarget().getServerName(), result.getTarget().getDbName(),
+                    result.getStatus().name(), result.getElapsedMillis()));
+        }
+    }
+
+    public String getPackageid() {
+        return packageid;
+    }
+
+    public String getDuration() {
+        return Util.getTimeSpanString(elapsedMillis);
+    }
+
+    public List<Target> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+
+    public int count(String status) {
+        int count = 0;
+        for (Target target : targets) {
+            if (target.getStatus().equals(status))
+                count++;
+        }
+        return count;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "SQL CI sync targets";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
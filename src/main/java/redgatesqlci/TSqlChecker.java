@@ -0,0 +1,205 @@
+package redgatesqlci;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * A quick structural check of a T-SQL script, for the mistakes that stop a whole BUILD: strings, comments and
+ * quoted identifiers that are never closed, unbalanced parentheses, and BEGIN or CASE blocks without an END.
+ * <p>
+ * This is a tokenizer rather than a parser, so it only reports what it is sure of. Brackets and blocks must balance
+ * within each batch, as SQL Server compiles every batch on its own.
+ */
+public class TSqlChecker {
+    // Bump whenever the checks change, so that cached results from older checks are thrown away.
+    public static final int VERSION = 1;
+
+    private static final int MAX_DIAGNOSTICS_PER_FILE = 10;
+
+    private static final Pattern BATCH_SEPARATOR = Pattern.compile("[ \\t]*GO(?:[ \\t]+\\d+)?[ \\t]*(?:--.*)?", Pattern.CASE_INSENSITIVE);
+
+    // BEGIN TRANSACTION and the like are statements, not blocks, and have no END.
+    private static final Set<String> BEGIN_STATEMENTS = new HashSet<String>(Arrays.asList(
+            "TRAN", "TRANSACTION", "DISTRIBUTED", "DIALOG", "CONVERSATION"));
+
+    private enum TokenType { WORD, OPEN, CLOSE, BATCH_END }
+
+    private static class Token {
+        final TokenType type;
+        final String text;
+        final int line;
+
+        Token(TokenType type, String text, int line) {
+            this.type = type;
+            this.text = text;
+            this.line = line;
+        }
+    }
+
+    private final String path;
+    private final String script;
+    private final List<ScriptDiagnostic> diagnostics = new ArrayList<ScriptDiagnostic>();
+
+    private TSqlChecker(String path, String script) {
+        this.path = path;
+        this.script = script;
+    }
+
+    public static List<ScriptDiagnostic> check(String path, String script) {
+        TSqlChecker checker = new TSqlChecker(path, script);
+        List<Token> tokens = checker.tokenize();
+        if (tokens != null)
+            checker.checkBatches(tokens);
+        return checker.diagnostics;
+    }
+
+    // Returns null, having reported it, if the script ends inside a string, comment or quoted identifier.
+    private List<Token> tokenize() {
+        List<Token> tokens = new ArrayList<Token>();
+        int line = 1;
+        int i = 0;
+        boolean lineStart = true;
+        while (i < script.length()) {
+            if (lineStart) {
+                lineStart = false;
+                int end = script.indexOf('\n', i);
+                String text = script.substring(i, end < 0 ? script.length() : end).replace("\r", "");
+                if (BATCH_SEPARATOR.matcher(text).matches()) {
+                    tokens.add(new Token(TokenType.BATCH_END, "GO", line));
+                    i += text.length();
+                    continue;
+                }
+            }
+
+            char c = script.charAt(i);
+            char next = i + 1 < script.length() ? script.charAt(i + 1) : '\0';
+            if (c == '\n') {
+                line++;
+                lineStart = true;
+                i++;
+            } else if (c == '-' && next == '-') {
+                int end = script.indexOf('\n', i);
+                i = end < 0 ? script.length() : end;
+            } else if (c == '/' && next == '*') {
+                // Block comments nest in T-SQL.
+                int startLine = line;
+                int depth = 0;
+                do {
+                    if (i >= script.length()) {
+                        report(startLine, "This comment is never closed with */.");
+                        return null;
+                    }
+                    if (script.startsWith("/*", i)) {
+                        depth++;
+                        i += 2;
+                    } else if (script.startsWith("*/", i)) {
+                        depth--;
+                        i += 2;
+                    } else {
+                        if (script.charAt(i) == '\n')
+                            line++;
+                        i++;
+                    }
+                } while (depth > 0);
+            } else if (c == '\'' || c == '[' || c == '"') {
+                char close = c == '[' ? ']' : c;
+                int startLine = line;
+                i++;
+                while (true) {
+                    if (i >= script.length()) {
+                        report(startLine, (c == '\'' ? "This string" : "This quoted identifier") + " is never closed with " + close + ".");
+                        return null;
+                    }
+                    char inside = script.charAt(i++);
+                    if (inside == '\n')
+                        line++;
+                    else if (inside == close) {
+                        // A doubled closing character stands for itself.
+                        if (i < script.length() && script.charAt(i) == close)
+                            i++;
+                        else
+                            break;
+                    }
+                }
+                // A quoted identifier can be a name part, but never a keyword.
+                if (c != '\'')
+                    tokens.add(new Token(TokenType.WORD, "", startLine));
+            } else if (c == '(') {
+                tokens.add(new Token(TokenType.OPEN, "(", line));
+                i++;
+            } else if (c == ')') {
+                tokens.add(new Token(TokenType.CLOSE, ")", line));
+                i++;
+            } else if (Character.isLetter(c) || c == '_' || c == '@' || c == '#') {
+                int start = i;
+                while (i < script.length() && isWordPart(script.charAt(i)))
+                    i++;
+                // Names after a dot, as in dbo.[End] or t.End, are never keywords.
+                boolean qualified = start > 0 && script.charAt(start - 1) == '.';
+                tokens.add(new Token(TokenType.WORD, qualified ? "" : script.substring(start, i).toUpperCase(Locale.ENGLISH), line));
+            } else {
+                i++;
+            }
+        }
+        tokens.add(new Token(TokenType.BATCH_END, "", line));
+        return tokens;
+    }
+
+    private static boolean isWordPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '@' || c == '#' || c == '$';
+    }
+
+    private void checkBatches(List<Token> tokens) {
+        Deque<Token> parentheses = new ArrayDeque<Token>();
+        Deque<Token> blocks = new ArrayDeque<Token>();
+        for (int i = 0; i < tokens.size(); i++) {
+            Token token = tokens.get(i);
+            Token next = i + 1 < tokens.size() ? tokens.get(i + 1) : null;
+            switch (token.type) {
+                case OPEN:
+                    parentheses.push(token);
+                    break;
+                case CLOSE:
+                    if (parentheses.isEmpty())
+                        report(token.line, "This ) has no matching (.");
+                    else
+                        parentheses.pop();
+                    break;
+                case WORD:
+                    if (token.text.equals("CASE")) {
+                        blocks.push(token);
+                    } else if (token.text.equals("BEGIN")) {
+                        if (next == null || next.type != TokenType.WORD || !BEGIN_STATEMENTS.contains(next.text))
+                            blocks.push(token);
+                    } else if (token.text.equals("END")) {
+                        if (next != null && next.type == TokenType.WORD && next.text.equals("CONVERSATION"))
+                            break;
+                        if (blocks.isEmpty())
+                            report(token.line, "This END has no matching BEGIN or CASE.");
+                        else
+                            blocks.pop();
+                    }
+                    break;
+                case BATCH_END:
+                    for (Token open : parentheses)
+                        report(open.line, "This ( is never closed" + batchEnd(token) + ".");
+                    for (Token open : blocks)
+                        report(open.line, "This " + open.text + " is never closed with an END" + batchEnd(token) + ".");
+                    parentheses.clear();
+                    blocks.clear();
+                    break;
+            }
+            if (diagnostics.size() >= MAX_DIAGNOSTICS_PER_FILE)
+                return;
+        }
+    }
+
+    private static String batchEnd(Token token) {
+        return token.text.equals("GO") ? " before the GO on line " + token.line : "";
+    }
+
+    private void report(int line, String message) {
+        if (diagnostics.size() < MAX_DIAGNOSTICS_PER_FILE)
+            diagnostics.add(new ScriptDiagnostic(path, line, message));
+    }
+}
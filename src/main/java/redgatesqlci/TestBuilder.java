@@ -5,21 +5,30 @@ import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.BuildListener;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.scm.ChangeLogSet;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import jenkins.tasks.SimpleBuildStep;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
 import javax.servlet.ServletException;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 
-public class TestBuilder extends Builder {
+public class TestBuilder extends Builder implements SimpleBuildStep {
 
     private final String packageid;
     public String getPackageid() { return packageid; }
@@ -37,6 +46,11 @@ public class TestBuilder extends Builder {
         return dbName;
     }
 
+    private final String poolName;
+    public String getPoolName() {
+        return poolName;
+    }
+
     private final String serverAuth;
     public String getServerAuth() {
         return serverAuth;
@@ -67,14 +81,45 @@ public class TestBuilder extends Builder {
         return runTestSet;
     }
 
+    private final int shardCount;
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    // With runAffected, every test is run at least once in this many builds. 0 means only when the changes require it.
+    private final int fullRunEvery;
+    public int getFullRunEvery() {
+        return fullRunEvery;
+    }
+
     private final String generateTestData;
     public String getGenerateTestData() { return generateTestData; }
 
     private final String sqlgenPath;
     public String getSqlgenPath() { return sqlgenPath; }
 
+    private final boolean cacheTestData;
+    public boolean getCacheTestData() { return cacheTestData; }
+
+    // Null unless the package is taken from an upstream build instead of this build.
+    private final String upstreamPackage;
+    public String getUpstreamPackage() {
+        return upstreamPackage;
+    }
+
+    private final String upstreamJob;
+    public String getUpstreamJob() {
+        return upstreamJob;
+    }
+
+    private final String upstreamBuild;
+    public String getUpstreamBuild() {
+        return upstreamBuild;
+    }
+
     @DataBoundConstructor
-    public TestBuilder(String packageid, Server tempServer, RunTestSet runTestSet, GenerateTestData generateTestData, String additionalParams) {
+    public TestBuilder(String packageid, Server tempServer, RunTestSet runTestSet, GenerateTestData generateTestData, String additionalParams,
+                       UpstreamPackage upstreamPackage) {
 
         this.packageid = packageid;
         this.tempServer = tempServer.getvalue();
@@ -98,49 +143,606 @@ public class TestBuilder extends Builder {
             this.password = "";
         }
 
+        if(this.tempServer.equals("pool"))
+            this.poolName = tempServer.getPoolName();
+        else
+            this.poolName = "";
+
         if(this.runTestSet.equals("runOnlyTest"))
             this.runOnlyParams = runTestSet.getRunOnlyParams();
         else
             this.runOnlyParams = "";
 
+        if(this.runTestSet.equals("runSharded") || this.runTestSet.equals("runAffected"))
+            this.shardCount = Math.max(1, runTestSet.getShardCount());
+        else
+            this.shardCount = 1;
+
+        if(this.runTestSet.equals("runAffected"))
+            this.fullRunEvery = Math.max(0, runTestSet.getFullRunEvery());
+        else
+            this.fullRunEvery = 0;
+
         if(this.generateTestData != null)
+        {
             this.sqlgenPath = generateTestData.getSqlgenPath();
+            this.cacheTestData = generateTestData.getCacheData();
+        }
         else
+        {
             this.sqlgenPath = "";
+            this.cacheTestData = false;
+        }
 
         this.additionalParams = additionalParams;
+
+        this.upstreamPackage = upstreamPackage == null ? null : "true";
+        if(this.upstreamPackage != null)
+        {
+            this.upstreamJob = upstreamPackage.getJobName();
+            this.upstreamBuild = upstreamPackage.getBuildNumber();
+        }
+        else
+        {
+            this.upstreamJob = "";
+            this.upstreamBuild = "";
+        }
     }
 
     @Override
-    public boolean perform(AbstractBuild build, Launcher launcher, BuildListener listener) {
+    public void perform(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener)
+            throws InterruptedException, IOException {
+        FilePath packageFile = packageFile(build, workspace, listener);
+        Utils.checkStepResult(runStep(build, workspace, launcher, listener, packageFile), "TEST");
+    }
+
+    // The package to test: this build's, or the one an upstream build kept in the package store.
+    private FilePath packageFile(Run<?, ?> build, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+        if (getUpstreamPackage() == null)
+            return workspace.child(Utils.constructPackageFileName(getPackageid(), build.getNumber()));
+        Run<?, ?> upstream = PackageHandoff.upstreamBuild(build, listener, getUpstreamJob(), getUpstreamBuild());
+        return PackageHandoff.fetch(build, upstream, workspace, listener, getPackageid());
+    }
+
+    private boolean runStep(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener, FilePath packageFile) {
+        if (getRunTestSet().equals("runSharded") || getRunTestSet().equals("runAffected")) {
+            try {
+                if (getRunTestSet().equals("runAffected"))
+                    return performAffected(build, workspace, launcher, listener, packageFile);
+                return performSharded(build, workspace, launcher, listener, packageFile, packageFile.act(new TestClassLister()));
+            } catch (IOException e) {
+                listener.error(e.getMessage());
+                return false;
+            } catch (InterruptedException e) {
+                listener.getLogger().println("InterruptedException");
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        return performSerial(build, workspace, launcher, listener, packageFile.getName(),
+                getRunTestSet().equals("runOnlyTest") ? getRunOnlyParams() : null);
+    }
+
+    // Runs the tests in a single sqlci TEST call: only runOnly, a test class or test, if it isn't null.
+    private boolean performSerial(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+                                  String packageFileName, String runOnly) {
         ArrayList<String> params = new ArrayList<String>();
 
-        String packageFileName = Utils.constructPackageFileName(getPackageid(), build.getNumber());
+        DatabaseLease lease = null;
+        try {
+            if (getTempServer().equals("pool"))
+                lease = DatabasePoolManager.get().lease(getPoolName(), build, launcher, listener);
+
+            // Only a pooled database is sure to start empty and still to exist after sqlci TEST, for the generated
+            // data to be saved from it.
+            String temporaryDatabase = lease != null ? lease.getDatabaseName() : getDbName();
+            SqlCmd sqlCmd = temporaryDatabaseSqlCmd(lease);
+            TestDataCache dataCache = null;
+            String dataKey = null;
+            if (getGenerateTestData() != null && getCacheTestData() && lease == null)
+                listener.getLogger().println("Generated test data is only cached with a pooled temporary database.");
+            if (getGenerateTestData() != null && getCacheTestData() && lease != null) {
+                dataCache = TestDataCache.forNode(workspace);
+                FilePath sqlgenFile = workspace.child(getSqlgenPath());
+                if (dataCache != null && sqlgenFile.exists()) {
+                    dataKey = TestDataCache.key(sqlgenFile, workspace.child(packageFileName));
+                    if (dataCache.contains(dataKey)) {
+                        Boolean success = runWithCachedData(build, workspace, launcher, listener, packageFileName,
+                                runOnly, lease, sqlCmd, dataCache, dataKey);
+                        if (success != null)
+                            return success;
+                        listener.getLogger().println("Could not use the cached test data. Generating it instead.");
+                    } else {
+                        listener.getLogger().println("No test data is cached for this package and SQL Data Generator project yet.");
+                    }
+                }
+            }
 
-        params.add("TEST");
-        params.add("/package=" + packageFileName);
+            params.add("TEST");
+            params.add("/package=" + packageFileName);
+            addTemporaryDatabaseParams(params, getDbName(), lease);
 
-        if (getTempServer().equals("sqlServer")) {
+            if (runOnly != null) {
+                params.add("/runOnly=" + runOnly);
+            }
+            addTestOptionParams(params, workspace);
+
+            long agentStartMillis = workspace.act(new TestResultReader.AgentClock());
+            boolean success = Utils.runSQLCIWithParams(build, workspace, launcher, listener, params);
+            recordTestResults(build, workspace, listener, agentStartMillis);
+
+            // Failing tests still leave the generated data behind, so it is worth keeping whenever the tests ran.
+            if (dataKey != null && (success || workspace.child(Utils.constructTestResultsFileName(getPackageid(), build.getNumber())).exists())) {
+                listener.getLogger().println("Saving the generated test data to the cache.");
+                ServerAdmission.Permit permit = sqlCmd.admit(listener);
+                try {
+                    if (!dataCache.save(dataKey, launcher, listener, sqlCmd, temporaryDatabase, getDescriptor().getMaxTestDataCacheMb() * 1024L * 1024L))
+                        listener.getLogger().println("Could not save the generated test data.");
+                } finally {
+                    permit.release();
+                }
+            }
+            return success;
+        } catch (IOException e) {
+            listener.error(e.getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            listener.getLogger().println("InterruptedException");
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (lease != null)
+                releaseQuietly(lease, launcher, listener);
+        }
+    }
+
+    // Deploys the package into the pooled database with SYNC, loads the cached test data and runs tSQLt directly, as
+    // sqlci TEST gives no way to load data between deploying the package and running the tests. Returns null, before
+    // any test has run, if the cached data couldn't be used.
+    private Boolean runWithCachedData(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+                                      String packageFileName, String runOnly, DatabaseLease lease, SqlCmd sqlCmd,
+                                      TestDataCache dataCache, String dataKey) throws IOException, InterruptedException {
+        String database = lease.getDatabaseName();
+
+        // Loading on top of rows already there would clash with them, so the database must be empty.
+        ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        ServerAdmission.Permit permit = sqlCmd.admit(listener);
+        try {
+            if (!sqlCmd.query(launcher, database, "SET NOCOUNT ON; SELECT COUNT(*) FROM sys.tables WHERE is_ms_shipped = 0", tables))
+                return null;
+        } finally {
+            permit.release();
+        }
+        if (!tables.toString("UTF-8").trim().equals("0")) {
+            listener.getLogger().println("Pooled database " + database + " isn't empty, so the cached test data can't be loaded into it.");
+            return null;
+        }
+
+        if (!deployForTsqlt(build, workspace, launcher, listener, packageFileName, database, lease, sqlCmd))
+            return null;
+
+        boolean success;
+        permit = sqlCmd.admit(listener);
+        try {
+            if (!dataCache.load(dataKey, launcher, listener, sqlCmd, database))
+                return null;
+            listener.getLogger().println("Loaded the cached test data instead of running SQL Data Generator.");
+
+            String run = runOnly != null ? "EXEC tSQLt.Run " + SqlCmd.quoteString(runOnly) : "EXEC tSQLt.RunAll";
+            success = sqlCmd.run(launcher, listener, database, run);
+
+            ByteArrayOutputStream report = new ByteArrayOutputStream();
+            if (sqlCmd.query(launcher, database, "SET NOCOUNT ON; EXEC tSQLt.XmlResultFormatter", report))
+                workspace.child(Utils.constructTestResultsFileName(getPackageid(), build.getNumber())).write(report.toString("UTF-8").trim(), "UTF-8");
+        } finally {
+            permit.release();
+        }
+        recordTestResults(build, workspace, listener, Long.MAX_VALUE);
+        return success;
+    }
+
+    // Deploys the package into an existing database with SYNC, so that tSQLt can be run in it with sqlcmd.
+    // Returns false if the package couldn't be deployed or has no tSQLt in it.
+    private boolean deployForTsqlt(Run<?, ?> build, FilePath directory, Launcher launcher, TaskListener listener,
+                                   String packagePath, String database, DatabaseLease lease, SqlCmd sqlCmd)
+            throws IOException, InterruptedException {
+        ArrayList<String> params = new ArrayList<String>();
+        params.add("SYNC");
+        params.add("/package=" + packagePath);
+        addTargetDatabaseParams(params, database, lease);
+        if (!getAdditionalParams().isEmpty())
+            params.add("/additionalCompareArgs=\"" + getAdditionalParams() + "\"");
+        if (!Utils.runSQLCIWithParams(build, directory, launcher, listener, params))
+            return false;
+
+        ByteArrayOutputStream installed = new ByteArrayOutputStream();
+        boolean queried;
+        ServerAdmission.Permit permit = sqlCmd.admit(listener);
+        try {
+            queried = sqlCmd.query(launcher, database, "SET NOCOUNT ON; SELECT CASE WHEN OBJECT_ID('tSQLt.RunAll') IS NULL THEN 0 ELSE 1 END", installed);
+        } finally {
+            permit.release();
+        }
+        if (!queried || !installed.toString("UTF-8").trim().equals("1")) {
+            listener.getLogger().println("tSQLt isn't in the package, so its tests can't be run directly.");
+            return false;
+        }
+        return true;
+    }
+
+    // Runs only the test classes that the build's changes can affect. Every test is run instead when that can't be
+    // worked out, and at least once every fullRunEvery builds as a safety net.
+    private boolean performAffected(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener,
+                                    FilePath packageFile) throws IOException, InterruptedException {
+        List<String> testClasses = packageFile.act(new TestClassLister());
+        List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets = changeSets(build);
+        String fullRunReason = fullRunReason(build, changeSets);
+        TestImpactAnalyzer.Result impact = null;
+        if (fullRunReason == null) {
+            impact = packageFile.act(new TestImpactAnalyzer(changedPaths(changeSets), testClasses));
+            fullRunReason = impact.getFullRunReason();
+        }
+
+        // Without a database to deploy into once, each affected class would redeploy the package in its own sqlci
+        // call, and when most classes are affected the saving isn't worth the extra deployments either.
+        List<String> affected = impact == null ? null : impact.getAffectedClasses();
+        if (fullRunReason == null && affected.size() > 1 && !canDeployOnce())
+            fullRunReason = "each affected test class would need the package deployed again";
+        if (fullRunReason == null && getShardCount() == 1 && affected.size() * 2 > testClasses.size())
+            fullRunReason = "most test classes are affected";
+
+        if (fullRunReason != null) {
+            listener.getLogger().println("Running every test, because " + fullRunReason + ".");
+            build.addAction(TestSelectionAction.fullRun(getPackageid(), fullRunReason, testClasses.size()));
+            if (getShardCount() > 1 && canDeployOnce())
+                return performSharded(build, workspace, launcher, listener, packageFile, testClasses);
+            return performSerial(build, workspace, launcher, listener, packageFile.getName(), null);
+        }
+
+        build.addAction(TestSelectionAction.affected(getPackageid(), testClasses.size(), impact));
+        listener.getLogger().println("The changes affect " + affected.size() + " of " + testClasses.size() + " test classes.");
+        if (affected.isEmpty())
+            return true;
+        if (!canDeployOnce())
+            return performSerial(build, workspace, launcher, listener, packageFile.getName(), SqlCmd.quoteName(affected.get(0)));
+        return performSharded(build, workspace, launcher, listener, packageFile, affected);
+    }
+
+    // Whether each shard can deploy the package once and run its classes with tSQLt, rather than deploy it for every
+    // class with sqlci. LocalDB can only be reached by sqlci, and generated test data needs sqlci TEST.
+    private boolean canDeployOnce() {
+        return (getTempServer().equals("pool") || getTempServer().equals("sqlServer")) && getGenerateTestData() == null;
+    }
+
+    // Why every test must run rather than only the affected ones, or null if the affected ones are enough.
+    private String fullRunReason(Run<?, ?> build, List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets) {
+        if (changeSets == null)
+            return "this kind of build has no list of changes";
+        boolean changed = false;
+        for (ChangeLogSet<? extends ChangeLogSet.Entry> changeSet : changeSets)
+            changed |= !changeSet.isEmptySet();
+        if (!changed)
+            return "the build has no changes";
+
+        Run<?, ?> previous = build.getPreviousBuild();
+        if (previous == null)
+            return "this is the job's first build";
+        if (previous.getResult() == null || previous.getResult().isWorseThan(Result.SUCCESS))
+            return "the previous build didn't succeed";
+
+        if (getFullRunEvery() > 0) {
+            Run<?, ?> earlier = previous;
+            for (int i = 1; i < getFullRunEvery() && earlier != null; i++, earlier = earlier.getPreviousBuild()) {
+                TestSelectionAction selection = TestSelectionAction.forPackage(earlier, getPackageid());
+                if (selection != null && selection.isFullRun())
+                    return null;
+            }
+            return "every test is run at least once every " + getFullRunEvery() + " builds";
+        }
+        return null;
+    }
+
+    // The build's changes, or null if it has no list of them. Pipeline runs aren't AbstractBuilds, but have
+    // getChangeSets(), which is looked up by name so that this plugin doesn't depend on Pipeline.
+    @SuppressWarnings("unchecked")
+    private static List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets(Run<?, ?> build) {
+        if (build instanceof AbstractBuild) {
+            return Collections.<ChangeLogSet<? extends ChangeLogSet.Entry>>singletonList(
+                    ((AbstractBuild<?, ?>) build).getChangeSet());
+        }
+        try {
+            Object changeSets = build.getClass().getMethod("getChangeSets").invoke(build);
+            return changeSets instanceof List ? (List<ChangeLogSet<? extends ChangeLogSet.Entry>>) changeSets : null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            return null;
+        }
+    }
+
+    private static List<String> changedPaths(List<ChangeLogSet<? extends ChangeLogSet.Entry>> changeSets) {
+        List<String> paths = new ArrayList<String>();
+        for (ChangeLogSet<? extends ChangeLogSet.Entry> changeSet : changeSets) {
+            for (ChangeLogSet.Entry entry : changeSet)
+                paths.addAll(entry.getAffectedPaths());
+        }
+        return paths;
+    }
+
+    // Spreads the test classes across several shards that run at once. Shards are balanced using how long each class
+    // took in earlier builds. Each shard gets its own temporary database and working directory, and the JUnit reports
+    // of every class are merged into one.
+    private boolean performSharded(final Run<?, ?> build, final FilePath workspace, final Launcher launcher, TaskListener listener,
+                                   final FilePath packageFile, List<String> testClasses) throws IOException, InterruptedException {
+        if (testClasses.isEmpty()) {
+            listener.getLogger().println("No tSQLt test classes were found in " + packageFile.getName() + ".");
+            return true;
+        }
+
+        TestDurationHistory history = TestDurationHistory.load(build.getParent());
+        int unknownClassCount = 0;
+        for (String testClass : testClasses) {
+            if (!history.isKnown(testClass))
+                unknownClassCount++;
+        }
+        int maxParallel = getDescriptor().getMaxParallelShards();
+
+        FilePath shardsRoot = workspace.child(".redgatesqlci").child("test-shards");
+        TestShardRunner runner = new TestShardRunner(shardsRoot, listener, maxParallel);
+        final List<DatabaseLease> leases = new ArrayList<DatabaseLease>();
+        TestShardPlan plan;
+        List<TestShardRunner.ShardResult> results;
+        try {
+            // The pool may not have a database for every shard, so there are only as many shards as databases leased.
+            int shardCount = getShardCount();
+            if (getTempServer().equals("pool")) {
+                leases.addAll(DatabasePoolManager.get().lease(getPoolName(), Math.min(shardCount, testClasses.size()),
+                        build, launcher, listener));
+                shardCount = leases.size();
+            }
+
+            plan = TestShardPlan.longestProcessingTimeFirst(testClasses, shardCount, history);
+            listener.getLogger().println("Running " + testClasses.size() + " test classes in " + plan.getShards().size()
+                    + " shards, at most " + maxParallel + " at a time.");
+            results = runner.run(plan, new TestShardRunner.ShardCommand() {
+                public boolean run(int shard, List<String> testClasses, FilePath directory, TaskListener shardListener)
+                        throws IOException, InterruptedException {
+                    return runShard(build, workspace, launcher, shardListener, packageFile, shard, testClasses, directory,
+                            leases.isEmpty() ? null : leases.get(shard));
+                }
+            });
+        } finally {
+            for (DatabaseLease lease : leases)
+                releaseQuietly(lease, launcher, listener);
+        }
+
+        boolean success = true;
+        List<String> reportDirectories = new ArrayList<String>();
+        for (TestShardRunner.ShardResult result : results) {
+            success &= result.isSuccess();
+            reportDirectories.add(TestShardRunner.shardDirectory(shardsRoot, result.getShard()).getRemote());
+        }
+
+        FilePath mergedReport = workspace.child(Utils.constructTestResultsFileName(getPackageid(), build.getNumber()));
+        int merged = mergedReport.act(new TestResultMerger(reportDirectories));
+        listener.getLogger().println("Merged " + merged + " test reports into " + mergedReport.getName() + ".");
+        TestResultReader.Summary summary = recordTestResults(build, workspace, listener, Long.MAX_VALUE);
+
+        TestShardAction shardAction = new TestShardAction(getPackageid(), plan, results,
+                summary == null ? Collections.<String, Long>emptyMap() : summary.getClassMillis(), unknownClassCount);
+        build.addAction(shardAction);
+        listener.getLogger().println("Predicted test time was " + shardAction.getPredictedMakespan() + ", and the tests took "
+                + shardAction.getActualMakespan() + ".");
+        return success;
+    }
+
+    // Deploys the package once into the shard's database and runs each class there with tSQLt, when the database can
+    // be reached and no test data has to be generated. Otherwise each class gets its own sqlci TEST call, which
+    // deploys the package into a new temporary database every time.
+    private boolean runShard(Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener, FilePath packageFile,
+                             int shard, List<String> testClasses, FilePath directory, DatabaseLease lease)
+            throws IOException, InterruptedException {
+        SqlCmd sqlCmd = temporaryDatabaseSqlCmd(lease);
+        if (sqlCmd != null && getGenerateTestData() == null) {
+            Boolean success = runShardInOneDatabase(build, launcher, listener, packageFile, shard, testClasses, directory,
+                    lease, sqlCmd);
+            if (success != null)
+                return success;
+            listener.getLogger().println("Could not deploy the package once for the whole shard. Running each test class with sqlci instead.");
+        }
+
+        boolean success = true;
+        for (int i = 0; i < testClasses.size(); i++) {
+            String testClass = testClasses.get(i);
+            // sqlci names its report after the package, so every class needs a directory of its own.
+            FilePath classDirectory = directory.child("class-" + (i + 1));
+            classDirectory.mkdirs();
+
+            ArrayList<String> params = new ArrayList<String>();
+            params.add("TEST");
+            params.add("/package=" + packageFile.getRemote());
+            addTemporaryDatabaseParams(params, shardDatabaseName(build, shard), lease);
+            params.add("/runOnly=" + SqlCmd.quoteName(testClass));
+            addTestOptionParams(params, workspace);
+
+            listener.getLogger().println("Running test class " + testClass);
+            if (!Utils.runSQLCIWithParams(build, classDirectory, launcher, listener, params))
+                success = false;
+            if (Thread.interrupted())
+                throw new InterruptedException();
+        }
+        return success;
+    }
+
+    // Returns null, before any test has run, if the package couldn't be deployed.
+    private Boolean runShardInOneDatabase(Run<?, ?> build, Launcher launcher, TaskListener listener, FilePath packageFile,
+                                          int shard, List<String> testClasses, FilePath directory, DatabaseLease lease,
+                                          SqlCmd sqlCmd) throws IOException, InterruptedException {
+        String database = lease != null ? lease.getDatabaseName() : shardDatabaseName(build, shard);
+        boolean created = false;
+        try {
+            if (lease == null) {
+                ServerAdmission.Permit permit = sqlCmd.admit(listener);
+                try {
+                    if (!sqlCmd.run(launcher, listener, "CREATE DATABASE " + SqlCmd.quoteName(database)))
+                        return null;
+                    created = true;
+                } finally {
+                    permit.release();
+                }
+            }
+            if (!deployForTsqlt(build, directory, launcher, listener, packageFile.getRemote(), database, lease, sqlCmd))
+                return null;
+
+            // tSQLt.Run rolls back what each class did, so the classes don't see each other's data. Each class waits
+            // for a permit of its own, so that shards of other builds can take turns on the server.
+            boolean success = true;
+            for (int i = 0; i < testClasses.size(); i++) {
+                String testClass = testClasses.get(i);
+                listener.getLogger().println("Running test class " + testClass);
+                ServerAdmission.Permit permit = sqlCmd.admit(listener);
+                try {
+                    if (!sqlCmd.run(launcher, listener, database, "EXEC tSQLt.Run " + SqlCmd.quoteString(SqlCmd.quoteName(testClass))))
+                        success = false;
+
+                    ByteArrayOutputStream report = new ByteArrayOutputStream();
+                    if (sqlCmd.query(launcher, database, "SET NOCOUNT ON; EXEC tSQLt.XmlResultFormatter", report))
+                        directory.child("class-" + (i + 1) + ".junit.xml").write(report.toString("UTF-8").trim(), "UTF-8");
+                    else
+                        success = false;
+                } finally {
+                    permit.release();
+                }
+            }
+            return success;
+        } finally {
+            if (created)
+                dropShardDatabase(sqlCmd, database, launcher, listener);
+        }
+    }
+
+    private static void dropShardDatabase(SqlCmd sqlCmd, String database, Launcher launcher, TaskListener listener)
+            throws IOException, InterruptedException {
+        ServerAdmission.Permit permit = sqlCmd.admit(listener);
+        try {
+            if (!sqlCmd.run(launcher, listener, "ALTER DATABASE " + SqlCmd.quoteName(database)
+                    + " SET SINGLE_USER WITH ROLLBACK IMMEDIATE; DROP DATABASE " + SqlCmd.quoteName(database)))
+                listener.getLogger().println("Could not drop temporary database " + database + ".");
+        } finally {
+            permit.release();
+        }
+    }
+
+    // Reads the JUnit report on the agent, attaches a summary of it and adds its class durations to the job's
+    // history for shard balancing. Only reports written at or after agentStartMillis are read if the report isn't
+    // where it's expected. Every test's record is written on the agent and streamed into the build's directory, so
+    // only the summary is held on the controller. Returns null if there were no results.
+    private TestResultReader.Summary recordTestResults(Run<?, ?> build, FilePath workspace, TaskListener listener, long agentStartMillis) {
+        FilePath records = null;
+        try {
+            String reportName = Utils.constructTestResultsFileName(getPackageid(), build.getNumber());
+            FilePath scratch = workspace.child(".redgatesqlci");
+            scratch.mkdirs();
+            records = scratch.createTempFile("tests-", ".tsv");
+            TestResultReader.Summary summary = workspace.act(new TestResultReader(reportName, agentStartMillis, records.getRemote()));
+            if (summary.getTotal() == 0) {
+                listener.getLogger().println("No tSQLt test results were found.");
+                return null;
+            }
+            TestDurationHistory.record(build.getParent(), summary.getClassMillis());
+            SqlCiTestResultAction action = SqlCiTestResultAction.record(build, getPackageid(), summary, records);
+            listener.getLogger().println("tSQLt results: " + action.getTotal() + " run, " + action.getFailed() + " failed, "
+                    + action.getSkipped() + " skipped.");
+            return summary;
+        } catch (IOException e) {
+            listener.getLogger().println("Could not read tSQLt test results: " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            if (records != null) {
+                try {
+                    records.delete();
+                } catch (IOException e) {
+                    listener.getLogger().println("Could not delete " + records.getRemote() + ": " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    // Shards must not share a temporary database, and neither must concurrent builds of this job.
+    private String shardDatabaseName(Run<?, ?> build, int shard) {
+        String baseName = getDbName().isEmpty() ? getPackageid() : getDbName();
+        return baseName + "_" + build.getNumber() + "_shard" + (shard + 1);
+    }
+
+    private void addTemporaryDatabaseParams(List<String> params, String temporaryDatabaseName, DatabaseLease lease) {
+        if (lease != null) {
+            lease.addTemporaryDatabaseParams(params);
+        } else if (getTempServer().equals("sqlServer")) {
             params.add("/temporaryDatabaseServer=" + getServerName());
-            params.add("/temporaryDatabaseName=" + getDbName());
+            params.add("/temporaryDatabaseName=" + temporaryDatabaseName);
 
             if (getServerAuth().equals("sqlServerAuth")) {
                 params.add("/temporaryDatabaseUserName=" + getUsername());
                 params.add("/temporaryDatabasePassword=" + getPassword());
             }
         }
+    }
+
+    private void addTargetDatabaseParams(List<String> params, String database, DatabaseLease lease) {
+        if (lease != null) {
+            params.add("/databaseServer=" + lease.getPool().getServerName());
+            params.add("/databaseName=" + database);
+            if (lease.getPool().usesSqlServerAuth()) {
+                params.add("/databaseUserName=" + lease.getPool().getUsername());
+                params.add("/databasePassword=" + lease.getPool().getPassword());
+            }
+        } else {
+            params.add("/databaseServer=" + getServerName());
+            params.add("/databaseName=" + database);
+            if (getServerAuth().equals("sqlServerAuth")) {
+                params.add("/databaseUserName=" + getUsername());
+                params.add("/databasePassword=" + getPassword());
+            }
+        }
+    }
 
-        if (getRunTestSet().equals("runOnlyTest")) {
-            params.add("/runOnly=" + getRunOnlyParams());
+    // Null for LocalDB, which only SQL CI itself can reach.
+    private SqlCmd temporaryDatabaseSqlCmd(DatabaseLease lease) {
+        if (lease != null)
+            return new SqlCmd(lease.getPool().getServerName(), lease.getPool().getUsername(), lease.getPool().getPassword());
+        if (getTempServer().equals("sqlServer")) {
+            if (getServerAuth().equals("sqlServerAuth"))
+                return new SqlCmd(getServerName(), getUsername(), getPassword());
+            return new SqlCmd(getServerName(), null, null);
         }
+        return null;
+    }
+
+    private static void releaseQuietly(DatabaseLease lease, Launcher launcher, TaskListener listener) {
+        try {
+            DatabasePoolManager.get().release(lease, launcher, listener);
+        } catch (InterruptedException e) {
+            // The pool maintenance task will reclaim the database.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // The generator project is given in full, as shards run sqlci outside the workspace.
+    private void addTestOptionParams(List<String> params, FilePath workspace) {
         if (getGenerateTestData() != null) {
-            params.add("/sqlDataGenerator=\"" + getSqlgenPath() + "\"");
+            params.add("/sqlDataGenerator=\"" + workspace.child(getSqlgenPath()).getRemote() + "\"");
         }
 
         if (!getAdditionalParams().isEmpty())
             params.add("/additionalCompareArgs=\"" + getAdditionalParams() + "\"");
-
-        return Utils.runSQLCIWithParams(build, launcher, listener, params);
     }
 
 
@@ -166,12 +768,56 @@ public class TestBuilder extends Builder {
             load();
         }
 
+        private int maxParallelShards = 4;
+        public int getMaxParallelShards() {
+            return maxParallelShards;
+        }
+
+        private int maxTestDataCacheMb = 2048;
+        public int getMaxTestDataCacheMb() {
+            return maxTestDataCacheMb;
+        }
+
+        public FormValidation doCheckMaxTestDataCacheMb(@QueryParameter String value) throws IOException, ServletException {
+            try {
+                if (Integer.parseInt(value) < 0)
+                    return FormValidation.error("Enter 0 or more megabytes.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Enter a whole number of megabytes.");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckShardCount(@QueryParameter String value) throws IOException, ServletException {
+            try {
+                if (Integer.parseInt(value) < 1)
+                    return FormValidation.error("Enter at least 1 shard.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Enter a whole number of shards.");
+            }
+            return FormValidation.ok();
+        }
+
+        public FormValidation doCheckFullRunEvery(@QueryParameter String value) throws IOException, ServletException {
+            try {
+                if (Integer.parseInt(value) < 0)
+                    return FormValidation.error("Enter 0 or more builds.");
+            } catch (NumberFormatException e) {
+                return FormValidation.error("Enter a whole number of builds.");
+            }
+            return FormValidation.ok();
+        }
+
         public FormValidation doCheckPackageid(@QueryParameter String packageid) throws IOException, ServletException {
             if (packageid.length() == 0)
                 return FormValidation.error("Enter a package ID");
             return FormValidation.ok();
         }
 
+        public ListBoxModel doFillPoolNameItems() {
+            return SqlCiGlobalConfiguration.get().poolNameItems();
+        }
+
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
             // Indicates that this builder can be used with all kinds of project types
             return true;
@@ -188,6 +834,8 @@ public class TestBuilder extends Builder {
         public boolean configure(StaplerRequest req, JSONObject formData) throws FormException {
             // To persist global configuration information,
             // set that to properties and call save().
+            maxParallelShards = Math.max(1, formData.optInt("maxParallelShards", 4));
+            maxTestDataCacheMb = Math.max(0, formData.optInt("maxTestDataCacheMb", 2048));
             save();
             return super.configure(req,formData);
         }
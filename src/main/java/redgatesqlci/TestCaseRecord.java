@@ -0,0 +1,97 @@
+package redgatesqlci;
+
+import java.io.Serializable;
+
+/**
+ * One tSQLt test's outcome, as small as possible so that large suites' records stay small on disk.
+ */
+public class TestCaseRecord implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Status { PASSED, FAILED, ERROR, SKIPPED }
+
+    // Failure messages are cut to this many characters; the full text stays in the JUnit report.
+    public static final int MAX_MESSAGE_LENGTH = 1000;
+
+    private final String className;
+    private final String name;
+    private final long durationMillis;
+    private final Status status;
+    private final String message;
+
+    public TestCaseRecord(String className, String name, long durationMillis, Status status, String message) {
+        this.className = className;
+        this.name = name;
+        this.durationMillis = durationMillis;
+        this.status = status;
+        this.message = message == null ? "" : truncate(message.trim());
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isPassed() {
+        return status == Status.PASSED;
+    }
+
+    /**
+     * The record as one tab-separated line, without the line break.
+     */
+    public String toLine() {
+        return status + "\t" + escape(className) + "\t" + escape(name) + "\t" + durationMillis + "\t" + escape(message);
+    }
+
+    /**
+     * @return the record a line written by {@link #toLine()} holds, or null if the line is damaged.
+     */
+    public static TestCaseRecord fromLine(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 5)
+            return null;
+        try {
+            return new TestCaseRecord(unescape(fields[1]), unescape(fields[2]), Long.parseLong(fields[3]),
+                    Status.valueOf(fields[0]), unescape(fields[4]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\r", "").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    static String truncate(String message) {
+        return message.length() <= MAX_MESSAGE_LENGTH ? message : message.substring(0, MAX_MESSAGE_LENGTH) + "...";
+    }
+}
@@ -0,0 +1,70 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Lists the tSQLt test classes in a package, by reading the schema scripts inside it on the agent.
+ */
+public class TestClassLister implements FilePath.FileCallable<List<String>> {
+    private static final long serialVersionUID = 1L;
+
+    // tSQLt marks a test class schema with this extended property; SQL Source Control scripts it with the schema.
+    private static final Pattern TEST_CLASS_PROPERTY = Pattern.compile(
+            "sp_addextendedproperty\\s+(?:@name\\s*=\\s*)?N?'tSQLt\\.TestClass'.*?'SCHEMA'\\s*,\\s*(?:@level0name\\s*=\\s*)?N?'([^']+)'",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private static final Pattern NEW_TEST_CLASS = Pattern.compile(
+            "tSQLt\\.NewTestClass\\s+(?:@ClassName\\s*=\\s*)?N?'([^']+)'",
+            Pattern.CASE_INSENSITIVE);
+
+    public List<String> invoke(File packageFile, VirtualChannel channel) throws IOException, InterruptedException {
+        TreeSet<String> testClasses = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+
+        ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(packageFile)));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                if (entry.isDirectory() || !entry.getName().toLowerCase().endsWith(".sql"))
+                    continue;
+                String script = readScript(in);
+                addMatches(TEST_CLASS_PROPERTY, script, testClasses);
+                addMatches(NEW_TEST_CLASS, script, testClasses);
+            }
+        } finally {
+            in.close();
+        }
+        return new ArrayList<String>(testClasses);
+    }
+
+    private static void addMatches(Pattern pattern, String script, TreeSet<String> testClasses) {
+        Matcher matcher = pattern.matcher(script);
+        while (matcher.find())
+            testClasses.add(matcher.group(1));
+    }
+
+    static String readScript(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            bytes.write(buffer, 0, read);
+        return decode(bytes.toByteArray());
+    }
+
+    // SQL Server Management Studio saves scripts as UTF-16 with a byte order mark; everything else is UTF-8.
+    static String decode(byte[] script) throws UnsupportedEncodingException {
+        if (script.length >= 2 && (script[0] == (byte) 0xFF && script[1] == (byte) 0xFE || script[0] == (byte) 0xFE && script[1] == (byte) 0xFF))
+            return new String(script, "UTF-16");
+        return new String(script, "UTF-8");
+    }
+}
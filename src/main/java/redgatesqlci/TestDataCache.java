@@ -0,0 +1,195 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Per-node store of the test data SQL Data Generator produced for a package, as one bcp native-format file per
+ * table, so that later test runs can bulk-load it instead of generating it again.
+ * <p>
+ * Entries are keyed by the generator project and the package's scripts. An entry is only used once its marker file
+ * has been written, and the marker's modification time records when it was last used, for least recently used
+ * eviction.
+ */
+public class TestDataCache {
+    private static final String TABLES_FILE = "tables.txt";
+    private static final String COMPLETE_MARKER = "complete";
+
+    // User tables, leaving out tSQLt's own.
+    private static final String TABLES_SQL = "SET NOCOUNT ON; SELECT s.name + CHAR(9) + t.name FROM sys.tables t"
+            + " JOIN sys.schemas s ON s.schema_id = t.schema_id WHERE t.is_ms_shipped = 0 AND s.name <> 'tSQLt' ORDER BY 1";
+
+    private final FilePath root;
+
+    private TestDataCache(FilePath root) {
+        this.root = root;
+    }
+
+    /**
+     * The cache on the node that holds {@code workspace}, or null if the node can't be found.
+     */
+    public static TestDataCache forNode(FilePath workspace) {
+        Computer computer = workspace.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        FilePath nodeRoot = node == null ? null : node.getRootPath();
+        return nodeRoot == null ? null : new TestDataCache(nodeRoot.child("redgatesqlci-data-cache"));
+    }
+
+    /**
+     * Everything that determines the generated data: the generator project, and the scripts in the package, which
+     * leave out its version.
+     */
+    public static String key(FilePath sqlgenFile, FilePath packageFile) throws IOException, InterruptedException {
+        return Util.getDigestOf(sqlgenFile.digest() + "\n" + packageFile.act(new PackageContentHash(true)));
+    }
+
+    /**
+     * Whether data is cached for {@code key}. Counts as a use for eviction.
+     */
+    public boolean contains(String key) throws IOException, InterruptedException {
+        FilePath marker = root.child(key).child(COMPLETE_MARKER);
+        if (!marker.exists())
+            return false;
+        marker.touch(System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Bulk-loads the cached data into every table it has rows for. The caller holds a {@link ServerAdmission} permit
+     * for the server.
+     *
+     * @return false if any table couldn't be loaded.
+     */
+    public boolean load(String key, Launcher launcher, TaskListener listener, SqlCmd sqlCmd, String database)
+            throws IOException, InterruptedException {
+        FilePath entry = root.child(key);
+        String[] tables = entry.child(TABLES_FILE).readToString().split("\n");
+        for (int i = 0; i < tables.length; i++) {
+            if (tables[i].isEmpty())
+                continue;
+            if (!sqlCmd.bulkCopy(launcher, listener, database, tables[i], false, entry.child(i + ".bcp").getRemote()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Copies every user table in {@code database} into the cache, then evicts entries until the cache fits in
+     * {@code maxBytes}. The new entry is always kept, even if it is larger than the limit on its own. The caller
+     * holds a {@link ServerAdmission} permit for the server.
+     *
+     * @return false if the data couldn't be saved.
+     */
+    public boolean save(String key, Launcher launcher, TaskListener listener, SqlCmd sqlCmd, String database, long maxBytes)
+            throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!sqlCmd.query(launcher, database, TABLES_SQL, out))
+            return false;
+        List<String> tables = new ArrayList<String>();
+        for (String line : out.toString("UTF-8").split("\r?\n")) {
+            String[] names = line.trim().split("\t");
+            if (names.length == 2)
+                tables.add(SqlCmd.quoteName(names[0].trim()) + "." + SqlCmd.quoteName(names[1].trim()));
+        }
+        if (tables.isEmpty())
+            return false;
+
+        // Write to a scratch directory of this save's own and only then move it into place, so a half-written entry
+        // is never used and concurrent saves of the same data don't delete each other's files.
+        FilePath scratch = root.child(key + "-" + UUID.randomUUID() + ".tmp");
+        scratch.mkdirs();
+        StringBuilder tableList = new StringBuilder();
+        for (int i = 0; i < tables.size(); i++) {
+            if (!sqlCmd.bulkCopy(launcher, listener, database, tables.get(i), true, scratch.child(i + ".bcp").getRemote())) {
+                scratch.deleteRecursive();
+                return false;
+            }
+            tableList.append(tables.get(i)).append('\n');
+        }
+        scratch.child(TABLES_FILE).write(tableList.toString(), "UTF-8");
+
+        FilePath entry = root.child(key);
+        if (entry.child(COMPLETE_MARKER).exists()) {
+            // Another build saved the same data first.
+            scratch.deleteRecursive();
+        } else {
+            entry.deleteRecursive();
+            scratch.renameTo(entry);
+            entry.child(COMPLETE_MARKER).write("", "UTF-8");
+        }
+
+        root.act(new Evict(maxBytes, key));
+        return true;
+    }
+
+    /**
+     * Deletes the least recently used entries, and any scratch directories left behind, on the agent.
+     */
+    private static class Evict implements FilePath.FileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final long maxBytes;
+        private final String keep;
+
+        Evict(long maxBytes, String keep) {
+            this.maxBytes = maxBytes;
+            this.keep = keep;
+        }
+
+        public Void invoke(File root, VirtualChannel channel) throws IOException, InterruptedException {
+            File[] entries = root.listFiles();
+            if (entries == null)
+                return null;
+
+            final Map<File, Long> lastUsed = new HashMap<File, Long>();
+            long totalBytes = 0;
+            List<File> complete = new ArrayList<File>();
+            for (File entry : entries) {
+                File marker = new File(entry, COMPLETE_MARKER);
+                if (!marker.isFile()) {
+                    // Scratch directories of saves still running are recent; older ones were abandoned.
+                    if (entry.lastModified() < System.currentTimeMillis() - 24 * 60 * 60 * 1000L)
+                        Util.deleteRecursive(entry);
+                    continue;
+                }
+                lastUsed.put(entry, marker.lastModified());
+                totalBytes += size(entry);
+                complete.add(entry);
+            }
+
+            Collections.sort(complete, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    long difference = lastUsed.get(a) - lastUsed.get(b);
+                    return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+                }
+            });
+            for (File entry : complete) {
+                if (totalBytes <= maxBytes)
+                    break;
+                if (entry.getName().equals(keep))
+                    continue;
+                totalBytes -= size(entry);
+                Util.deleteRecursive(entry);
+            }
+            return null;
+        }
+
+        private static long size(File entry) {
+            long bytes = 0;
+            File[] files = entry.listFiles();
+            if (files != null) {
+                for (File file : files)
+                    bytes += file.length();
+            }
+            return bytes;
+        }
+    }
+}
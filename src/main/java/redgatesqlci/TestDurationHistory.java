@@ -0,0 +1,127 @@
+package redgatesqlci;
+
+import hudson.model.Job;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * How long each tSQLt test class of a job usually takes, kept as one small file in the job's directory.
+ * Each class's estimate is an exponentially weighted average over its runs, so the store doesn't grow with
+ * the number of builds and a class that got slower is noticed within a few builds.
+ */
+public class TestDurationHistory {
+    private static final Logger LOGGER = Logger.getLogger(TestDurationHistory.class.getName());
+
+    private static final String FILE_NAME = "redgatesqlci-test-durations.txt";
+
+    // Weight of the newest run in the average.
+    private static final double SMOOTHING = 0.3;
+
+    // Estimate for a class nothing is known about, when no class has any history yet.
+    private static final long DEFAULT_ESTIMATE_MS = 60 * 1000;
+
+    private final Map<String, Long> estimates;
+    private final long fallbackEstimate;
+
+    TestDurationHistory(Map<String, Long> estimates) {
+        this.estimates = estimates;
+        this.fallbackEstimate = median(estimates.values());
+    }
+
+    public static TestDurationHistory load(Job<?, ?> job) {
+        synchronized (TestDurationHistory.class) {
+            return new TestDurationHistory(read(file(job)));
+        }
+    }
+
+    /**
+     * Folds the durations measured by one run into the job's history.
+     */
+    public static void record(Job<?, ?> job, Map<String, Long> classMillis) throws IOException {
+        synchronized (TestDurationHistory.class) {
+            File file = file(job);
+            Map<String, Long> estimates = read(file);
+            for (Map.Entry<String, Long> measured : classMillis.entrySet()) {
+                Long previous = estimates.get(measured.getKey());
+                long estimate = previous == null
+                        ? measured.getValue()
+                        : Math.round(SMOOTHING * measured.getValue() + (1 - SMOOTHING) * previous);
+                estimates.put(measured.getKey(), estimate);
+            }
+            write(file, estimates);
+        }
+    }
+
+    public boolean isKnown(String testClass) {
+        return estimates.containsKey(testClass);
+    }
+
+    /**
+     * The expected duration of a test class. Classes without history are assumed to take the median time of
+     * the classes that have some.
+     */
+    public long estimate(String testClass) {
+        Long estimate = estimates.get(testClass);
+        return estimate != null ? estimate : fallbackEstimate;
+    }
+
+    public long getFallbackEstimate() {
+        return fallbackEstimate;
+    }
+
+    private static long median(Collection<Long> durations) {
+        if (durations.isEmpty())
+            return DEFAULT_ESTIMATE_MS;
+        List<Long> known = new ArrayList<Long>(durations);
+        Collections.sort(known);
+        return known.get(known.size() / 2);
+    }
+
+    private static File file(Job<?, ?> job) {
+        return new File(job.getRootDir(), FILE_NAME);
+    }
+
+    private static Map<String, Long> read(File file) {
+        Map<String, Long> estimates = new TreeMap<String, Long>(String.CASE_INSENSITIVE_ORDER);
+        if (!file.isFile())
+            return estimates;
+
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.lastIndexOf('\t');
+                    if (tab > 0)
+                        estimates.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read test duration history " + file, e);
+        } catch (NumberFormatException e) {
+            LOGGER.log(Level.WARNING, "Ignoring corrupt test duration history " + file, e);
+            estimates.clear();
+        }
+        return estimates;
+    }
+
+    private static void write(File file, Map<String, Long> estimates) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            for (Map.Entry<String, Long> entry : estimates.entrySet())
+                writer.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+        } finally {
+            writer.close();
+        }
+        if (file.exists() && !file.delete())
+            throw new IOException("Could not replace " + file);
+        if (!temp.renameTo(file))
+            throw new IOException("Could not write " + file);
+    }
+}
@@ -0,0 +1,130 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Works out which tSQLt test classes a set of changed files can affect, by reading the scripts in a package on the agent.
+ * <p>
+ * The test classes affected are those owning an object that depends, directly or not, on an object in a changed
+ * script, as worked out by {@link ScriptDependencies}.
+ * Whenever a change can't be traced to objects, every test is run instead.
+ */
+public class TestImpactAnalyzer implements FilePath.FileCallable<TestImpactAnalyzer.Result> {
+    private static final long serialVersionUID = 1L;
+
+    // Changing these changes how the whole package is built, so every test is run.
+    private static final String[] PACKAGE_WIDE_FILES = { "redgatedatabaseinfo.xml", ".scpf" };
+
+    private static final int MAX_REPORTED_OBJECTS = 50;
+
+    public static class Result implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String fullRunReason;
+        private final List<String> affectedClasses;
+        private final List<String> changedObjects;
+
+        // Copied, as the result goes back to the controller and views such as subList can't be serialized.
+        Result(String fullRunReason, List<String> affectedClasses, List<String> changedObjects) {
+            this.fullRunReason = fullRunReason;
+            this.affectedClasses = new ArrayList<String>(affectedClasses);
+            this.changedObjects = new ArrayList<String>(changedObjects);
+        }
+
+        /**
+         * Why every test has to run, or null if only the affected classes need to.
+         */
+        public String getFullRunReason() {
+            return fullRunReason;
+        }
+
+        public List<String> getAffectedClasses() {
+            return affectedClasses;
+        }
+
+        public List<String> getChangedObjects() {
+            return changedObjects;
+        }
+    }
+
+    private final List<String> changedPaths;
+    private final List<String> testClasses;
+
+    /**
+     * @param changedPaths the paths the build's changes touched, relative to the repository root.
+     */
+    public TestImpactAnalyzer(Collection<String> changedPaths, List<String> testClasses) {
+        this.changedPaths = new ArrayList<String>(changedPaths);
+        this.testClasses = new ArrayList<String>(testClasses);
+    }
+
+    public Result invoke(File packageFile, VirtualChannel channel) throws IOException, InterruptedException {
+        // Scripts are matched to changed files by their last two path segments, such as Tables/dbo.Orders.sql,
+        // which SQL Source Control keeps unique within a scripts folder.
+        ScriptDependencies dependencies = new ScriptDependencies();
+
+        ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(packageFile)));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = URLDecoder.decode(entry.getName().replace("+", "%2B"), "UTF-8");
+                if (entry.isDirectory() || !name.toLowerCase().endsWith(".sql"))
+                    continue;
+                dependencies.add(tail(name), TestClassLister.readScript(in));
+            }
+        } finally {
+            in.close();
+        }
+
+        Set<String> changedObjects = new TreeSet<String>();
+        for (String path : changedPaths) {
+            String lower = path.toLowerCase();
+            for (String packageWide : PACKAGE_WIDE_FILES) {
+                if (lower.endsWith(packageWide))
+                    return fullRun(path + " affects the whole package");
+            }
+            if (!lower.endsWith(".sql"))
+                continue;
+            List<String> defined = dependencies.definedBy(tail(path));
+            if (defined == null)
+                return fullRun(path + " isn't in the package, so it may have been deleted or renamed");
+            if (defined.isEmpty())
+                return fullRun(path + " doesn't define a table, view, procedure, function, type or schema");
+            changedObjects.addAll(defined);
+        }
+
+        Set<String> affected = dependencies.withDependants(changedObjects);
+
+        List<String> affectedClasses = new ArrayList<String>();
+        for (String testClass : testClasses) {
+            String schema = testClass.toLowerCase();
+            for (String object : affected) {
+                if (object.equals("schema:" + schema) || object.startsWith(schema + ".")) {
+                    affectedClasses.add(testClass);
+                    break;
+                }
+            }
+        }
+
+        List<String> reported = new ArrayList<String>(changedObjects);
+        return new Result(null, affectedClasses, reported.subList(0, Math.min(reported.size(), MAX_REPORTED_OBJECTS)));
+    }
+
+    private static Result fullRun(String reason) {
+        return new Result(reason, Collections.<String>emptyList(), Collections.<String>emptyList());
+    }
+
+    private static String tail(String path) {
+        String[] segments = path.replace('\\', '/').toLowerCase().split("/");
+        if (segments.length < 2)
+            return segments[segments.length - 1];
+        return segments[segments.length - 2] + "/" + segments[segments.length - 1];
+    }
+}
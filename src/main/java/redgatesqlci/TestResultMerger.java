@@ -0,0 +1,97 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import javax.xml.stream.*;
+import javax.xml.stream.events.XMLEvent;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Merges the JUnit reports that sqlci wrote in several directories into one report, on the agent.
+ * Reports are streamed through, so the merge never holds a whole report in memory.
+ */
+public class TestResultMerger implements FilePath.FileCallable<Integer> {
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> reportDirectories;
+
+    public TestResultMerger(List<String> reportDirectories) {
+        this.reportDirectories = new ArrayList<String>(reportDirectories);
+    }
+
+    /**
+     * @return the number of reports merged into {@code mergedReport}.
+     */
+    public Integer invoke(File mergedReport, VirtualChannel channel) throws IOException, InterruptedException {
+        List<File> reports = new ArrayList<File>();
+        for (String directory : reportDirectories)
+            findReports(new File(directory), reports);
+        Collections.sort(reports);
+
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(mergedReport));
+        try {
+            XMLEventWriter writer = XMLOutputFactory.newInstance().createXMLEventWriter(out, "UTF-8");
+            XMLEventFactory events = XMLEventFactory.newInstance();
+            writer.add(events.createStartDocument("UTF-8", "1.0"));
+            writer.add(events.createStartElement("", "", "testsuites"));
+
+            for (File report : reports)
+                copyTestSuites(inputFactory, report, writer);
+
+            writer.add(events.createEndElement("", "", "testsuites"));
+            writer.add(events.createEndDocument());
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not merge test reports: " + e.getMessage());
+        } finally {
+            out.close();
+        }
+        return reports.size();
+    }
+
+    // Copies every <testsuite> element, whether the report's root is <testsuites> or a single <testsuite>.
+    private static void copyTestSuites(XMLInputFactory inputFactory, File report, XMLEventWriter writer)
+            throws IOException, XMLStreamException {
+        InputStream in = new BufferedInputStream(new FileInputStream(report));
+        try {
+            XMLEventReader reader = inputFactory.createXMLEventReader(in);
+            int depthInSuite = 0;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (depthInSuite == 0) {
+                    if (event.isStartElement() && event.asStartElement().getName().getLocalPart().equals("testsuite")) {
+                        writer.add(event);
+                        depthInSuite = 1;
+                    }
+                    continue;
+                }
+
+                writer.add(event);
+                if (event.isStartElement())
+                    depthInSuite++;
+                else if (event.isEndElement())
+                    depthInSuite--;
+            }
+            reader.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void findReports(File directory, List<File> reports) {
+        File[] children = directory.listFiles();
+        if (children == null)
+            return;
+        for (File child : children) {
+            if (child.isDirectory())
+                findReports(child, reports);
+            else if (child.getName().toLowerCase().endsWith(".junit.xml"))
+                reports.add(child);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reads the JUnit reports sqlci wrote in a directory, on the agent, and writes one compact record per test case to
+ * a file there. Reports are streamed, and failure text is cut short as it's read, so memory doesn't grow with the
+ * report size. Only a {@link Summary} comes back to the controller, which copies the records file as it is.
+ */
+public class TestResultReader implements FilePath.FileCallable<TestResultReader.Summary> {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The counts, the first few failures and how long each test class took, which is all the controller keeps in
+     * memory however large the suite is.
+     */
+    public static class Summary implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        // How many failed tests are kept for the build's summary.
+        static final int MAX_FAILURES = 20;
+
+        private int total;
+        private int failed;
+        private int skipped;
+        private long durationMillis;
+        private final List<TestCaseRecord> failures = new ArrayList<TestCaseRecord>();
+        private final Map<String, Long> classMillis = new HashMap<String, Long>();
+
+        void add(TestCaseRecord record) {
+            total++;
+            durationMillis += record.getDurationMillis();
+            if (record.getStatus() == TestCaseRecord.Status.SKIPPED) {
+                skipped++;
+            } else if (!record.isPassed()) {
+                failed++;
+                if (failures.size() < MAX_FAILURES)
+                    failures.add(record);
+            }
+            // A class takes as long as its tests did.
+            Long millis = classMillis.get(record.getClassName());
+            classMillis.put(record.getClassName(), (millis == null ? 0 : millis) + record.getDurationMillis());
+        }
+
+        public int getTotal() {
+            return total;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getSkipped() {
+            return skipped;
+        }
+
+        public long getDurationMillis() {
+            return durationMillis;
+        }
+
+        public List<TestCaseRecord> getFailures() {
+            return Collections.unmodifiableList(failures);
+        }
+
+        public Map<String, Long> getClassMillis() {
+            return Collections.unmodifiableMap(classMillis);
+        }
+    }
+
+    private final String reportName;
+    private final long notBeforeMillis;
+    private final String recordsPath;
+
+    /**
+     * @param reportName  the report to read if it exists. Otherwise every *.junit.xml in the directory that was
+     *                    written at or after {@code notBeforeMillis}, by the agent's clock, is read.
+     * @param recordsPath the file on the agent to write every test's record to, one per line.
+     */
+    public TestResultReader(String reportName, long notBeforeMillis, String recordsPath) {
+        this.reportName = reportName;
+        this.notBeforeMillis = notBeforeMillis;
+        this.recordsPath = recordsPath;
+    }
+
+    public Summary invoke(File directory, VirtualChannel channel) throws IOException, InterruptedException {
+        List<File> reports = new ArrayList<File>();
+        File namedReport = new File(directory, reportName);
+        if (namedReport.isFile()) {
+            reports.add(namedReport);
+        } else {
+            File[] candidates = directory.listFiles();
+            if (candidates != null) {
+                Arrays.sort(candidates);
+                for (File candidate : candidates) {
+                    if (candidate.isFile() && candidate.getName().endsWith(".junit.xml") && candidate.lastModified() >= notBeforeMillis)
+                        reports.add(candidate);
+                }
+            }
+        }
+
+        XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+
+        Summary summary = new Summary();
+        Writer records = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(recordsPath), "UTF-8"));
+        try {
+            for (File report : reports) {
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+                read(inputFactory, report, summary, records);
+            }
+        } finally {
+            records.close();
+        }
+        return summary;
+    }
+
+    private static void read(XMLInputFactory inputFactory, File report, Summary summary, Writer records) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(report));
+        try {
+            XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+            String className = null;
+            String name = null;
+            long durationMillis = 0;
+            TestCaseRecord.Status status = null;
+            StringBuilder message = null;
+            int outcomeDepth = 0;
+            boolean separatorPending = false;
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String element = reader.getLocalName();
+                    if (outcomeDepth > 0) {
+                        outcomeDepth++;
+                    } else if (element.equals("testcase")) {
+                        className = attribute(reader, "classname");
+                        name = attribute(reader, "name");
+                        durationMillis = parseMillis(attribute(reader, "time"));
+                        status = TestCaseRecord.Status.PASSED;
+                        message = new StringBuilder();
+                    } else if (status != null && outcomeStatus(element) != null) {
+                        status = outcomeStatus(element);
+                        appendBounded(message, attribute(reader, "message"));
+                        separatorPending = message.length() > 0;
+                        outcomeDepth = 1;
+                    }
+                } else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA) {
+                    if (outcomeDepth > 0) {
+                        if (separatorPending && !reader.isWhiteSpace()) {
+                            appendBounded(message, "\n");
+                            separatorPending = false;
+                        }
+                        appendBounded(message, reader.getText());
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (outcomeDepth > 0) {
+                        outcomeDepth--;
+                    } else if (reader.getLocalName().equals("testcase") && status != null) {
+                        TestCaseRecord record = new TestCaseRecord(className, name, durationMillis, status, message.toString());
+                        records.write(record.toLine());
+                        records.write('\n');
+                        summary.add(record);
+                        status = null;
+                        message = null;
+                    }
+                }
+            }
+            reader.close();
+        } catch (XMLStreamException e) {
+            throw new IOException("Could not read test report " + report.getName() + ": " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static TestCaseRecord.Status outcomeStatus(String element) {
+        if (element.equals("failure"))
+            return TestCaseRecord.Status.FAILED;
+        if (element.equals("error"))
+            return TestCaseRecord.Status.ERROR;
+        if (element.equals("skipped"))
+            return TestCaseRecord.Status.SKIPPED;
+        return null;
+    }
+
+    // Stops appending once the message is long enough, so a huge failure text is never held in full.
+    private static void appendBounded(StringBuilder message, String text) {
+        if (text == null)
+            return;
+        int room = TestCaseRecord.MAX_MESSAGE_LENGTH + 1 - message.length();
+        if (room > 0)
+            message.append(text, 0, Math.min(room, text.length()));
+    }
+
+    private static String attribute(XMLStreamReader reader, String name) {
+        String value = reader.getAttributeValue(null, name);
+        return value == null ? "" : value;
+    }
+
+    // JUnit times are in seconds; some writers use a comma for the decimal point.
+    private static long parseMillis(String seconds) {
+        try {
+            return Math.round(Double.parseDouble(seconds.replace(',', '.')) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The agent's current time, so that reports can be matched against it rather than against the controller's clock.
+     */
+    public static class AgentClock implements FilePath.FileCallable<Long> {
+        private static final long serialVersionUID = 1L;
+
+        public Long invoke(File f, VirtualChannel channel) {
+            return System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package redgatesqlci;
+
+import hudson.model.Action;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records which tSQLt test classes a build chose to run for a package, and why.
+ */
+public class TestSelectionAction implements Action {
+    private final String packageid;
+    private final String fullRunReason;
+    private final int totalClassCount;
+    private final List<String> selectedClasses;
+    private final List<String> changedObjects;
+
+    private TestSelectionAction(String packageid, String fullRunReason, int totalClassCount, List<String> selectedClasses,
+                                List<String> changedObjects) {
+        this.packageid = packageid;
+        this.fullRunReason = fullRunReason;
+        this.totalClassCount = totalClassCount;
+        this.selectedClasses = new ArrayList<String>(selectedClasses);
+        this.changedObjects = new ArrayList<String>(changedObjects);
+    }
+
+    public static TestSelectionAction fullRun(String packageid, String reason, int totalClassCount) {
+        return new TestSelectionAction(packageid, reason, totalClassCount, Collections.<String>emptyList(), Collections.<String>emptyList());
+    }
+
+    public static TestSelectionAction affected(String packageid, int totalClassCount, TestImpactAnalyzer.Result impact) {
+        return new TestSelectionAction(packageid, null, totalClassCount, impact.getAffectedClasses(), impact.getChangedObjects());
+    }
+
+    /**
+     * The selection {@code build} made for {@code packageid}, or null if it didn't choose tests for that package.
+     */
+    public static TestSelectionAction forPackage(Run<?, ?> build, String packageid) {
+        for (TestSelectionAction action : build.getActions(TestSelectionAction.class)) {
+            if (action.getPackageid().equals(packageid))
+                return action;
+        }
+        return null;
+    }
+
+    public String getPackageid() {
+        return packageid;
+    }
+
+    public boolean isFullRun() {
+        return fullRunReason != null;
+    }
+
+    public String getFullRunReason() {
+        return fullRunReason;
+    }
+
+    public int getTotalClassCount() {
+        return totalClassCount;
+    }
+
+    public List<String> getSelectedClasses() {
+        return Collections.unmodifiableList(selectedClasses);
+    }
+
+    public List<String> getChangedObjects() {
+        return Collections.unmodifiableList(changedObjects);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "SQL CI test selection";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
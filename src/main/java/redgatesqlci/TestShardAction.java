@@ -0,0 +1,127 @@
+package redgatesqlci;
+
+import hudson.Util;
+import hudson.model.Action;
+
+import java.util.*;
+
+/**
+ * Shows how a sharded test run was planned and how long it actually took, so the shard balancing can be checked.
+ * <p>
+ * The prediction only covers the tests, so it is compared with how long each shard's tests took by their reports.
+ * Each shard's wall time, which also covers creating its database and deploying the package, is shown alongside.
+ */
+public class TestShardAction implements Action {
+
+    public static class Shard {
+        private final int number;
+        private final int testClassCount;
+        private final long predictedMillis;
+        private final long actualMillis;
+        private final long wallMillis;
+
+        public Shard(int number, int testClassCount, long predictedMillis, long actualMillis, long wallMillis) {
+            this.number = number;
+            this.testClassCount = testClassCount;
+            this.predictedMillis = predictedMillis;
+            this.actualMillis = actualMillis;
+            this.wallMillis = wallMillis;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public int getTestClassCount() {
+            return testClassCount;
+        }
+
+        public String getPredicted() {
+            return Util.getTimeSpanString(predictedMillis);
+        }
+
+        public String getActual() {
+            return Util.getTimeSpanString(actualMillis);
+        }
+
+        public String getWall() {
+            return Util.getTimeSpanString(wallMillis);
+        }
+    }
+
+    private final String packageid;
+    private final int unknownClassCount;
+    private final long predictedMakespanMillis;
+    private final long actualMakespanMillis;
+    private final long wallMakespanMillis;
+    private final List<Shard> shards;
+
+    /**
+     * @param classMillis how long each test class's tests took, by the merged report.
+     */
+    public TestShardAction(String packageid, TestShardPlan plan, List<TestShardRunner.ShardResult> results,
+                           Map<String, Long> classMillis, int unknownClassCount) {
+        this.packageid = packageid;
+        this.unknownClassCount = unknownClassCount;
+        this.predictedMakespanMillis = plan.getPredictedMakespanMillis();
+
+        // Reports may not spell a class's name the way the package does.
+        Map<String, Long> measured = new TreeMap<String, Long>(String.CASE_INSENSITIVE_ORDER);
+        measured.putAll(classMillis);
+
+        long actualMakespan = 0;
+        long wallMakespan = 0;
+        this.shards = new ArrayList<Shard>();
+        for (TestShardRunner.ShardResult result : results) {
+            int shard = result.getShard();
+            long actual = 0;
+            for (String testClass : plan.getShards().get(shard)) {
+                Long millis = measured.get(testClass);
+                if (millis != null)
+                    actual += millis;
+            }
+            shards.add(new Shard(shard + 1, plan.getShards().get(shard).size(), plan.getPredictedMillis().get(shard),
+                    actual, result.getElapsedMillis()));
+            actualMakespan = Math.max(actualMakespan, actual);
+            wallMakespan = Math.max(wallMakespan, result.getElapsedMillis());
+        }
+        this.actualMakespanMillis = actualMakespan;
+        this.wallMakespanMillis = wallMakespan;
+    }
+
+    public String getPackageid() {
+        return packageid;
+    }
+
+    public int getUnknownClassCount() {
+        return unknownClassCount;
+    }
+
+    public String getPredictedMakespan() {
+        return Util.getTimeSpanString(predictedMakespanMillis);
+    }
+
+    public String getActualMakespan() {
+        return Util.getTimeSpanString(actualMakespanMillis);
+    }
+
+    public String getWallMakespan() {
+        return Util.getTimeSpanString(wallMakespanMillis);
+    }
+
+    public List<Shard> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "SQL CI test shards";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
@@ -0,0 +1,84 @@
+package redgatesqlci;
+
+import java.util.*;
+
+/**
+ * Which tSQLt test classes each shard of a sharded test run executes, and how long each shard is expected to take.
+ */
+public class TestShardPlan {
+    private final List<List<String>> shards;
+    private final List<Long> predictedMillis;
+
+    private TestShardPlan(List<List<String>> shards, List<Long> predictedMillis) {
+        this.shards = shards;
+        this.predictedMillis = predictedMillis;
+    }
+
+    public List<List<String>> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    public List<Long> getPredictedMillis() {
+        return Collections.unmodifiableList(predictedMillis);
+    }
+
+    /**
+     * The predicted time until the last shard finishes.
+     */
+    public long getPredictedMakespanMillis() {
+        long makespan = 0;
+        for (long millis : predictedMillis)
+            makespan = Math.max(makespan, millis);
+        return makespan;
+    }
+
+    /**
+     * Longest-processing-time-first: takes the test classes from slowest to fastest, as estimated from
+     * {@code history}, and gives each to the shard with the least work so far.
+     */
+    public static TestShardPlan longestProcessingTimeFirst(List<String> testClasses, int shardCount, final TestDurationHistory history) {
+        int count = shardsNeeded(testClasses, shardCount);
+
+        List<String> slowestFirst = new ArrayList<String>(testClasses);
+        Collections.sort(slowestFirst, new Comparator<String>() {
+            public int compare(String a, String b) {
+                long difference = history.estimate(b) - history.estimate(a);
+                return difference < 0 ? -1 : (difference > 0 ? 1 : a.compareTo(b));
+            }
+        });
+
+        final long[] loads = new long[count];
+        PriorityQueue<Integer> leastLoaded = new PriorityQueue<Integer>(count, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long difference = loads[a] - loads[b];
+                return difference < 0 ? -1 : (difference > 0 ? 1 : a - b);
+            }
+        });
+        for (int i = 0; i < count; i++)
+            leastLoaded.add(i);
+
+        List<List<String>> shards = emptyShards(count);
+        for (String testClass : slowestFirst) {
+            int shard = leastLoaded.poll();
+            shards.get(shard).add(testClass);
+            loads[shard] += history.estimate(testClass);
+            leastLoaded.add(shard);
+        }
+
+        List<Long> predictedMillis = new ArrayList<Long>();
+        for (long load : loads)
+            predictedMillis.add(load);
+        return new TestShardPlan(shards, predictedMillis);
+    }
+
+    private static int shardsNeeded(List<String> testClasses, int shardCount) {
+        return Math.max(1, Math.min(shardCount, testClasses.size()));
+    }
+
+    private static List<List<String>> emptyShards(int count) {
+        List<List<String>> shards = new ArrayList<List<String>>();
+        for (int i = 0; i < count; i++)
+            shards.add(new ArrayList<String>());
+        return shards;
+    }
+}
@@ -0,0 +1,81 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Runs the shards of a {@link TestShardPlan} concurrently, at most {@code maxParallel} at a time,
+ * each in its own working directory and with its own prefixed log.
+ */
+public class TestShardRunner {
+
+    /**
+     * Runs one shard's test classes, leaving a JUnit report for each class under {@code directory}.
+     */
+    public interface ShardCommand {
+        /**
+         * @return true if every test passed.
+         */
+        boolean run(int shard, List<String> testClasses, FilePath directory, TaskListener listener) throws IOException, InterruptedException;
+    }
+
+    public static class ShardResult {
+        private final int shard;
+        private final boolean success;
+        private final long elapsedMillis;
+
+        ShardResult(int shard, boolean success, long elapsedMillis) {
+            this.shard = shard;
+            this.success = success;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    private final FilePath shardsRoot;
+    private final TaskListener listener;
+    private final int maxParallel;
+
+    public TestShardRunner(FilePath shardsRoot, TaskListener listener, int maxParallel) {
+        this.shardsRoot = shardsRoot;
+        this.listener = listener;
+        this.maxParallel = maxParallel;
+    }
+
+    public static FilePath shardDirectory(FilePath shardsRoot, int shard) {
+        return shardsRoot.child("shard-" + (shard + 1));
+    }
+
+    public List<ShardResult> run(TestShardPlan plan, final ShardCommand command) throws IOException, InterruptedException {
+        shardsRoot.deleteRecursive();
+        FanOut<List<String>, ShardResult> fanOut = new FanOut<List<String>, ShardResult>(listener, maxParallel) {
+            @Override
+            protected String logPrefix(int shard, List<String> testClasses) {
+                return "[shard " + (shard + 1) + "] ";
+            }
+        };
+        return fanOut.run(plan.getShards(), new FanOut.Task<List<String>, ShardResult>() {
+            public ShardResult run(int shard, List<String> testClasses, TaskListener shardListener) throws IOException, InterruptedException {
+                FilePath directory = shardDirectory(shardsRoot, shard);
+                directory.mkdirs();
+                long start = System.currentTimeMillis();
+                boolean success = command.run(shard, testClasses, directory, shardListener);
+                return new ShardResult(shard, success, System.currentTimeMillis() - start);
+            }
+        });
+    }
+}
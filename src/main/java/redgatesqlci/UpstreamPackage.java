@@ -0,0 +1,23 @@
+package redgatesqlci;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+
+public class UpstreamPackage
+{
+    private String jobName;
+    private String buildNumber;
+
+    public String getJobName() {
+        return jobName;
+    }
+    public String getBuildNumber() {
+        return buildNumber;
+    }
+
+    @DataBoundConstructor
+    public UpstreamPackage(String jobName, String buildNumber)
+    {
+        this.jobName = jobName;
+        this.buildNumber = buildNumber;
+    }
+}
@@ -0,0 +1,57 @@
+package redgatesqlci;
+
+import hudson.model.Action;
+
+/**
+ * Records which upstream build a package used by this build came from.
+ */
+public class UpstreamPackageAction implements Action {
+    private final String packageid;
+    private final String jobName;
+    private final int buildNumber;
+    private final String contentHash;
+    private final boolean fromCache;
+
+    public UpstreamPackageAction(String packageid, String jobName, int buildNumber, String contentHash, boolean fromCache) {
+        this.packageid = packageid;
+        this.jobName = jobName;
+        this.buildNumber = buildNumber;
+        this.contentHash = contentHash;
+        this.fromCache = fromCache;
+    }
+
+    public String getPackageid() {
+        return packageid;
+    }
+
+    public String getJobName() {
+        return jobName;
+    }
+
+    public int getBuildNumber() {
+        return buildNumber;
+    }
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Whether the package was already in the node's package cache, rather than copied from the controller.
+     */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "SQL CI upstream package";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
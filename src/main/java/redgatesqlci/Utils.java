@@ -1,57 +1,69 @@
 package redgatesqlci;
 
+import hudson.AbortException;
+import hudson.FilePath;
 import hudson.Launcher;
-import hudson.Proc;
-import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
+import hudson.model.Computer;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.StreamBuildListener;
 
 import java.io.*;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
 public class Utils {
-    public static boolean runSQLCIWithParams(AbstractBuild build, Launcher launcher, BuildListener listener, Collection<String> params)
+    public static boolean runSQLCIWithParams(Run<?, ?> build, FilePath workingDirectory, Launcher launcher, TaskListener listener, Collection<String> params)
     {
-        // Check SQL CI is installed and get location.
-
-        String sqlCiLocation = "";
-        String allLocations = "";
-        String[] possibleSqlCiLocations =
-               { System.getenv("ProgramFiles") + "\\Red Gate\\SQL Automation Pack 1\\sqlCI\\sqlci.exe",
-                 System.getenv("ProgramFiles") +  "\\Red Gate\\sqlCI\\sqlci.exe",
-                 System.getenv("ProgramFiles(X86)") +  "\\Red Gate\\SQL Automation Pack 1\\sqlCI\\sqlci.exe",
-                 System.getenv("ProgramFiles(X86)") +  "\\Red Gate\\sqlCI\\sqlci.exe"
-               } ;
-
-        for(String possibleLocation : possibleSqlCiLocations)
-        {
-            if(new File(possibleLocation).isFile())
-                sqlCiLocation = possibleLocation;
-            allLocations = allLocations.concat(possibleLocation + "  ");
-        }
-
-        if(sqlCiLocation == "")
-        {
-            listener.error("SQL CI executable cannot be found. Checked " + allLocations + ".Please install Redgate SQL CI on this agent.");
-            return false;
-        }
-
-        // Set up arguments
+        // Queue for the target server, so that builds across the controller don't overload it.
 
-        ArrayList<String> procParams = new ArrayList<String>();
-        procParams.add(sqlCiLocation);
-        procParams.addAll(params);
+        String command = params.iterator().next();
+        String server = ServerAdmission.targetServer(params);
+        ServerAdmission.Permit permit = null;
+        Computer computer = workingDirectory.toComputer();
+        SqlCiMetrics.StepTimer timer = SqlCiMetrics.forStep(command, computer == null ? null : computer.getName(), server);
+        long runStart = 0;
+        RemoteSqlCiStep.Result result = null;
 
-        // Run SQL CI with parameters. Send output and error streams to logger.
+        // Find SQL CI, run it and parse its output on the node, in a single call. The output comes back to the
+        // logger in chunks while it runs.
 
-        Proc proc = null;
-        Launcher.ProcStarter procStarter = launcher.new ProcStarter();
-        procStarter.cmds(procParams).stdout(listener.getLogger()).stderr(listener.getLogger()).pwd(build.getWorkspace());
+        SqlCiGlobalConfiguration config = SqlCiGlobalConfiguration.get();
+        FilePath fullLog = null;
 
         try {
-            proc = launcher.launch(procStarter);
-            int exitCode = proc.join();
-            return exitCode == 0;
+            if (config != null && config.isCompactConsole()) {
+                FilePath logs = workingDirectory.child(".redgatesqlci").child("logs");
+                logs.mkdirs();
+                fullLog = logs.createTempFile("sqlci-" + command.toLowerCase(Locale.ENGLISH) + "-", ".log.gz");
+            }
+            RemoteSqlCiStep step = new RemoteSqlCiStep(new ArrayList<String>(params),
+                    SqlCiExecutable.known(workingDirectory), SqlCiExecutable.home(workingDirectory, listener), listener,
+                    fullLog == null ? null : fullLog.getRemote(), config == null ? 0 : config.getConsoleTailLines(),
+                    config == null ? 0 : config.getStepTimeoutMinutes() * 60000L,
+                    config == null ? 0 : config.getStallTimeoutMinutes() * 60000L);
+            permit = ServerAdmission.acquire(server, listener);
+            timer.queued(permit.getWaitMillis());
+            timer.started();
+            runStart = System.currentTimeMillis();
+            result = workingDirectory.act(step);
+
+            SqlCiExecutable.remember(workingDirectory, result.getLocation());
+            if (!result.getLocation().isFound()) {
+                listener.error("SQL CI executable cannot be found. Checked " + result.getLocation().getSearched() + ".Please install Redgate SQL CI on this agent.");
+                return false;
+            }
+            if (result.getStopReason() != null) {
+                recordTimeout(build, launcher, listener, new ArrayList<String>(params), result);
+                return false;
+            }
+            return result.getExitCode() == 0;
         } catch (IOException e) {
             e.printStackTrace();
             listener.getLogger().println("IOException");
@@ -59,12 +71,111 @@ public class Utils {
         } catch (InterruptedException e) {
             e.printStackTrace();
             listener.getLogger().println("InterruptedException");
+            Thread.currentThread().interrupt();
             return false;
+        } finally {
+            if (fullLog != null)
+                archiveFullLog(build, workingDirectory, launcher, listener, fullLog);
+            if (permit != null) {
+                permit.release();
+                long runMillis = System.currentTimeMillis() - runStart;
+                timer.finished(runMillis, result == null ? -1 : result.getExitCode());
+                if (result != null && result.getTimeline() != null) {
+                    SqlCiTimelineAction.forBuild(build).addTimeline(result.getTimeline());
+                    recordStep(build, listener, new SqlCiRunAction.Step(command, server,
+                            permit.getWaitMillis(), result.getResolveMillis(), result.getLaunchMillis(), result.getRunMillis(),
+                            result.getExitCode(), result.getOutputBytes(), result.getPackageBytes()));
+                }
+            }
+        }
+    }
+
+    // Archives a compact console mode log with the build, and removes it from the working directory.
+    private static void archiveFullLog(Run<?, ?> build, FilePath workingDirectory, Launcher launcher, TaskListener listener, FilePath fullLog)
+    {
+        try {
+            if (fullLog.exists() && fullLog.length() > 0) {
+                BuildListener buildListener = listener instanceof BuildListener
+                        ? (BuildListener) listener : new StreamBuildListener(listener.getLogger(), Charset.defaultCharset());
+                build.getArtifactManager().archive(workingDirectory, launcher, buildListener,
+                        Collections.singletonMap("redgatesqlci-logs/" + fullLog.getName(), ".redgatesqlci/logs/" + fullLog.getName()));
+            }
+            fullLog.delete();
+        } catch (IOException e) {
+            listener.getLogger().println("Could not archive the full SQL CI log: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    // Keeps the watchdog's diagnostics with the build, cleans up after the stopped run, and marks the build aborted.
+    private static void recordTimeout(Run<?, ?> build, Launcher launcher, TaskListener listener, List<String> params,
+                                      RemoteSqlCiStep.Result result) throws IOException, InterruptedException
+    {
+        String command = params.get(0);
+        listener.error("SQL CI " + command + " was stopped, because " + result.getStopReason() + ".");
+
+        StringBuilder diagnostics = new StringBuilder(result.getDiagnostics());
+        diagnostics.append('\n');
+        try {
+            diagnostics.append(SqlCiWatchdog.blockingSessions(params, launcher));
+        } catch (IOException e) {
+            diagnostics.append("Could not list the blocked sessions: ").append(e.getMessage()).append('\n');
+        }
+
+        // Shards and sync targets time out concurrently, so each gets a file of its own.
+        File file = File.createTempFile("redgatesqlci-timeout-", ".txt", build.getRootDir());
+        String fileName = file.getName();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(diagnostics.toString());
+        } finally {
+            writer.close();
+        }
+        build.addAction(new SqlCiTimeoutAction(command, result.getStopReason(), fileName));
+        listener.getLogger().println("The processes and blocked sessions at the time are kept with the build.");
+
+        SqlCiWatchdog.dropTemporaryDatabase(params, launcher, listener);
+        build.setResult(Result.ABORTED);
+    }
+
+    private static void recordStep(Run<?, ?> build, TaskListener listener, SqlCiRunAction.Step step)
+    {
+        try {
+            SqlCiRunAction.forBuild(build).addStep(step);
+        } catch (IOException e) {
+            listener.getLogger().println("Could not record SQL CI timings: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Fails the build step by throwing, the way both Pipeline and freestyle builds expect.
+     * An abort during the step is rethrown as an interruption.
+     */
+    public static void checkStepResult(boolean success, String command) throws InterruptedException, AbortException
+    {
+        if (Thread.interrupted())
+            throw new InterruptedException();
+        if (!success)
+            throw new AbortException("Redgate SQL CI " + command + " failed.");
+    }
+
     public static String constructPackageFileName(String packageName, int buildNumber)
     {
         return packageName + ".0." + buildNumber + ".nupkg";
     }
+
+    public static String formatBytes(long bytes)
+    {
+        if (bytes < 1024)
+            return bytes + " B";
+        if (bytes < 1024 * 1024)
+            return String.format("%.1f KB", bytes / 1024.0);
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    public static String constructTestResultsFileName(String packageName, int buildNumber)
+    {
+        return packageName + ".0." + buildNumber + ".junit.xml";
+    }
 }
@@ -0,0 +1,81 @@
+package redgatesqlci;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+public class CompactConsoleOutputStreamTest {
+
+    private static final String OUTPUT = "Creating database\r\n"
+            + "Warning: no tests found\n"
+            + "Deploying scripts\n"
+            + "Build succeeded with 0 errors\n"
+            + "Error: could not connect\n"
+            + "Done";
+
+    @Test
+    public void theFullLogGetsEverything() throws Exception {
+        ByteArrayOutputStream fullLog = new ByteArrayOutputStream();
+        CompactConsoleOutputStream out = new CompactConsoleOutputStream(fullLog, new ByteArrayOutputStream(), 3);
+        out.write(OUTPUT.getBytes("UTF-8"));
+        out.close();
+        assertEquals(OUTPUT, fullLog.toString("UTF-8"));
+    }
+
+    @Test
+    public void theConsoleOnlyGetsProblems() throws Exception {
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        CompactConsoleOutputStream out = new CompactConsoleOutputStream(new ByteArrayOutputStream(), console, 3);
+        out.write(OUTPUT.getBytes("UTF-8"));
+        out.close();
+        assertEquals("Warning: no tests found\nError: could not connect\n", console.toString("UTF-8"));
+        assertEquals(6, out.getLineCount());
+        assertEquals(2, out.getProblemCount());
+    }
+
+    @Test
+    public void theTailKeepsTheLastLines() throws Exception {
+        CompactConsoleOutputStream out = new CompactConsoleOutputStream(new ByteArrayOutputStream(), new ByteArrayOutputStream(), 3);
+        for (int i = 0; i < OUTPUT.length(); i++)
+            out.write(OUTPUT.charAt(i));
+        out.close();
+
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        out.printTail(new PrintStream(tail, true, "UTF-8"));
+        String nl = System.getProperty("line.separator");
+        assertEquals("Last 3 of 6 lines of SQL CI output:" + nl
+                + "Build succeeded with 0 errors" + nl
+                + "Error: could not connect" + nl
+                + "Done" + nl, tail.toString("UTF-8"));
+    }
+
+    @Test
+    public void aShortRunHasAShortTail() throws Exception {
+        CompactConsoleOutputStream out = new CompactConsoleOutputStream(new ByteArrayOutputStream(), new ByteArrayOutputStream(), 10);
+        out.write("one\ntwo\n".getBytes("UTF-8"));
+        out.close();
+
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        out.printTail(new PrintStream(tail, true, "UTF-8"));
+        String nl = System.getProperty("line.separator");
+        assertEquals("Last 2 of 2 lines of SQL CI output:" + nl + "one" + nl + "two" + nl, tail.toString("UTF-8"));
+    }
+
+    @Test
+    public void longLinesAreCutShortOnlyOutsideTheFullLog() throws Exception {
+        StringBuilder line = new StringBuilder("Error: ");
+        while (line.length() < CompactConsoleOutputStream.MAX_LINE_LENGTH * 2)
+            line.append('x');
+        ByteArrayOutputStream fullLog = new ByteArrayOutputStream();
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        CompactConsoleOutputStream out = new CompactConsoleOutputStream(fullLog, console, 1);
+        out.write((line + "\n").getBytes("UTF-8"));
+        out.close();
+
+        assertEquals(line.length() + 1, fullLog.size());
+        assertEquals(CompactConsoleOutputStream.MAX_LINE_LENGTH + 1, console.size());
+    }
+}
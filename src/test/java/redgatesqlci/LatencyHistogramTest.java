@@ -0,0 +1,69 @@
+package redgatesqlci;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    // Index of the bucket with the given upper bound in seconds.
+    private static int bucket(double seconds) {
+        for (int i = 0; i < LatencyHistogram.BOUNDS_SECONDS.length; i++) {
+            if (LatencyHistogram.BOUNDS_SECONDS[i] == seconds)
+                return i;
+        }
+        throw new IllegalArgumentException("No bucket for " + seconds);
+    }
+
+    private static long[] countsAfter(long... millis) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long duration : millis)
+            histogram.record(duration);
+        return histogram.cumulativeCounts();
+    }
+
+    @Test
+    public void aDurationOnABoundIsInThatBucket() {
+        long[] counts = countsAfter(1000, 5000, 3600 * 1000);
+        assertEquals(1, counts[bucket(1)]);
+        assertEquals(2, counts[bucket(5)]);
+        assertEquals(2, counts[bucket(1800)]);
+        assertEquals(3, counts[bucket(3600)]);
+    }
+
+    @Test
+    public void aDurationJustPastABoundIsInTheNextBucket() {
+        long[] counts = countsAfter(1001, 5001);
+        assertEquals(0, counts[bucket(1)]);
+        assertEquals(1, counts[bucket(5)]);
+        assertEquals(2, counts[bucket(10)]);
+    }
+
+    @Test
+    public void zeroIsInTheFirstBucket() {
+        assertEquals(1, countsAfter(0)[0]);
+    }
+
+    @Test
+    public void durationsPastTheLastBoundOnlyCountInTheTotal() {
+        long[] counts = countsAfter(3600 * 1000 + 1, 10);
+        assertEquals(LatencyHistogram.BOUNDS_SECONDS.length + 1, counts.length);
+        assertEquals(1, counts[bucket(3600)]);
+        assertEquals(2, counts[counts.length - 1]);
+    }
+
+    @Test
+    public void countsAreCumulative() {
+        long[] counts = countsAfter(500, 7000, 7000, 45000);
+        assertArrayEquals(new long[] { 1, 1, 3, 3, 4, 4, 4, 4, 4, 4, 4, 4 }, counts);
+    }
+
+    @Test
+    public void sumAndCount() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1500);
+        histogram.record(250);
+        assertEquals(2, histogram.getCount());
+        assertEquals(1.75, histogram.getSumSeconds(), 1e-9);
+    }
+}
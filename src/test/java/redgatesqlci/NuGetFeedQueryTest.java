@@ -0,0 +1,84 @@
+package redgatesqlci;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class NuGetFeedQueryTest {
+
+    private HttpServer server;
+    private String feedUrl;
+
+    // The status to answer each request path with; anything else is 404.
+    private final Map<String, Integer> statuses = new HashMap<String, Integer>();
+    private volatile String lastPath;
+
+    @Before
+    public void startFeed() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/nuget", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                lastPath = exchange.getRequestURI().getRawPath();
+                Integer status = statuses.get(exchange.getRequestURI().getPath());
+                exchange.sendResponseHeaders(status == null ? 404 : status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        feedUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/nuget";
+    }
+
+    @After
+    public void stopFeed() {
+        server.stop(0);
+    }
+
+    private Boolean query(String url, String packageid, String version) throws Exception {
+        return new NuGetFeedQuery(url, packageid, version).invoke(null, null);
+    }
+
+    @Test
+    public void foundVersion() throws Exception {
+        statuses.put("/nuget/Packages(Id='Db',Version='1.0.5')", 200);
+        assertEquals(Boolean.TRUE, query(feedUrl, "Db", "1.0.5"));
+    }
+
+    @Test
+    public void missingVersion() throws Exception {
+        assertEquals(Boolean.FALSE, query(feedUrl, "Db", "1.0.5"));
+    }
+
+    @Test
+    public void otherStatusIsUnknown() throws Exception {
+        statuses.put("/nuget/Packages(Id='Db',Version='1.0.5')", 500);
+        assertNull(query(feedUrl, "Db", "1.0.5"));
+    }
+
+    @Test
+    public void unreachableFeedIsUnknown() throws Exception {
+        server.stop(0);
+        assertNull(query(feedUrl, "Db", "1.0.5"));
+    }
+
+    @Test
+    public void trailingSlashesAreIgnored() throws Exception {
+        statuses.put("/nuget/Packages(Id='Db',Version='1.0.5')", 200);
+        assertEquals(Boolean.TRUE, query(feedUrl + "//", "Db", "1.0.5"));
+    }
+
+    @Test
+    public void keyIsEscaped() throws Exception {
+        query(feedUrl, "My Db", "1.0.5-beta+1");
+        assertEquals("/nuget/Packages(Id='My%20Db',Version='1.0.5-beta%2B1')", lastPath);
+    }
+}
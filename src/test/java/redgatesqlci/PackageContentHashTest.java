@@ -0,0 +1,63 @@
+package redgatesqlci;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class PackageContentHashTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static Map<String, String> scripts(String... pathAndContent) {
+        Map<String, String> scripts = new TreeMap<String, String>();
+        for (int i = 0; i < pathAndContent.length; i += 2)
+            scripts.put(pathAndContent[i], pathAndContent[i + 1]);
+        return scripts;
+    }
+
+    private String hash(String packageid, String version, Map<String, String> scripts, boolean scriptsOnly) throws Exception {
+        File file = TestPackages.write(temp.newFile(), packageid, version, scripts);
+        return new PackageContentHash(scriptsOnly).invoke(file, null);
+    }
+
+    @Test
+    public void theVersionDoesNotCount() throws Exception {
+        Map<String, String> scripts = scripts("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)");
+        assertEquals(hash("Db", "1.0.1", scripts, false), hash("Db", "1.0.2", scripts, false));
+    }
+
+    @Test
+    public void thePackageIdCounts() throws Exception {
+        Map<String, String> scripts = scripts("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)");
+        assertFalse(hash("Db", "1.0.1", scripts, false).equals(hash("OtherDb", "1.0.1", scripts, false)));
+    }
+
+    @Test
+    public void theScriptsCount() throws Exception {
+        assertFalse(hash("Db", "1.0.1", scripts("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)"), false)
+                .equals(hash("Db", "1.0.1", scripts("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id bigint)"), false)));
+        assertFalse(hash("Db", "1.0.1", scripts("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)"), false)
+                .equals(hash("Db", "1.0.1", scripts("Tables/dbo.B.sql", "CREATE TABLE dbo.A (Id int)"), false)));
+    }
+
+    @Test
+    public void scriptsOnlyIgnoresEverythingElse() throws Exception {
+        Map<String, String> scripts = scripts("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)", "readme.txt", "one");
+        Map<String, String> otherReadme = scripts("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)", "readme.txt", "two");
+        assertEquals(hash("Db", "1.0.1", scripts, true), hash("OtherDb", "2.0.0", otherReadme, true));
+        assertFalse(hash("Db", "1.0.1", scripts, false).equals(hash("Db", "1.0.1", otherReadme, false)));
+    }
+
+    @Test
+    public void anEmptyPackageHashes() throws Exception {
+        assertEquals(40, hash("Db", "1.0.1", Collections.<String, String>emptyMap(), false).length());
+    }
+}
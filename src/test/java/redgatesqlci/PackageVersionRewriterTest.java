@@ -0,0 +1,72 @@
+package redgatesqlci;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.*;
+
+public class PackageVersionRewriterTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private static Map<String, String> entries(File packageFile) throws Exception {
+        Map<String, String> entries = new TreeMap<String, String>();
+        ZipInputStream in = new ZipInputStream(new FileInputStream(packageFile));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                String name = entry.getName().endsWith(".psmdcp") ? "core.psmdcp" : entry.getName();
+                entries.put(name, new String(PackageVersionRewriter.readFully(in), "UTF-8"));
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    @Test
+    public void theManifestsGetTheNewVersion() throws Exception {
+        File packageFile = TestPackages.write(temp.newFile(), "Db", "1.0.1",
+                Collections.singletonMap("Tables/dbo.A.sql", "-- <version>1.0.1</version>"));
+        Map<String, String> before = entries(packageFile);
+
+        new PackageVersionRewriter("2.3.4").invoke(packageFile, null);
+        Map<String, String> after = entries(packageFile);
+
+        assertEquals(before.keySet(), after.keySet());
+        assertEquals(before.get("Db.nuspec").replace("<version>1.0.1</version>", "<version>2.3.4</version>"), after.get("Db.nuspec"));
+        assertEquals("<coreProperties><version>2.3.4</version></coreProperties>", after.get("core.psmdcp"));
+        assertEquals("-- <version>1.0.1</version>", after.get("db/state/Tables/dbo.A.sql"));
+        assertEquals(before.get("_rels/.rels"), after.get("_rels/.rels"));
+    }
+
+    @Test
+    public void onlyTheFirstVersionElementChanges() throws Exception {
+        byte[] rewritten = PackageVersionRewriter.rewriteVersion(
+                "<version>1</version><dependency><version>1</version></dependency>".getBytes("UTF-8"), "2");
+        assertEquals("<version>2</version><dependency><version>1</version></dependency>", new String(rewritten, "UTF-8"));
+    }
+
+    @Test
+    public void aManifestWithoutAVersionIsLeftAlone() throws Exception {
+        byte[] manifest = "<package><metadata/></package>".getBytes("UTF-8");
+        assertSame(manifest, PackageVersionRewriter.rewriteVersion(manifest, "2.0.0"));
+    }
+
+    @Test
+    public void manifests() {
+        assertTrue(PackageVersionRewriter.isManifest("Db.NUSPEC"));
+        assertTrue(PackageVersionRewriter.isManifest("package/services/metadata/core-properties/abc.psmdcp"));
+        assertFalse(PackageVersionRewriter.isManifest("db/state/Tables/dbo.A.sql"));
+    }
+}
@@ -0,0 +1,169 @@
+package redgatesqlci;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PublishPipelineTest {
+
+    private static final String FEED_URL = "http://feed.example/nuget";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private ByteArrayOutputStream log;
+    private TaskListener listener;
+    private PublishedPackageIndex index;
+    private FakeFeed feed;
+    private FilePath packageFile;
+
+    /**
+     * A feed that holds a set of versions, and answers pushes from a script of results.
+     */
+    private static class FakeFeed implements PublishPipeline.Feed {
+        final Set<String> versions = new HashSet<String>();
+        final LinkedList<Boolean> pushResults = new LinkedList<Boolean>();
+        final List<Long> pushTimes = new ArrayList<Long>();
+        Boolean unknown;
+
+        public synchronized Boolean hasPackage(String packageid, String version) {
+            if (unknown != null)
+                return null;
+            return versions.contains(packageid + "/" + version);
+        }
+
+        public synchronized boolean push(FilePath packageFile, FilePath directory, TaskListener listener) {
+            pushTimes.add(System.currentTimeMillis());
+            return pushResults.isEmpty() || pushResults.removeFirst();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        log = new ByteArrayOutputStream();
+        listener = new StreamTaskListener(log);
+        index = new PublishedPackageIndex(new File(temp.getRoot(), "index.txt"));
+        feed = new FakeFeed();
+        packageFile = new FilePath(TestPackages.write(new File(temp.getRoot(), "Db.1.0.5.nupkg"), "Db", "1.0.5",
+                Collections.singletonMap("Tables/dbo.Orders.sql", "CREATE TABLE dbo.Orders (Id int)")));
+    }
+
+    private PublishPipeline pipeline(int maxAttempts, long initialBackoffMillis) {
+        return new PublishPipeline(feed, FEED_URL, index, new FilePath(temp.getRoot()).child("publish"), listener,
+                2, maxAttempts, initialBackoffMillis, true);
+    }
+
+    private PublishPipeline.PackageResult publish(PublishPipeline pipeline) throws IOException, InterruptedException {
+        List<PublishPipeline.PackageResult> results = pipeline.run(Collections.singletonMap("Db", packageFile), "1.0.5");
+        assertEquals(1, results.size());
+        return results.get(0);
+    }
+
+    private String contentHash() throws IOException, InterruptedException {
+        return packageFile.act(new PackageContentHash(false));
+    }
+
+    @Test
+    public void skipsContentTheFeedAlreadyHas() throws Exception {
+        index.record(FEED_URL, "Db", contentHash(), "1.0.2");
+        feed.versions.add("Db/1.0.2");
+
+        PublishPipeline.PackageResult result = publish(pipeline(3, 0));
+
+        assertEquals(PublishPipeline.Status.ALREADY_PUBLISHED, result.getStatus());
+        assertEquals("1.0.2", result.getFeedVersion());
+        assertEquals(0, result.getAttempts());
+        assertTrue(feed.pushTimes.isEmpty());
+    }
+
+    @Test
+    public void dedupIgnoresFeedUrlCaseAndTrailingSlash() throws Exception {
+        index.record(FEED_URL.toUpperCase() + "/", "DB", contentHash(), "1.0.2");
+        feed.versions.add("Db/1.0.2");
+
+        assertEquals(PublishPipeline.Status.ALREADY_PUBLISHED, publish(pipeline(3, 0)).getStatus());
+    }
+
+    @Test
+    public void uploadsAgainWhenThePublishedVersionWasRemoved() throws Exception {
+        index.record(FEED_URL, "Db", contentHash(), "1.0.2");
+
+        PublishPipeline.PackageResult result = publish(pipeline(3, 0));
+
+        assertEquals(PublishPipeline.Status.PUBLISHED, result.getStatus());
+        assertEquals("1.0.5", result.getFeedVersion());
+        assertEquals(1, feed.pushTimes.size());
+        assertEquals("1.0.5", index.lookup(FEED_URL, "Db", contentHash()));
+        assertTrue(log.toString().contains("has been removed from the feed"));
+    }
+
+    @Test
+    public void uploadsWhenTheFeedCantBeAsked() throws Exception {
+        index.record(FEED_URL, "Db", contentHash(), "1.0.2");
+        feed.unknown = true;
+
+        PublishPipeline.PackageResult result = publish(pipeline(3, 0));
+
+        assertEquals(PublishPipeline.Status.PUBLISHED, result.getStatus());
+        assertEquals(1, feed.pushTimes.size());
+    }
+
+    @Test
+    public void retriesWithDoublingBackoff() throws Exception {
+        feed.pushResults.addAll(Arrays.asList(false, false, true));
+
+        PublishPipeline.PackageResult result = publish(pipeline(3, 50));
+
+        assertEquals(PublishPipeline.Status.PUBLISHED, result.getStatus());
+        assertEquals(3, result.getAttempts());
+        assertEquals(3, feed.pushTimes.size());
+        assertTrue(feed.pushTimes.get(1) - feed.pushTimes.get(0) >= 50);
+        assertTrue(feed.pushTimes.get(2) - feed.pushTimes.get(1) >= 100);
+    }
+
+    @Test
+    public void failsAfterTheLastAttempt() throws Exception {
+        feed.pushResults.addAll(Arrays.asList(false, false, false, false));
+
+        PublishPipeline.PackageResult result = publish(pipeline(3, 1));
+
+        assertEquals(PublishPipeline.Status.FAILED, result.getStatus());
+        assertEquals(3, result.getAttempts());
+        assertEquals(3, feed.pushTimes.size());
+        assertNull(index.lookup(FEED_URL, "Db", contentHash()));
+    }
+
+    @Test
+    public void countsATimedOutPushTheFeedReceived() throws Exception {
+        // The first push times out after reaching the feed; the retry is refused as a duplicate.
+        feed.pushResults.addAll(Arrays.asList(false, false));
+        feed.versions.add("Db/1.0.5");
+
+        PublishPipeline.PackageResult result = publish(pipeline(3, 1));
+
+        assertEquals(PublishPipeline.Status.PUBLISHED, result.getStatus());
+        assertEquals(2, result.getAttempts());
+        assertEquals("1.0.5", index.lookup(FEED_URL, "Db", contentHash()));
+    }
+
+    @Test
+    public void failsWithoutAPackageFile() throws Exception {
+        packageFile = new FilePath(new File(temp.getRoot(), "missing.nupkg"));
+
+        PublishPipeline.PackageResult result = publish(pipeline(3, 0));
+
+        assertEquals(PublishPipeline.Status.FAILED, result.getStatus());
+        assertTrue(feed.pushTimes.isEmpty());
+    }
+}
@@ -0,0 +1,92 @@
+package redgatesqlci;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ScriptDependenciesTest {
+
+    private ScriptDependencies dependencies;
+
+    @Before
+    public void setUp() {
+        dependencies = new ScriptDependencies();
+        dependencies.add("Security/Sales.sql", "CREATE SCHEMA [Sales]");
+        dependencies.add("Tables/dbo.Customers.sql", "CREATE TABLE dbo.Customers (Id int)");
+        dependencies.add("Tables/Sales.Orders.sql", "CREATE TABLE [Sales].[Orders] (CustomerId int REFERENCES Customers (Id))");
+        dependencies.add("Views/Sales.OrderTotals.sql", "CREATE VIEW Sales.OrderTotals AS SELECT COUNT(*) n FROM Sales.Orders");
+        dependencies.add("Procs/dbo.Report.sql", "CREATE PROCEDURE dbo.Report AS SELECT n FROM [Sales].[OrderTotals]");
+        dependencies.add("Tests/OrderTests.sql", "CREATE PROCEDURE OrderTests.[test totals] AS\n"
+                + "EXEC tSQLt.FakeTable 'Sales.Orders';\nSELECT * FROM Sales.OrderTotals");
+        dependencies.add("Tables/Other.Orders.sql", "CREATE TABLE Other.Orders (Id int)");
+        dependencies.add("Data/Seed.sql", "INSERT INTO dbo.Customers VALUES (1)");
+    }
+
+    private static Set<String> set(String... items) {
+        return new HashSet<String>(Arrays.asList(items));
+    }
+
+    @Test
+    public void definedObjects() {
+        assertEquals(Arrays.asList("sales.orders"), dependencies.definedBy("Tables/Sales.Orders.sql"));
+        assertEquals(Arrays.asList("schema:sales"), dependencies.definedBy("Security/Sales.sql"));
+        assertEquals(Arrays.asList("dbo.customers"), dependencies.definedBy("Tables/dbo.Customers.sql"));
+        assertEquals(Collections.<String>emptyList(), dependencies.definedBy("Data/Seed.sql"));
+        assertNull(dependencies.definedBy("missing.sql"));
+        assertEquals("Views/Sales.OrderTotals.sql", dependencies.scriptDefining("sales.ordertotals"));
+    }
+
+    @Test
+    public void dependantsAreFollowedTransitively() throws Exception {
+        assertEquals(set("dbo.customers", "sales.orders", "sales.ordertotals", "dbo.report", "ordertests.test totals"),
+                dependencies.withDependants(Arrays.asList("dbo.customers")));
+    }
+
+    @Test
+    public void dependantsOfASchemaIncludeItsObjects() throws Exception {
+        assertEquals(set("schema:sales", "sales.orders", "sales.ordertotals", "dbo.report", "ordertests.test totals"),
+                dependencies.withDependants(Arrays.asList("schema:sales")));
+    }
+
+    @Test
+    public void dependenciesAreFollowedTransitively() throws Exception {
+        assertEquals(set("dbo.report", "sales.ordertotals", "sales.orders", "schema:sales", "dbo.customers"),
+                dependencies.withDependencies(Arrays.asList("dbo.report")));
+    }
+
+    @Test
+    public void qualifiedReferencesOnlyMatchTheirSchema() throws Exception {
+        Set<String> affected = dependencies.withDependants(Arrays.asList("other.orders"));
+        assertEquals(set("other.orders"), affected);
+    }
+
+    @Test
+    public void unqualifiedReferencesMatchEverySchema() throws Exception {
+        dependencies.add("Procs/dbo.Count.sql", "CREATE PROCEDURE dbo.[Count] AS SELECT COUNT(*) FROM Orders");
+        assertTrue(dependencies.withDependants(Arrays.asList("other.orders")).contains("dbo.count"));
+        assertTrue(dependencies.withDependants(Arrays.asList("sales.orders")).contains("dbo.count"));
+    }
+
+    @Test
+    public void referencesInsideStringsCount() throws Exception {
+        assertTrue(dependencies.withDependants(Arrays.asList("sales.orders")).contains("ordertests.test totals"));
+    }
+
+    @Test
+    public void cyclesTerminate() throws Exception {
+        ScriptDependencies cyclic = new ScriptDependencies();
+        cyclic.add("a.sql", "CREATE VIEW dbo.A AS SELECT * FROM dbo.B");
+        cyclic.add("b.sql", "CREATE VIEW dbo.B AS SELECT * FROM dbo.A");
+        assertEquals(set("dbo.a", "dbo.b"), cyclic.withDependants(Arrays.asList("dbo.a")));
+    }
+
+    @Test
+    public void addingAScriptRelinks() throws Exception {
+        assertEquals(set("other.orders"), dependencies.withDependants(Arrays.asList("other.orders")));
+        dependencies.add("Views/Other.V.sql", "CREATE VIEW Other.V AS SELECT * FROM Other.Orders");
+        assertEquals(set("other.orders", "other.v"), dependencies.withDependants(Arrays.asList("other.orders")));
+    }
+}
@@ -0,0 +1,103 @@
+package redgatesqlci;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+public class ScriptPreValidatorTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+    private String cachePath;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = temp.newFolder("scripts");
+        cachePath = new File(temp.getRoot(), "cache/checked.tsv").getPath();
+    }
+
+    private void write(String relativePath, String content) throws IOException {
+        File file = new File(folder, relativePath);
+        file.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private ScriptPreValidator.Result validate() throws Exception {
+        SortedMap<String, String> hashes = new ScriptsFolderFingerprinter(new File(temp.getRoot(), "index").getPath())
+                .invoke(folder, null).getHashes();
+        return new ScriptPreValidator(hashes, cachePath).invoke(folder, null);
+    }
+
+    @Test
+    public void problemsAreReported() throws Exception {
+        write("Procs/dbo.Good.sql", "CREATE PROCEDURE dbo.Good AS BEGIN SELECT 1 END");
+        write("Procs/dbo.Bad.sql", "CREATE PROCEDURE dbo.Bad AS\nBEGIN\nSELECT 'unclosed\n");
+        write("notes.txt", "BEGIN");
+
+        ScriptPreValidator.Result result = validate();
+        assertEquals(2, result.getScriptCount());
+        assertEquals(2, result.getCheckedCount());
+        assertFalse(result.getDiagnostics().isEmpty());
+        for (ScriptDiagnostic diagnostic : result.getDiagnostics())
+            assertEquals("Procs/dbo.Bad.sql", diagnostic.getPath());
+    }
+
+    @Test
+    public void unchangedScriptsAreNotCheckedAgain() throws Exception {
+        write("Procs/dbo.Good.sql", "CREATE PROCEDURE dbo.Good AS BEGIN SELECT 1 END");
+        write("Procs/dbo.Bad.sql", "CREATE PROCEDURE dbo.Bad AS\nBEGIN\nSELECT 1\n");
+
+        ScriptPreValidator.Result first = validate();
+        ScriptPreValidator.Result second = validate();
+        assertEquals(0, second.getCheckedCount());
+        assertEquals(2, second.getScriptCount());
+        assertEquals(first.getDiagnostics().size(), second.getDiagnostics().size());
+        assertEquals(first.getDiagnostics().get(0).getLine(), second.getDiagnostics().get(0).getLine());
+        assertEquals(first.getDiagnostics().get(0).getMessage(), second.getDiagnostics().get(0).getMessage());
+
+        write("Procs/dbo.Good.sql", "CREATE PROCEDURE dbo.Good AS BEGIN SELECT 2 END");
+        assertEquals(1, validate().getCheckedCount());
+    }
+
+    @Test
+    public void cachedProblemsFollowARenamedScript() throws Exception {
+        write("Procs/dbo.Bad.sql", "CREATE PROCEDURE dbo.Bad AS\nBEGIN\nSELECT 1\n");
+        validate();
+
+        new File(folder, "Procs/dbo.Bad.sql").renameTo(new File(folder, "Procs/dbo.Renamed.sql"));
+        ScriptPreValidator.Result result = validate();
+        assertEquals(0, result.getCheckedCount());
+        assertFalse(result.getDiagnostics().isEmpty());
+        assertEquals("Procs/dbo.Renamed.sql", result.getDiagnostics().get(0).getPath());
+    }
+
+    @Test
+    public void aDamagedCacheOnlyCostsRechecking() throws Exception {
+        write("Procs/dbo.Bad.sql", "CREATE PROCEDURE dbo.Bad AS\nBEGIN\nSELECT 1\n");
+        validate();
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(cachePath, true), "UTF-8");
+        try {
+            writer.write("abc\tnot a line\tmessage\n");
+        } finally {
+            writer.close();
+        }
+        ScriptPreValidator.Result result = validate();
+        assertEquals(1, result.getCheckedCount());
+        assertFalse(result.getDiagnostics().isEmpty());
+    }
+}
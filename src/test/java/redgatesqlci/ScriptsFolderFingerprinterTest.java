@@ -0,0 +1,115 @@
+package redgatesqlci;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class ScriptsFolderFingerprinterTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File folder;
+    private String indexPath;
+
+    @Before
+    public void setUp() throws IOException {
+        folder = temp.newFolder("scripts");
+        indexPath = new File(temp.getRoot(), "index/scripts.idx").getPath();
+    }
+
+    private File write(String relativePath, String content) throws IOException {
+        File file = new File(folder, relativePath);
+        file.getParentFile().mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        // Old enough that the index can vouch for it.
+        file.setLastModified(System.currentTimeMillis() - 60000);
+        return file;
+    }
+
+    private ScriptsFolderManifest fingerprint() throws Exception {
+        return new ScriptsFolderFingerprinter(indexPath).invoke(folder, null);
+    }
+
+    @Test
+    public void unchangedFilesAreNotHashedAgain() throws Exception {
+        write("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)");
+        write("Tables/dbo.B.sql", "CREATE TABLE dbo.B (Id int)");
+
+        ScriptsFolderManifest first = fingerprint();
+        assertEquals(2, first.getFileCount());
+        assertEquals(2, first.getHashedCount());
+
+        ScriptsFolderManifest second = fingerprint();
+        assertEquals(0, second.getHashedCount());
+        assertEquals(first.getHashes(), second.getHashes());
+        assertEquals(first.getRootHash(), second.getRootHash());
+    }
+
+    @Test
+    public void changedFilesAreHashedAgain() throws Exception {
+        write("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)");
+        write("Tables/dbo.B.sql", "CREATE TABLE dbo.B (Id int)");
+        ScriptsFolderManifest first = fingerprint();
+
+        write("Tables/dbo.B.sql", "CREATE TABLE dbo.B (Id bigint)").setLastModified(System.currentTimeMillis() - 30000);
+        ScriptsFolderManifest second = fingerprint();
+
+        assertEquals(1, second.getHashedCount());
+        assertEquals(first.getHashes().get("Tables/dbo.A.sql"), second.getHashes().get("Tables/dbo.A.sql"));
+        assertFalse(first.getHashes().get("Tables/dbo.B.sql").equals(second.getHashes().get("Tables/dbo.B.sql")));
+        assertFalse(first.getRootHash().equals(second.getRootHash()));
+    }
+
+    @Test
+    public void recentFilesAreAlwaysHashed() throws Exception {
+        write("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)").setLastModified(System.currentTimeMillis());
+        fingerprint();
+        assertEquals(1, fingerprint().getHashedCount());
+    }
+
+    @Test
+    public void aDamagedIndexOnlyCostsRehashing() throws Exception {
+        write("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)");
+        ScriptsFolderManifest first = fingerprint();
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(indexPath), "UTF-8");
+        try {
+            writer.write("not a time\n");
+        } finally {
+            writer.close();
+        }
+        ScriptsFolderManifest second = fingerprint();
+        assertEquals(1, second.getHashedCount());
+        assertEquals(first.getRootHash(), second.getRootHash());
+    }
+
+    @Test
+    public void buildLeftoversAreSkipped() throws Exception {
+        write("Tables/dbo.A.sql", "CREATE TABLE dbo.A (Id int)");
+        write(".git/HEAD", "ref: refs/heads/master");
+        write(".redgatesqlci/tests.tsv", "");
+        write("Db.1.0.1.nupkg", "PK");
+        write("Db.junit.xml", "<testsuites/>");
+
+        assertEquals(new ArrayList<String>(Arrays.asList("Tables/dbo.A.sql")),
+                new ArrayList<String>(fingerprint().getHashes().keySet()));
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void aMissingFolderFails() throws Exception {
+        new ScriptsFolderFingerprinter(indexPath).invoke(new File(temp.getRoot(), "missing"), null);
+    }
+}
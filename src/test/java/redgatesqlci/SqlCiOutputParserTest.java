@@ -0,0 +1,129 @@
+package redgatesqlci;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SqlCiOutputParserTest {
+
+    private static SqlCiTimeline parse(String output, ByteArrayOutputStream log) throws Exception {
+        SqlCiOutputParser parser = new SqlCiOutputParser(log);
+        byte[] bytes = output.getBytes("UTF-8");
+        // Split the writes mid-line, as a process pipe would.
+        parser.write(bytes, 0, bytes.length / 2);
+        for (int i = bytes.length / 2; i < bytes.length; i++)
+            parser.write(bytes[i]);
+        parser.close();
+        return parser.finish("sqlci.exe Test");
+    }
+
+    private static List<String> phaseNames(SqlCiTimeline timeline) {
+        List<String> names = new ArrayList<String>();
+        for (SqlCiTimeline.Phase phase : timeline.getPhases())
+            names.add(phase.getName());
+        return names;
+    }
+
+    private static boolean isError(String line) {
+        byte[] bytes = line.getBytes();
+        return SqlCiOutputParser.isError(bytes, bytes.length);
+    }
+
+    private static boolean isWarning(String line) {
+        byte[] bytes = line.getBytes();
+        return SqlCiOutputParser.isWarning(bytes, bytes.length);
+    }
+
+    @Test
+    public void outputIsForwardedUnchanged() throws Exception {
+        String output = "Creating database\r\nWarning: something\n\nno newline at the end";
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SqlCiOutputParser parser = new SqlCiOutputParser(log);
+        parser.write(output.getBytes("UTF-8"));
+        assertEquals(output, log.toString("UTF-8"));
+        assertEquals(output.length(), parser.getBytes());
+    }
+
+    @Test
+    public void phasesAreTimedInOrder() throws Exception {
+        SqlCiTimeline timeline = parse("SQL CI 2.0\n"
+                + "Creating temporary database\n"
+                + "  Deploying scripts\n"
+                + "Running tSQLt tests\n"
+                + "[tSQLt] Running test_Creating database\n"
+                + "Creating package\n", new ByteArrayOutputStream());
+
+        assertEquals(Arrays.asList("Startup", "Schema creation", "tSQLt tests", "Packaging"), phaseNames(timeline));
+        assertEquals("sqlci.exe Test", timeline.getCommand());
+        long offset = 0;
+        for (SqlCiTimeline.Phase phase : timeline.getPhases()) {
+            assertTrue(phase.getOffsetMillis() >= offset);
+            offset = phase.getOffsetMillis();
+        }
+    }
+
+    @Test
+    public void markersMustStartTheLineAsAWord() throws Exception {
+        SqlCiTimeline timeline = parse("Table ValidatingRules created\n"
+                + "Validatings\n"
+                + "The tool is deploying\n", new ByteArrayOutputStream());
+        assertEquals(Arrays.asList("Startup"), phaseNames(timeline));
+    }
+
+    @Test
+    public void warningsAndErrorsAreCountedAndKept() throws Exception {
+        SqlCiTimeline timeline = parse("Warning: the database has no tests\n"
+                + "  error: could not connect\n"
+                + "Msg 208, Level 16, State 1, Line 4\n"
+                + "System.Data.SqlClient.SqlException: Invalid object name\n"
+                + "Build succeeded with 0 errors and 0 warnings\n"
+                + "Creating table dbo.ErrorLog\n"
+                + "[tSQLt] test_ErrorHandling passed\n"
+                + "Errors: none\n", new ByteArrayOutputStream());
+
+        assertEquals(1, timeline.getWarningCount());
+        assertEquals(3, timeline.getErrorCount());
+        assertEquals(Arrays.asList("Warning: Warning: the database has no tests",
+                "Error: error: could not connect",
+                "Error: Msg 208, Level 16, State 1, Line 4",
+                "Error: System.Data.SqlClient.SqlException: Invalid object name"), timeline.getMessages());
+    }
+
+    @Test
+    public void errorPrefixes() {
+        assertTrue(isError("ERROR: failed"));
+        assertTrue(isError("error - failed"));
+        assertTrue(isError("[Error] failed"));
+        assertTrue(isError("Fatal error occurred"));
+        assertTrue(isError("Unhandled Exception: System.IO.IOException: disk full"));
+        assertFalse(isError("Errorlevel 0"));
+        assertFalse(isError("Msg from the server, Level headed"));
+        assertFalse(isError("Msg 50000 raised"));
+        assertFalse(isError("An exception: handled"));
+        assertFalse(isError(""));
+    }
+
+    @Test
+    public void warningPrefixes() {
+        assertTrue(isWarning("Warning: x"));
+        assertTrue(isWarning("\t[WARNING] x"));
+        assertTrue(isWarning("warn: x"));
+        assertFalse(isWarning("Warnings: 0"));
+        assertFalse(isWarning("0 warnings"));
+    }
+
+    @Test
+    public void onlySoManyMessagesAreKept() throws Exception {
+        StringBuilder output = new StringBuilder();
+        for (int i = 0; i < 30; i++)
+            output.append("Error: number ").append(i).append('\n');
+        SqlCiTimeline timeline = parse(output.toString(), new ByteArrayOutputStream());
+        assertEquals(30, timeline.getErrorCount());
+        assertEquals(20, timeline.getMessages().size());
+    }
+}
@@ -0,0 +1,165 @@
+package redgatesqlci;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TSqlCheckerTest {
+
+    private static List<String> check(String... lines) {
+        StringBuilder script = new StringBuilder();
+        for (String line : lines)
+            script.append(line).append("\r\n");
+        List<String> found = new ArrayList<String>();
+        for (ScriptDiagnostic diagnostic : TSqlChecker.check("script.sql", script.toString()))
+            found.add(diagnostic.getLine() + ": " + diagnostic.getMessage());
+        return found;
+    }
+
+    private static void assertClean(String... lines) {
+        assertEquals(new ArrayList<String>(), check(lines));
+    }
+
+    @Test
+    public void balancedBlocks() {
+        assertClean(
+                "CREATE PROCEDURE dbo.Ship AS",
+                "BEGIN",
+                "  IF @x = 1",
+                "  BEGIN",
+                "    SELECT CASE WHEN a > 0 THEN (1) ELSE 2 END FROM t",
+                "  END",
+                "END");
+    }
+
+    @Test
+    public void transactionsAreNotBlocks() {
+        assertClean(
+                "BEGIN TRAN",
+                "BEGIN TRANSACTION",
+                "BEGIN DISTRIBUTED TRANSACTION",
+                "COMMIT",
+                "BEGIN TRY",
+                "  SELECT 1",
+                "END TRY",
+                "BEGIN CATCH",
+                "  ROLLBACK",
+                "END CATCH");
+    }
+
+    @Test
+    public void conversationsAreNotBlocks() {
+        assertClean(
+                "BEGIN DIALOG CONVERSATION @handle FROM SERVICE a TO SERVICE 'b'",
+                "END CONVERSATION @handle");
+    }
+
+    @Test
+    public void missingEnd() {
+        assertEquals(list("2: This BEGIN is never closed with an END."), check(
+                "CREATE PROCEDURE dbo.Ship AS",
+                "BEGIN",
+                "  SELECT 1"));
+    }
+
+    @Test
+    public void extraEnd() {
+        assertEquals(list("2: This END has no matching BEGIN or CASE."), check(
+                "SELECT 1",
+                "END"));
+    }
+
+    @Test
+    public void unbalancedParentheses() {
+        assertEquals(list("1: This ( is never closed."), check("SELECT COUNT((1)"));
+        assertEquals(list("1: This ) has no matching (."), check("SELECT 1)"));
+    }
+
+    @Test
+    public void nestedComments() {
+        assertClean(
+                "/* outer /* inner BEGIN */",
+                "   still a comment ( */",
+                "SELECT 1 -- END (");
+    }
+
+    @Test
+    public void unclosedComment() {
+        assertEquals(list("2: This comment is never closed with */."), check(
+                "SELECT 1",
+                "/* outer /* inner */",
+                "SELECT 2"));
+    }
+
+    @Test
+    public void doubledQuotes() {
+        assertClean(
+                "SELECT 'It''s (not) the END', [Odd]]Name(], \"Say \"\"BEGIN\"\"\"");
+    }
+
+    @Test
+    public void unclosedString() {
+        assertEquals(list("2: This string is never closed with '."), check(
+                "SELECT 1",
+                "SELECT 'It''s"));
+        assertEquals(list("1: This quoted identifier is never closed with ]."), check("SELECT [Name"));
+    }
+
+    @Test
+    public void keywordsAfterADotAreNames() {
+        assertClean("SELECT t.[End], t.End, dbo.Case FROM dbo.[Begin] t");
+    }
+
+    @Test
+    public void blocksMustCloseBeforeGo() {
+        assertEquals(list("1: This BEGIN is never closed with an END before the GO on line 3.",
+                "4: This END has no matching BEGIN or CASE."), check(
+                "BEGIN",
+                "  SELECT 1",
+                "GO",
+                "END"));
+    }
+
+    @Test
+    public void goVariants() {
+        assertClean(
+                "BEGIN SELECT 1 END",
+                "  go  ",
+                "SELECT 2",
+                "GO 5",
+                "SELECT 3",
+                "GO -- next batch",
+                "SELECT 4");
+    }
+
+    @Test
+    public void goInsideAStringOrCommentIsNotASeparator() {
+        assertClean(
+                "BEGIN",
+                "  SELECT 'first line",
+                "GO",
+                "last line'",
+                "  /*",
+                "GO",
+                "  */",
+                "END");
+    }
+
+    @Test
+    public void goAsPartOfALineIsNotASeparator() {
+        assertEquals(list("1: This BEGIN is never closed with an END."), check(
+                "BEGIN",
+                "GOTO done",
+                "done: SELECT 1"));
+    }
+
+    private static List<String> list(String... items) {
+        List<String> list = new ArrayList<String>();
+        for (String item : items)
+            list.add(item);
+        return list;
+    }
+}
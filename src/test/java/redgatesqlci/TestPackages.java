@@ -0,0 +1,35 @@
+package redgatesqlci;
+
+import java.io.*;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes small packages laid out like the ones sqlci makes, for tests.
+ */
+class TestPackages {
+
+    static File write(File file, String packageid, String version, Map<String, String> scripts) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+        try {
+            add(out, packageid + ".nuspec", "<?xml version=\"1.0\"?>\n<package><metadata><id>" + packageid + "</id><version>"
+                    + version + "</version><authors>test</authors></metadata></package>");
+            add(out, "package/services/metadata/core-properties/" + Long.toHexString(System.nanoTime()) + ".psmdcp",
+                    "<coreProperties><version>" + version + "</version></coreProperties>");
+            add(out, "_rels/.rels", "<Relationships/>");
+            add(out, "[Content_Types].xml", "<Types/>");
+            for (Map.Entry<String, String> script : scripts.entrySet())
+                add(out, "db/state/" + script.getKey(), script.getValue());
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static void add(ZipOutputStream out, String name, String content) throws IOException {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(content.getBytes("UTF-8"));
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,73 @@
+package redgatesqlci;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TestShardPlanTest {
+
+    private static TestDurationHistory history(Object... classAndMillis) {
+        Map<String, Long> estimates = new TreeMap<String, Long>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 0; i < classAndMillis.length; i += 2)
+            estimates.put((String) classAndMillis[i], ((Number) classAndMillis[i + 1]).longValue());
+        return new TestDurationHistory(estimates);
+    }
+
+    @Test
+    public void slowestClassesGoToTheLeastLoadedShard() {
+        TestDurationHistory history = history("A", 70, "B", 60, "C", 50, "D", 40, "E", 30, "F", 20);
+        TestShardPlan plan = TestShardPlan.longestProcessingTimeFirst(Arrays.asList("F", "E", "D", "C", "B", "A"), 3, history);
+
+        // A, B and C start the shards; then F goes with C, E with B and D with A... in load order.
+        assertEquals(Arrays.asList(Arrays.asList("A", "F"), Arrays.asList("B", "E"), Arrays.asList("C", "D")), plan.getShards());
+        assertEquals(Arrays.asList(90L, 90L, 90L), plan.getPredictedMillis());
+        assertEquals(90, plan.getPredictedMakespanMillis());
+    }
+
+    @Test
+    public void everyClassIsPlannedOnce() {
+        TestDurationHistory history = history("A", 5, "B", 100, "C", 7, "D", 3, "E", 60);
+        List<String> classes = Arrays.asList("A", "B", "C", "D", "E");
+        TestShardPlan plan = TestShardPlan.longestProcessingTimeFirst(classes, 2, history);
+
+        List<String> planned = new ArrayList<String>();
+        for (List<String> shard : plan.getShards())
+            planned.addAll(shard);
+        Collections.sort(planned);
+        assertEquals(classes, planned);
+        assertEquals(Arrays.asList(Arrays.asList("B"), Arrays.asList("E", "C", "A", "D")), plan.getShards());
+        assertEquals(100, plan.getPredictedMakespanMillis());
+    }
+
+    @Test
+    public void noMoreShardsThanClasses() {
+        TestShardPlan plan = TestShardPlan.longestProcessingTimeFirst(Arrays.asList("A", "B"), 5, history());
+        assertEquals(2, plan.getShards().size());
+    }
+
+    @Test
+    public void atLeastOneShard() {
+        TestShardPlan plan = TestShardPlan.longestProcessingTimeFirst(Collections.<String>emptyList(), 0, history());
+        assertEquals(1, plan.getShards().size());
+        assertEquals(0, plan.getPredictedMakespanMillis());
+    }
+
+    @Test
+    public void unknownClassesAreEstimatedAtTheMedian() {
+        TestDurationHistory history = history("A", 10, "B", 30, "C", 1000);
+        assertFalse(history.isKnown("New"));
+        assertEquals(30, history.estimate("New"));
+        assertEquals(30, history.getFallbackEstimate());
+
+        TestShardPlan plan = TestShardPlan.longestProcessingTimeFirst(Arrays.asList("New", "A"), 2, history);
+        assertEquals(Arrays.asList(30L, 10L), plan.getPredictedMillis());
+    }
+
+    @Test
+    public void equalEstimatesAreOrderedByName() {
+        TestShardPlan plan = TestShardPlan.longestProcessingTimeFirst(Arrays.asList("C", "A", "B"), 3, history());
+        assertEquals(Arrays.asList(Arrays.asList("A"), Arrays.asList("B"), Arrays.asList("C")), plan.getShards());
+    }
+}